@@ -0,0 +1,164 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.exceptions.TypeNotAllowedAsChildException;
+
+/**
+ * Keeps the anchor records of multi-volume works and periodicals in memory. All volumes of a work share the same anchor, so the anchor is
+ * requested only once and the following volumes only request their own record, see {@link IOpacPluginAnchorSearch}. An entry belongs to a
+ * catalogue, a ruleset and a configuration snapshot, so a changed configuration or another ruleset never gets the anchor of an older one. The
+ * cache also remembers the result of the last merge of each anchor, so the merge can be skipped if the anchor of a volume already contains it.
+ * The cache is limited to the most recently used anchors.
+ */
+@Log4j2
+final class AnchorRecordCache {
+
+    private static final int MAX_ENTRIES = 1000;
+
+    private static final AnchorRecordCache INSTANCE = new AnchorRecordCache();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+        private static final long serialVersionUID = -4001402950813911460L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // volumes of the same work running at the same time wait for the same anchor request
+    private final CatalogueRequestCoalescer<Entry> runningRequests = new CatalogueRequestCoalescer<>();
+
+    private AnchorRecordCache() {
+    }
+
+    static AnchorRecordCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create the key of an anchor
+     *
+     * @param catalogue the title of the catalogue
+     * @param ruleset the file name of the ruleset
+     * @param fileModified the modification time of the configuration snapshot
+     * @param identifier the identifier of the anchor record
+     * @return the key
+     */
+    static String createKey(String catalogue, String ruleset, long fileModified, String identifier) {
+        return catalogue + '\u0000' + ruleset + '\u0000' + fileModified + '\u0000' + identifier;
+    }
+
+    /**
+     * Get the anchor. It is only requested if it is not cached or if the cached anchor expired.
+     *
+     * @param key the key of the anchor, see {@link #createKey(String, String, long, String)}
+     * @param ttl the time in seconds an anchor is used, 0 or less to use it until it is removed from the cache
+     * @param request requests the anchor record from the catalogue
+     * @return the anchor element without children or null, if the catalogue did not return an anchor record. It is shared by all volumes and must
+     *         not be changed.
+     * @throws Exception the exception of the request
+     */
+    DocStruct getAnchor(String key, long ttl, Callable<Fileformat> request) throws Exception {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || (ttl > 0 && System.currentTimeMillis() - entry.getCreated() > TimeUnit.SECONDS.toMillis(ttl))) {
+            entry = runningRequests.execute(key, () -> load(key, request)).getValue();
+        }
+        return entry == null ? null : entry.getAnchor();
+    }
+
+    private Entry load(String key, Callable<Fileformat> request) throws Exception {
+        Fileformat ff = request.call();
+        DigitalDocument dd = ff == null ? null : ff.getDigitalDocument();
+        DocStruct topstruct = dd == null ? null : dd.getLogicalDocStruct();
+        if (topstruct == null || !topstruct.getType().isAnchor()) {
+            log.debug("No anchor record found for {}", key.substring(key.lastIndexOf('\u0000') + 1));
+            return null;
+        }
+        // only the metadata of the anchor is kept, not the volume the record may contain
+        DocStruct anchor = topstruct.copy(true, false);
+        Entry entry = new Entry(anchor, DocStructFingerprint.of(Collections.singletonList(anchor)), System.currentTimeMillis());
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Add a copy of the anchor to a record that was requested without its anchor
+     *
+     * @param volume the record of the volume
+     * @param anchor the anchor
+     * @return true if the anchor was added, false if the ruleset does not allow the volume within the anchor
+     */
+    static boolean attachAnchor(Fileformat volume, DocStruct anchor) {
+        DigitalDocument dd = volume.getDigitalDocument();
+        DocStruct topstruct = dd.getLogicalDocStruct();
+        DocStruct copy = anchor.copy(true, false);
+        try {
+            if (!copy.addChild(topstruct)) {
+                return false;
+            }
+        } catch (TypeNotAllowedAsChildException e) {
+            log.warn("Type {} is not allowed within anchor {}", topstruct.getType().getName(), anchor.getType().getName());
+            return false;
+        }
+        dd.setLogicalDocStruct(copy);
+        return true;
+    }
+
+    /**
+     * Check if merging the cached anchor into the anchor of a volume would not change anything
+     *
+     * @param key the key of the anchor
+     * @param anchorFingerprint fingerprint of the anchor of the catalogue record
+     * @param existingFingerprint fingerprint of the anchor of the volume
+     * @return true if the anchor of the volume already equals the result of the last merge of the cached anchor
+     */
+    synchronized boolean isMerged(String key, String anchorFingerprint, String existingFingerprint) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.getFingerprint().equals(anchorFingerprint) && existingFingerprint.equals(entry.getMergedFingerprint());
+    }
+
+    /**
+     * Remember the result of a merge of the cached anchor
+     *
+     * @param key the key of the anchor
+     * @param anchorFingerprint fingerprint of the anchor of the catalogue record
+     * @param mergedFingerprint fingerprint of the anchor of the volume after the merge
+     */
+    synchronized void setMerged(String key, String anchorFingerprint, String mergedFingerprint) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.getFingerprint().equals(anchorFingerprint)) {
+            entry.mergedFingerprint = mergedFingerprint;
+        }
+    }
+
+    @Getter
+    private static class Entry {
+        private final DocStruct anchor;
+        private final String fingerprint;
+        private final long created;
+        // fingerprint of the anchor of the last merged volume
+        private String mergedFingerprint;
+
+        private Entry(DocStruct anchor, String fingerprint, long created) {
+            this.anchor = anchor;
+            this.fingerprint = fingerprint;
+            this.created = created;
+        }
+    }
+}
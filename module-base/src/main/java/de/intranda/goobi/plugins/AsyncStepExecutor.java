@@ -0,0 +1,76 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Executor for catalogue requests running in the background. The runs mostly wait for the catalogue, so each run gets its own virtual thread, if
+ * the Java runtime supports them. Otherwise a pool of daemon threads is used. The number of runs at the same time is limited, further runs are
+ * rejected, so that the caller can execute them directly.
+ */
+@Log4j2
+final class AsyncStepExecutor {
+
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    // number of submitted runs that are not finished yet
+    private static final AtomicInteger RUNNING = new AtomicInteger();
+
+    private AsyncStepExecutor() {
+    }
+
+    /**
+     * Execute the task in the background
+     *
+     * @param task the task
+     * @param maxConcurrent maximum number of tasks running in the background at the same time, the latest value is used for all tasks. A value of
+     *            zero or less means no limit
+     * @throws RejectedExecutionException if the limit is reached or the task cannot be accepted
+     */
+    static void submit(Runnable task, int maxConcurrent) {
+        int running;
+        do {
+            running = RUNNING.get();
+            if (maxConcurrent > 0 && running >= maxConcurrent) {
+                throw new RejectedExecutionException(running + " catalogue requests are already running in the background");
+            }
+        } while (!RUNNING.compareAndSet(running, running + 1));
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    RUNNING.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            RUNNING.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks running in the background
+     */
+    static int getRunning() {
+        return RUNNING.get();
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            // available since Java 21, the plugin can be compiled for older versions
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Virtual threads are not available, using platform threads for asynchronous catalogue requests");
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "catalogue-request-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
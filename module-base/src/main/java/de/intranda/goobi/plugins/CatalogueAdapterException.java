@@ -0,0 +1,18 @@
+package de.intranda.goobi.plugins;
+
+/**
+ * Thrown if an opac plugin does not provide the members that are needed to send a request to it. This is a configuration or version problem and
+ * not a missing record.
+ */
+public class CatalogueAdapterException extends Exception {
+
+    private static final long serialVersionUID = -4329567095734186410L;
+
+    public CatalogueAdapterException(String message) {
+        super(message);
+    }
+
+    public CatalogueAdapterException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
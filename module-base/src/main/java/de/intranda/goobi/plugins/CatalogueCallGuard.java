@@ -0,0 +1,386 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Protects the requests to a single catalogue. Each request gets a deadline, optionally a second request is sent if the first one takes longer
+ * than most of the previous requests (hedging). Only the result of the first successful request is used, the results of the other requests are
+ * given back to the caller to release their resources. A circuit breaker rejects all requests for some time after repeated failures, so that steps
+ * do not wait for a catalogue that is not available. The guard is checked before a request waits for the {@link CatalogueRequestScheduler}, so the
+ * deadline includes the waiting time. A request that throws a {@link CatalogueUnavailableException} without timeout was not sent, e.g. because the
+ * scheduler rejected it, and does not count as a failure of the catalogue. The latencies for the hedging are measured from the moment the
+ * scheduler sends the request, not from the moment it started waiting.
+ *
+ * Requests with deadline or hedging run in a thread pool of the catalogue. Requests that exceed their deadline are interrupted, but an opac
+ * plugin can ignore the interruption. The pool is therefore limited by the scheduler limits of the catalogue, if no thread is free the request
+ * is rejected instead of starting another thread.
+ */
+@Log4j2
+final class CatalogueCallGuard {
+
+    private static final Map<String, CatalogueCallGuard> GUARDS = new ConcurrentHashMap<>();
+
+    // the request of a guard running in the current thread, it is told by the scheduler when the request is sent
+    private static final ThreadLocal<GuardedRequest<?>> CURRENT_REQUEST = new ThreadLocal<>();
+
+    private static final int LATENCY_SAMPLES = 128;
+
+    // maximum number of threads of a catalogue without scheduler limits
+    private static final int DEFAULT_MAX_THREADS = 64;
+
+    // how often to check if a waiting request was sent, to send the second request in time
+    private static final long WAITING_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final String catalogue;
+
+    private final ThreadPoolExecutor executor;
+
+    // latencies of the last successful requests in nanoseconds
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount = 0;
+    private int latencyPosition = 0;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialRunning = new AtomicBoolean();
+    private volatile long openUntil = 0;
+
+    private CatalogueCallGuard(String catalogue) {
+        this.catalogue = catalogue;
+        executor = new ThreadPoolExecutor(0, DEFAULT_MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "catalogue-request");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the guard for a catalogue
+     *
+     * @param catalogue the title of the catalogue
+     * @return the guard
+     */
+    static CatalogueCallGuard getInstance(String catalogue) {
+        return GUARDS.computeIfAbsent(catalogue, CatalogueCallGuard::new);
+    }
+
+    /**
+     * Called by the scheduler before a request waits for a free slot. The latency of the request is measured from the next call of
+     * {@link #requestSent()}.
+     */
+    static void requestWaiting() {
+        GuardedRequest<?> request = CURRENT_REQUEST.get();
+        if (request != null) {
+            request.sent = 0;
+        }
+    }
+
+    /**
+     * Called by the scheduler when a request is sent to the catalogue
+     */
+    static void requestSent() {
+        GuardedRequest<?> request = CURRENT_REQUEST.get();
+        if (request != null) {
+            request.sent = System.nanoTime();
+        }
+    }
+
+    /**
+     * Execute a catalogue request
+     *
+     * @param config the configuration containing timeout, hedging and circuit breaker settings
+     * @param primary the request, it waits for the scheduler of the catalogue itself
+     * @param hedge a second request that can be sent if the first one is slow, must use its own opac plugin instance. It should not wait for the
+     *            scheduler, but throw a {@link CatalogueUnavailableException} if it cannot be sent immediately. Can be null
+     * @param discard gets the results of requests that finished after another request succeeded or after the deadline was exceeded, e.g. to give
+     *            back their opac plugin instance. Can be null
+     * @return the result of the first successful request
+     * @throws CatalogueUnavailableException if the circuit breaker is open, the deadline is exceeded or all threads of the catalogue are in use
+     * @throws Exception the exception of the failed request
+     */
+    <T> T call(CatalogueRequestConfiguration config, Callable<T> primary, Callable<T> hedge, Consumer<T> discard) throws Exception {
+        checkCircuitBreaker(config);
+
+        // the second request is only sent if enough latencies are known, not if the first request fails
+        long hedgeDelay = config.isHedgingEnabled() ? getLatencyPercentile(config.getHedgingPercentile(), config.getHedgingMinSamples()) : -1;
+        if (config.getRequestTimeout() <= 0 && (hedge == null || hedgeDelay < 0)) {
+            // no deadline and no hedging, run the request in the current thread
+            GuardedRequest<T> request = new GuardedRequest<>(primary);
+            try {
+                T result = request.call();
+                onSuccess(request.getLatency());
+                return result;
+            } catch (Exception e) {
+                onFailure(config, e);
+                throw e;
+            }
+        }
+
+        updatePoolSize(config);
+        long start = System.nanoTime();
+        long timeout = config.getRequestTimeout() > 0 ? TimeUnit.MILLISECONDS.toNanos(config.getRequestTimeout()) : -1;
+        // set by the first successful request or if the result is not needed anymore
+        AtomicBoolean decided = new AtomicBoolean();
+        CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        List<GuardedRequest<T>> requests = new ArrayList<>(2);
+        List<Future<T>> futures = new ArrayList<>(2);
+        try {
+            submit(completionService, new GuardedRequest<>(primary), decided, discard, requests, futures);
+        } catch (RejectedExecutionException e) {
+            CatalogueUnavailableException error =
+                    new CatalogueUnavailableException("Too many requests to catalogue " + catalogue + " are running, the request is not sent", false);
+            onFailure(config, error);
+            throw error;
+        }
+        boolean hedgeRejected = false;
+        int pending = 1;
+        Exception lastError = null;
+        try {
+            while (pending > 0) {
+                boolean canHedge = hedge != null && hedgeDelay >= 0 && futures.size() == 1 && !hedgeRejected;
+                long now = System.nanoTime();
+                long wait = timeout > 0 ? timeout - (now - start) : Long.MAX_VALUE;
+                if (canHedge) {
+                    // the second request is sent when the first one was sent and is slow, not while it waits for the scheduler
+                    long sent = requests.get(0).sent;
+                    wait = Math.min(wait, sent == 0 ? Math.max(hedgeDelay, WAITING_CHECK_INTERVAL) : hedgeDelay - (now - sent));
+                }
+                Future<T> done = completionService.poll(wait, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (timeout > 0 && System.nanoTime() - start >= timeout) {
+                        if (!decided.compareAndSet(false, true)) {
+                            // a request succeeded just now, its result is used
+                            return awaitClaimedResult(completionService, requests, futures);
+                        }
+                        onFailure(config);
+                        throw new CatalogueUnavailableException(
+                                "Request to catalogue " + catalogue + " exceeded the deadline of " + config.getRequestTimeout() + " ms", true);
+                    }
+                    long sent = requests.get(0).sent;
+                    if (canHedge && sent != 0 && System.nanoTime() - sent >= hedgeDelay) {
+                        log.debug("Request to catalogue {} is slow, sending a second request", catalogue);
+                        try {
+                            submit(completionService, new GuardedRequest<>(hedge), decided, discard, requests, futures);
+                            pending++;
+                        } catch (RejectedExecutionException e) {
+                            log.debug("No free thread for a second request to catalogue {}", catalogue);
+                            hedgeRejected = true;
+                        }
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    onSuccess(requests.get(futures.indexOf(done)).getLatency());
+                    return result;
+                } catch (ExecutionException e) {
+                    Exception error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    // a request that was not sent must not hide the error of the other request
+                    if (lastError == null || !isNotSent(error)) {
+                        lastError = error;
+                    }
+                }
+            }
+            onFailure(config, lastError);
+            throw lastError;
+        } catch (InterruptedException e) {
+            if (!decided.compareAndSet(false, true)) {
+                // a request succeeded just now, its result is used and the interruption is left to the caller
+                T result = awaitClaimedResult(completionService, requests, futures);
+                Thread.currentThread().interrupt();
+                return result;
+            }
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            decided.set(true);
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Limit the threads of the catalogue. Each running request can have a second request and each waiting request needs a thread. Requests that
+     * ignore their interruption keep their slot of the scheduler, so they are included in these limits.
+     */
+    private void updatePoolSize(CatalogueRequestConfiguration config) {
+        CatalogueRequestScheduler.Settings settings = config.getSchedulerSettings(catalogue);
+        int maxThreads = DEFAULT_MAX_THREADS;
+        if (settings != null && settings.getMaxConcurrentRequests() > 0 && settings.getMaxQueueDepth() > 0) {
+            maxThreads = 2 * settings.getMaxConcurrentRequests() + settings.getMaxQueueDepth();
+        }
+        if (executor.getMaximumPoolSize() != maxThreads) {
+            executor.setMaximumPoolSize(maxThreads);
+        }
+    }
+
+    private static <T> void submit(CompletionService<T> completionService, GuardedRequest<T> request, AtomicBoolean decided, Consumer<T> discard,
+            List<GuardedRequest<T>> requests, List<Future<T>> futures) {
+        Future<T> future = completionService.submit(claimResult(request, decided, discard));
+        requests.add(request);
+        futures.add(future);
+    }
+
+    /**
+     * Wrap a request, so that only the result of the first successful request is returned. Results of later requests are given to the discard
+     * function.
+     */
+    private static <T> Callable<T> claimResult(Callable<T> request, AtomicBoolean decided, Consumer<T> discard) {
+        return () -> {
+            T result = request.call();
+            if (decided.compareAndSet(false, true)) {
+                return result;
+            }
+            if (discard != null) {
+                discard.accept(result);
+            }
+            throw new CancellationException("The result of the request is not needed anymore");
+        };
+    }
+
+    /**
+     * Wait for the result of the request that succeeded, after the caller decided to give up. The request already has its result, so the wait is
+     * short and not interrupted.
+     */
+    private <T> T awaitClaimedResult(CompletionService<T> completionService, List<GuardedRequest<T>> requests, List<Future<T>> futures) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    Future<T> done = completionService.take();
+                    T result = done.get();
+                    onSuccess(requests.get(futures.indexOf(done)).getLatency());
+                    return result;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // the other request, it failed or its result was discarded
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkCircuitBreaker(CatalogueRequestConfiguration config) throws CatalogueUnavailableException {
+        if (config.getCircuitBreakerThreshold() <= 0 || openUntil == 0) {
+            return;
+        }
+        if (System.currentTimeMillis() < openUntil || !trialRunning.compareAndSet(false, true)) {
+            throw new CatalogueUnavailableException("Catalogue " + catalogue + " is not available, requests are paused after "
+                    + consecutiveFailures.get() + " failed requests", false);
+        }
+        // the pause is over, this request is the trial if the catalogue is available again
+        log.debug("Sending trial request to catalogue {}", catalogue);
+    }
+
+    private void onSuccess(long latency) {
+        synchronized (latencies) {
+            latencies[latencyPosition] = latency;
+            latencyPosition = (latencyPosition + 1) % LATENCY_SAMPLES;
+            latencyCount = Math.min(latencyCount + 1, LATENCY_SAMPLES);
+        }
+        consecutiveFailures.set(0);
+        openUntil = 0;
+        trialRunning.set(false);
+    }
+
+    private void onFailure(CatalogueRequestConfiguration config, Exception error) {
+        if (isNotSent(error)) {
+            // the catalogue was not requested, a trial request can be sent by the next call
+            trialRunning.set(false);
+            return;
+        }
+        onFailure(config);
+    }
+
+    private static boolean isNotSent(Exception error) {
+        return error instanceof CatalogueUnavailableException && !((CatalogueUnavailableException) error).isTimeout();
+    }
+
+    private void onFailure(CatalogueRequestConfiguration config) {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (config.getCircuitBreakerThreshold() > 0 && (failures >= config.getCircuitBreakerThreshold() || trialRunning.get())) {
+            if (openUntil == 0 || trialRunning.get()) {
+                log.warn("Catalogue {} failed {} times, pausing requests for {} ms", catalogue, failures, config.getCircuitBreakerOpenDuration());
+            }
+            openUntil = System.currentTimeMillis() + config.getCircuitBreakerOpenDuration();
+        }
+        trialRunning.set(false);
+    }
+
+    /**
+     * Get the latency percentile of the last successful requests
+     *
+     * @return latency in nanoseconds or -1, if not enough requests were made yet
+     */
+    private long getLatencyPercentile(int percentile, int minSamples) {
+        long[] samples;
+        synchronized (latencies) {
+            if (latencyCount < Math.max(1, minSamples)) {
+                return -1;
+            }
+            samples = Arrays.copyOf(latencies, latencyCount);
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+        return samples[Math.max(0, Math.min(index, samples.length - 1))];
+    }
+
+    /**
+     * A request and the time it was sent. Without scheduler the request is sent when it is called.
+     */
+    private static final class GuardedRequest<T> implements Callable<T> {
+        private final Callable<T> request;
+        private volatile long sent;
+        private volatile long finished;
+
+        private GuardedRequest(Callable<T> request) {
+            this.request = request;
+        }
+
+        @Override
+        public T call() throws Exception {
+            GuardedRequest<?> outer = CURRENT_REQUEST.get();
+            CURRENT_REQUEST.set(this);
+            sent = System.nanoTime();
+            try {
+                T result = request.call();
+                finished = System.nanoTime();
+                return result;
+            } finally {
+                if (outer == null) {
+                    CURRENT_REQUEST.remove();
+                } else {
+                    CURRENT_REQUEST.set(outer);
+                }
+            }
+        }
+
+        private long getLatency() {
+            return finished - sent;
+        }
+    }
+}
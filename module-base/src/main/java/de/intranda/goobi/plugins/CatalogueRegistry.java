@@ -0,0 +1,177 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.goobi.production.plugin.interfaces.IOpacPlugin;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.unigoettingen.sub.search.opac.ConfigOpac;
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Index of the configured catalogues by process template and catalogue title. The index is dropped as soon as the opac configuration file changes.
+ * Opac plugins keep the state of the last search, so by default each request gets a new plugin instance. Only the instances of plugins that are
+ * explicitly configured as reusable are kept after the request, a small number of them per catalogue. Each instance is used by only one request at a
+ * time.
+ */
+@Log4j2
+public final class CatalogueRegistry {
+
+    private static final CatalogueRegistry INSTANCE = new CatalogueRegistry();
+
+    // plugins keeping the search values of the last request in their configuration must never be reused
+    private static final Set<String> STATEFUL_PLUGINS = Collections.singleton("intranda_opac_json");
+
+    private static final int MAX_IDLE_PLUGINS = 16;
+
+    private volatile long configModified = Long.MIN_VALUE;
+
+    private final Map<String, Map<String, ConfigOpacCatalogue>> cataloguesByTemplate = new ConcurrentHashMap<>();
+    private final Map<String, Queue<IOpacPlugin>> idlePlugins = new ConcurrentHashMap<>();
+    // class of the opac plugin of each catalogue, known after the first instance was created
+    private final Map<String, Class<?>> pluginTypes = new ConcurrentHashMap<>();
+    // instances that may still be used by an abandoned request
+    private final Set<IOpacPlugin> discardedPlugins = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private CatalogueRegistry() {
+    }
+
+    public static CatalogueRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Find the catalogue with the given title
+     *
+     * @param templateName name of the process template, catalogues can be restricted to some templates
+     * @param title the title of the catalogue
+     * @return the catalogue or null, if no catalogue with this title exists
+     */
+    public ConfigOpacCatalogue getCatalogue(String templateName, String title) {
+        checkConfiguration();
+        return cataloguesByTemplate.computeIfAbsent(templateName, this::createIndex).get(title);
+    }
+
+    /**
+     * Add a catalogue without reading the opac configuration, e.g. for benchmarks running without a Goobi installation. The catalogue is removed
+     * again when the opac configuration changes.
+     *
+     * @param templateName name of the process template the catalogue is used for
+     * @param coc the catalogue
+     */
+    void registerCatalogue(String templateName, ConfigOpacCatalogue coc) {
+        checkConfiguration();
+        cataloguesByTemplate.computeIfAbsent(templateName, k -> new ConcurrentHashMap<>()).put(coc.getTitle(), coc);
+    }
+
+    /**
+     * Get an opac plugin instance for the catalogue. The instance must be given back with
+     * {@link #releasePlugin(ConfigOpacCatalogue, IOpacPlugin, Set)} after the request.
+     *
+     * @param coc the catalogue
+     * @return an idle instance of a reusable plugin or a new one
+     */
+    public IOpacPlugin borrowPlugin(ConfigOpacCatalogue coc) {
+        Queue<IOpacPlugin> queue = idlePlugins.get(coc.getTitle());
+        IOpacPlugin plugin = queue == null ? null : queue.poll();
+        if (plugin == null) {
+            plugin = coc.getOpacPlugin();
+            if (plugin != null) {
+                pluginTypes.putIfAbsent(coc.getTitle(), plugin.getClass());
+            }
+        }
+        return plugin;
+    }
+
+    /**
+     * Give an opac plugin instance back after the request was finished. The instance is only kept for further requests if the plugin is contained
+     * in the given list of reusable plugins.
+     *
+     * @param coc the catalogue
+     * @param plugin the instance to give back
+     * @param reusablePlugins titles of the opac plugins that do not keep any state between requests
+     */
+    public void releasePlugin(ConfigOpacCatalogue coc, IOpacPlugin plugin, Set<String> reusablePlugins) {
+        if (coc == null || plugin == null || discardedPlugins.remove(plugin) || STATEFUL_PLUGINS.contains(plugin.getTitle())
+                || !reusablePlugins.contains(plugin.getTitle())) {
+            return;
+        }
+        Queue<IOpacPlugin> queue = idlePlugins.computeIfAbsent(coc.getTitle(), k -> new ConcurrentLinkedQueue<>());
+        if (queue.size() < MAX_IDLE_PLUGINS) {
+            queue.offer(plugin);
+        }
+    }
+
+    /**
+     * Get the class of the opac plugin of a catalogue, e.g. to check its capabilities. A new instance is only created if no instance was created
+     * for the catalogue before.
+     *
+     * @param coc the catalogue
+     * @return the class of the opac plugin or null, if the catalogue has no opac plugin
+     */
+    public Class<?> getPluginType(ConfigOpacCatalogue coc) {
+        Class<?> type = pluginTypes.get(coc.getTitle());
+        if (type == null) {
+            IOpacPlugin plugin = coc.getOpacPlugin();
+            if (plugin != null) {
+                type = plugin.getClass();
+                pluginTypes.putIfAbsent(coc.getTitle(), type);
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Mark an opac plugin instance as not reusable, e.g. because a request that was given up is still running. A later call of
+     * {@link #releasePlugin(ConfigOpacCatalogue, IOpacPlugin, Set)} for this instance is ignored.
+     *
+     * @param plugin the instance to discard
+     */
+    public void discardPlugin(IOpacPlugin plugin) {
+        if (plugin != null) {
+            discardedPlugins.add(plugin);
+        }
+    }
+
+    private Map<String, ConfigOpacCatalogue> createIndex(String templateName) {
+        Map<String, ConfigOpacCatalogue> index = new HashMap<>();
+        for (ConfigOpacCatalogue coc : ConfigOpac.getInstance().getAllCatalogues(templateName)) {
+            // if a title is used more than once, the last catalogue is used
+            index.put(coc.getTitle(), coc);
+        }
+        return index;
+    }
+
+    private void checkConfiguration() {
+        Path configFile = Paths.get(ConfigurationHelper.getInstance().getConfigurationFolder(), "goobi_opac.xml");
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(configFile).toMillis();
+        } catch (IOException e) {
+            modified = -1;
+        }
+        if (modified != configModified) {
+            synchronized (this) {
+                if (modified != configModified) {
+                    log.debug("Opac configuration changed, refreshing the catalogue index");
+                    cataloguesByTemplate.clear();
+                    idlePlugins.clear();
+                    pluginTypes.clear();
+                    configModified = modified;
+                }
+            }
+        }
+    }
+}
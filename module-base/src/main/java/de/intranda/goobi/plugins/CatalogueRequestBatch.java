@@ -0,0 +1,327 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.PluginReturnValue;
+
+import de.sub.goobi.helper.HelperSchritte;
+import de.sub.goobi.helper.enums.StepStatus;
+import de.sub.goobi.persistence.managers.MySQLHelper;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Bulk execution of the catalogue request for a larger list of processes. Each process is handled by its own plugin instance, using the
+ * configuration of the step with the given title. The processes are executed in parallel, the individual stages of each run are limited by the
+ * given {@link PipelineLimits}. The plugin uses it to update all processes of a Goobi batch, see {@link #runForBatch(Step)}. An instance does
+ * not keep the state of a run, so it can be used for several runs at the same time.
+ */
+@Log4j2
+public class CatalogueRequestBatch {
+
+    // ids of the Goobi batches that are updated at the moment
+    private static final Set<Integer> RUNNING_BATCHES = ConcurrentHashMap.newKeySet();
+
+    public enum Status {
+        SUCCEEDED,
+        FAILED,
+        // the catalogue request was not executed for the process
+        NOT_RUN
+    }
+
+    private final String stepTitle;
+    private final int parallelism;
+    private final PipelineLimits limits;
+
+    @Getter
+    @Setter
+    private Consumer<BatchProgress> progressListener;
+
+    /**
+     * Create a new batch
+     *
+     * @param stepTitle title of the step within the processes whose configuration shall be used
+     * @param parallelism number of processes that are handled at the same time
+     * @param limits limits for the individual stages of each run
+     */
+    public CatalogueRequestBatch(String stepTitle, int parallelism, PipelineLimits limits) {
+        this.stepTitle = stepTitle;
+        this.parallelism = Math.max(1, parallelism);
+        this.limits = limits == null ? PipelineLimits.UNLIMITED : limits;
+    }
+
+    /**
+     * Run the catalogue request for all processes matching the given filter
+     *
+     * @param filter sql filter as used by {@link ProcessManager#getIdsForFilter(String)}
+     * @return summary of all executions
+     */
+    public BatchSummary runForFilter(String filter) {
+        return run(ProcessManager.getIdsForFilter(filter), null);
+    }
+
+    /**
+     * Run the catalogue request for all processes of the Goobi batch of the given step. The step itself is executed as part of the batch, its
+     * status is left to the caller. The steps with the same title of the other processes are only executed if they are open. They are set in work
+     * before the run and closed or set to error afterwards, so that Goobi does not execute them again. Processes whose step is not open are
+     * reported as not run. If another run for the same Goobi batch is still in progress, only the process of the given step is executed, the
+     * other processes are left to the running batch.
+     *
+     * @param step the step that triggered the batch, its process must belong to a batch
+     * @return summary of all executions
+     */
+    public BatchSummary runForBatch(Step step) {
+        Integer batchId = step.getProzess().getBatch().getBatchId();
+        if (!RUNNING_BATCHES.add(batchId)) {
+            log.info("The processes of batch {} are already updated by another run, updating process {} only", batchId, step.getProcessId());
+            return run(Collections.singletonList(step.getProcessId()), step);
+        }
+        try {
+            return run(ProcessManager.getIdsForFilter("prozesse.batchID = " + batchId), step);
+        } finally {
+            RUNNING_BATCHES.remove(batchId);
+        }
+    }
+
+    /**
+     * Run the catalogue request for all given processes
+     *
+     * @param processIds ids of the processes to update
+     * @return summary of all executions, containing a result for each of the given processes
+     */
+    public BatchSummary run(List<Integer> processIds) {
+        return run(processIds, null);
+    }
+
+    /**
+     * Run the catalogue request for all given processes
+     *
+     * @param processIds ids of the processes to update
+     * @param triggeringStep if set, the steps of all other processes are only executed if they are open and they are closed afterwards
+     * @return summary of all executions, containing a result for each of the given processes
+     */
+    private BatchSummary run(List<Integer> processIds, Step triggeringStep) {
+        long start = System.currentTimeMillis();
+        int total = processIds.size();
+        log.info("Starting catalogue request for {} processes using step {}", total, stepTitle);
+
+        ProcessResult[] results = new ProcessResult[total];
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<ProcessResult>> futures = new ArrayList<>(total);
+            for (Integer processId : processIds) {
+                futures.add(executor.submit(() -> {
+                    ProcessResult result = runProcess(processId, triggeringStep);
+                    if (result.getStatus() == Status.FAILED) {
+                        failed.incrementAndGet();
+                    }
+                    reportProgress(new BatchProgress(total, done.incrementAndGet(), failed.get()));
+                    return result;
+                }));
+            }
+            for (int i = 0; i < total; i++) {
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    // errors are reported for the affected process only, the other processes are not stopped
+                    log.error("Exception during catalogue request for process {}", processIds.get(i), e.getCause());
+                    results[i] = new ProcessResult(processIds.get(i), null, Status.FAILED, PluginReturnValue.ERROR, String.valueOf(e.getCause()), 0);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Catalogue request batch got interrupted after {} of {} processes", done.get(), total);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // processes that were not finished before the batch was interrupted
+        for (int i = 0; i < total; i++) {
+            if (results[i] == null) {
+                results[i] = new ProcessResult(processIds.get(i), null, Status.NOT_RUN, null, "The batch was interrupted", 0);
+            }
+        }
+
+        long duration = System.currentTimeMillis() - start;
+        BatchSummary summary = new BatchSummary(Arrays.asList(results), duration);
+        log.info("Finished catalogue request for {} processes in {} ms: {} succeeded, {} failed, {} not run", total, duration,
+                summary.getSuccessCount(), summary.getFailureCount(), summary.getNotRunCount());
+        return summary;
+    }
+
+    private ProcessResult runProcess(Integer processId, Step triggeringStep) {
+        long start = System.currentTimeMillis();
+        boolean triggeringProcess = triggeringStep != null && processId.equals(triggeringStep.getProcessId());
+        Step step = triggeringProcess ? triggeringStep : null;
+        Process process = triggeringProcess ? triggeringStep.getProzess() : ProcessManager.getProcessById(processId);
+        if (process == null) {
+            return new ProcessResult(processId, null, Status.NOT_RUN, null, "Process not found", 0);
+        }
+        if (step == null) {
+            for (Step s : process.getSchritte()) {
+                if (stepTitle.equals(s.getTitel())) {
+                    step = s;
+                    break;
+                }
+            }
+        }
+        if (step == null) {
+            return new ProcessResult(processId, process.getTitel(), Status.NOT_RUN, null, "Step " + stepTitle + " not found", 0);
+        }
+        // within a Goobi batch only open steps are executed, otherwise they are already done or not yet reached
+        boolean closeStep = triggeringStep != null && !triggeringProcess;
+        if (closeStep) {
+            try {
+                if (step.getBearbeitungsstatusEnum() != StepStatus.OPEN || !claimStep(step)) {
+                    return new ProcessResult(processId, process.getTitel(), Status.NOT_RUN, null, "Step " + stepTitle + " is not open", 0);
+                }
+            } catch (SQLException e) {
+                log.error("Cannot set step {} of process {} in work", stepTitle, processId, e);
+                return new ProcessResult(processId, process.getTitel(), Status.NOT_RUN, null, "Step " + stepTitle + " cannot be set in work", 0);
+            }
+        }
+        PluginReturnValue value = PluginReturnValue.ERROR;
+        String message;
+        try {
+            CatalogueRequestPlugin plugin = new CatalogueRequestPlugin();
+            plugin.initialize(step, "");
+            value = plugin.run(limits);
+            message = PluginReturnValue.FINISH.equals(value) ? "Catalogue request finished" : "Catalogue request failed";
+        } catch (Exception e) {
+            log.error("Exception during catalogue request for process {}", processId, e);
+            message = e.getMessage();
+        } finally {
+            if (closeStep) {
+                closeStep(step, value);
+            }
+        }
+        Status status = PluginReturnValue.FINISH.equals(value) ? Status.SUCCEEDED : Status.FAILED;
+        return new ProcessResult(processId, process.getTitel(), status, value, message, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Set the step in work, if it is still open. The status is changed by a single conditional update, so that a step cannot be taken by the task
+     * manager of Goobi and by this batch at the same time.
+     *
+     * @return true if the step was open and is in work now, false if its status was changed by someone else
+     */
+    private static boolean claimStep(Step step) throws SQLException {
+        Connection connection = null;
+        try {
+            connection = MySQLHelper.getInstance().getConnection();
+            int updated = new QueryRunner().update(connection,
+                    "UPDATE schritte SET Bearbeitungsstatus = ? WHERE SchritteID = ? AND Bearbeitungsstatus = ?", StepStatus.INWORK.getValue(),
+                    step.getId(), StepStatus.OPEN.getValue());
+            if (updated == 0) {
+                return false;
+            }
+            step.setBearbeitungsstatusEnum(StepStatus.INWORK);
+            return true;
+        } finally {
+            if (connection != null) {
+                MySQLHelper.closeConnection(connection);
+            }
+        }
+    }
+
+    private static void closeStep(Step step, PluginReturnValue value) {
+        try {
+            HelperSchritte helper = new HelperSchritte();
+            if (PluginReturnValue.FINISH.equals(value)) {
+                helper.CloseStepObjectAutomatic(step);
+            } else {
+                helper.errorStep(step);
+            }
+        } catch (RuntimeException e) {
+            log.error("Cannot update the status of step {} of process {} after the catalogue request", step.getTitel(), step.getProcessId(), e);
+        }
+    }
+
+    private void reportProgress(BatchProgress progress) {
+        log.debug("Catalogue request batch: {} of {} processes done, {} failed", progress.getDone(), progress.getTotal(), progress.getFailed());
+        if (progressListener != null) {
+            progressListener.accept(progress);
+        }
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class BatchProgress {
+        private int total;
+        private int done;
+        private int failed;
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class ProcessResult {
+        private Integer processId;
+        private String processTitle;
+        private Status status;
+        // null if the catalogue request was not run
+        private PluginReturnValue result;
+        private String message;
+        private long durationMillis;
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class BatchSummary {
+        // one result per process, in the order of the given processes
+        private List<ProcessResult> results;
+        private long durationMillis;
+
+        public long getSuccessCount() {
+            return count(Status.SUCCEEDED);
+        }
+
+        public long getFailureCount() {
+            return count(Status.FAILED);
+        }
+
+        public long getNotRunCount() {
+            return count(Status.NOT_RUN);
+        }
+
+        public List<ProcessResult> getFailures() {
+            return getResults(Status.FAILED);
+        }
+
+        public List<ProcessResult> getResults(Status status) {
+            List<ProcessResult> selected = new ArrayList<>();
+            for (ProcessResult result : results) {
+                if (result.getStatus() == status) {
+                    selected.add(result);
+                }
+            }
+            return selected;
+        }
+
+        private long count(Status status) {
+            return results.stream().filter(r -> r.getStatus() == status).count();
+        }
+    }
+}
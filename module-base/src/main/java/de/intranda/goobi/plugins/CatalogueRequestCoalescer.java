@@ -0,0 +1,99 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ugh.dl.DigitalDocument;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.WriteException;
+import ugh.fileformats.mets.MetsMods;
+
+/**
+ * Combines identical catalogue requests that run at the same time. The first caller executes the request, all callers that ask for the same key
+ * while the request is running wait for its result instead of sending their own request. If the result was shared, every caller must work on its
+ * own copy of the record, see {@link #copyRecord(Fileformat, Prefs)}.
+ */
+final class CatalogueRequestCoalescer<V> {
+
+    private final Map<String, InFlight<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Execute the request or wait for the identical request that is already running
+     *
+     * @param key the key of the request, e.g. catalogue, field and value
+     * @param request the request to execute, if no identical request is running
+     * @return the result and the information, if it was shared with other callers
+     * @throws Exception the exception of the request
+     */
+    Result<V> execute(String key, Callable<V> request) throws Exception {
+        InFlight<V> created = new InFlight<>();
+        InFlight<V> call = inFlight.compute(key, (k, running) -> {
+            if (running == null) {
+                return created;
+            }
+            running.followers.incrementAndGet();
+            return running;
+        });
+
+        if (call != created) {
+            try {
+                return new Result<>(call.future.get(), true);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        V value;
+        try {
+            value = request.call();
+        } catch (Exception | Error e) {
+            inFlight.remove(key, call);
+            call.future.completeExceptionally(e);
+            throw e;
+        }
+        // no caller can join after the entry is removed, so the number of followers is final
+        inFlight.remove(key, call);
+        call.future.complete(value);
+        return new Result<>(value, call.followers.get() > 0);
+    }
+
+    /**
+     * Create an independent copy of a shared record, so that it can be changed without affecting the other callers
+     *
+     * @param ff the shared record
+     * @param prefs the ruleset
+     * @return the copy or null, if the record was null
+     * @throws PreferencesException
+     * @throws WriteException
+     */
+    static Fileformat copyRecord(Fileformat ff, Prefs prefs) throws PreferencesException, WriteException {
+        if (ff == null || ff.getDigitalDocument() == null) {
+            return ff;
+        }
+        DigitalDocument copy = ff.getDigitalDocument().copyDigitalDocument();
+        Fileformat result = new MetsMods(prefs);
+        result.setDigitalDocument(copy);
+        return result;
+    }
+
+    private static class InFlight<V> {
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        private final AtomicInteger followers = new AtomicInteger();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Result<V> {
+        private final V value;
+        // true if other callers got the same value
+        private final boolean shared;
+    }
+}
@@ -0,0 +1,265 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.SubnodeConfiguration;
+import org.apache.commons.lang.StringUtils;
+import org.goobi.beans.Step;
+import org.goobi.production.cli.helper.StringPair;
+
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.config.ConfigurationHelper;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Immutable snapshot of the plugin configuration for a combination of project and step. The snapshots are cached and only parsed again, if the
+ * configuration file was changed.
+ */
+@Log4j2
+@Getter
+public final class CatalogueRequestConfiguration {
+
+    private static final Map<String, CatalogueRequestConfiguration> SNAPSHOTS = new ConcurrentHashMap<>();
+
+    private final long fileModified;
+
+    private final String catalogue;
+    private final List<StringPair> configuredFields;
+    // parsed values of the catalogue fields, in the same order
+    private final List<FieldExpression> fieldExpressions;
+    private final FieldExpression catalogueExpression;
+    private final Set<String> fieldMetadataNames;
+    private final Pattern cleanupPattern;
+    private final boolean mergeRecords;
+    private final boolean analyseSubElements;
+    private final int subElementParallelism;
+    private final int subElementBatchSize;
+    private final boolean ignoreRequestIssues;
+    private final boolean ignoreMissingData;
+    private final Set<String> skipFields;
+    private final Set<String> includeFields;
+    private final MetadataMerger merger;
+    // titles of the opac plugins whose instances can be reused for further requests
+    private final Set<String> reusablePlugins;
+    private final boolean skipUnchangedRecords;
+    private final boolean compressRawData;
+    private final boolean fastIdentifierLookup;
+    private final boolean partialWrite;
+    private final boolean timingSummary;
+    private final boolean asyncExecution;
+    // maximum number of steps running in the background at the same time
+    private final int asyncMaxConcurrent;
+
+    // update all processes of a Goobi batch together
+    private final boolean batchExecution;
+    private final int batchParallelism;
+    private final PipelineLimits batchLimits;
+
+    // memory bounded merge
+    private final boolean memoryLimitEnabled;
+    private final int memoryBudget;
+    private final int memoryFactor;
+
+    private final boolean cacheEnabled;
+    // configured folder of the cache, null for the default folder
+    private final String cacheDirectory;
+    private final long cacheTtl;
+    private final int cacheMaxEntries;
+    private final boolean cacheServeStale;
+
+    // keep the anchor records of multi-volume works in memory
+    private final boolean anchorCacheEnabled;
+    private final long anchorCacheTtl;
+
+    private final String offlineIndexFile;
+    private final String offlineIndexFormat;
+    private final String offlineIndexSearchField;
+    private final String offlineIndexIdentifierField;
+
+    private final long requestTimeout;
+    private final boolean hedgingEnabled;
+    private final int hedgingPercentile;
+    private final int hedgingMinSamples;
+    private final int circuitBreakerThreshold;
+    private final long circuitBreakerOpenDuration;
+
+    // limits of the shared request scheduler for all catalogues and for single catalogues
+    private final CatalogueRequestScheduler.Settings schedulerSettings;
+    private final Map<String, CatalogueRequestScheduler.Settings> schedulerCatalogueSettings;
+
+    /**
+     * Get the configuration for the given step. The configuration file is only parsed, if no snapshot exists for the project and step or if the
+     * file was modified since the snapshot was created.
+     *
+     * @param title the plugin title
+     * @param step the step to get the configuration for
+     * @return the configuration snapshot
+     */
+    public static CatalogueRequestConfiguration getInstance(String title, Step step) {
+        long modified = getLastModified(title);
+        String key = step.getProzess().getProjekt().getTitel() + '\u0000' + step.getTitel();
+        CatalogueRequestConfiguration snapshot = SNAPSHOTS.get(key);
+        if (snapshot == null || snapshot.fileModified != modified) {
+            log.debug("Reading configuration of {} for step {}", title, step.getTitel());
+            snapshot = new CatalogueRequestConfiguration(ConfigPlugins.getProjectAndStepConfig(title, step), modified);
+            SNAPSHOTS.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Create a configuration from the given configuration element without caching it
+     *
+     * @param myconfig the configuration element, using the XPath expression engine
+     * @return the configuration
+     */
+    static CatalogueRequestConfiguration create(SubnodeConfiguration myconfig) {
+        return new CatalogueRequestConfiguration(myconfig, -1);
+    }
+
+    private static long getLastModified(String title) {
+        Path configFile = Paths.get(ConfigurationHelper.getInstance().getConfigurationFolder(), "plugin_" + title + ".xml");
+        try {
+            return Files.getLastModifiedTime(configFile).toMillis();
+        } catch (IOException e) {
+            // no file, the default configuration is used
+            return -1;
+        }
+    }
+
+    private CatalogueRequestConfiguration(SubnodeConfiguration myconfig, long fileModified) {
+        this.fileModified = fileModified;
+
+        catalogue = myconfig.getString("catalogue", "GBV").trim();
+        List<StringPair> fields = new ArrayList<>();
+        for (HierarchicalConfiguration field : myconfig.configurationsAt("catalogueField")) {
+            String fieldname = field.getString("@fieldName");
+            String metadataName = field.getString("@fieldValue");
+            fields.add(new StringPair(fieldname, metadataName));
+        }
+        if (fields.isEmpty()) {
+            fields.add(new StringPair("12", "$(meta.CatalogIDDigital)"));
+        }
+        configuredFields = Collections.unmodifiableList(fields);
+        List<FieldExpression> expressions = new ArrayList<>(fields.size());
+        Set<String> metadataNames = new HashSet<>();
+        for (StringPair field : fields) {
+            FieldExpression expression = FieldExpression.compile(field.getTwo());
+            expressions.add(expression);
+            metadataNames.addAll(expression.getMetadataNames());
+        }
+        fieldExpressions = Collections.unmodifiableList(expressions);
+        catalogueExpression = FieldExpression.compile(catalogue);
+        metadataNames.addAll(catalogueExpression.getMetadataNames());
+        fieldMetadataNames = Collections.unmodifiableSet(metadataNames);
+
+        String cleanupValue = myconfig.getString("cleanupValue", "");
+        cleanupPattern = StringUtils.isNotBlank(cleanupValue) ? Pattern.compile(cleanupValue) : null;
+        mergeRecords = myconfig.getBoolean("mergeRecords", false);
+        analyseSubElements = myconfig.getBoolean("analyseSubElements", false);
+        subElementParallelism = myconfig.getInt("subElementParallelism", 4);
+        subElementBatchSize = myconfig.getInt("subElementBatchSize", 50);
+        ignoreRequestIssues = myconfig.getBoolean("ignoreRequestIssues", false);
+        ignoreMissingData = myconfig.getBoolean("ignoreMissingData", false);
+        skipFields = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(myconfig.getStringArray("skipField"))));
+        includeFields = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(myconfig.getStringArray("includeField"))));
+        merger = new MetadataMerger(skipFields, includeFields);
+        reusablePlugins = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(myconfig.getStringArray("reusableOpacPlugin"))));
+        skipUnchangedRecords = myconfig.getBoolean("skipUnchangedRecords", false);
+        compressRawData = "gzip".equalsIgnoreCase(myconfig.getString("rawDataCompression", "none"));
+        fastIdentifierLookup = myconfig.getBoolean("fastIdentifierLookup", true);
+        partialWrite = myconfig.getBoolean("partialWrite", false);
+        timingSummary = myconfig.getBoolean("timingSummary", false);
+        asyncExecution = myconfig.getBoolean("asyncExecution", false);
+        asyncMaxConcurrent = myconfig.getInt("asyncExecution/@maxConcurrent", 16);
+
+        batchExecution = myconfig.getBoolean("batchExecution/@enabled", false);
+        batchParallelism = Math.max(1, myconfig.getInt("batchExecution/@parallelism", 4));
+        batchLimits = new PipelineLimits(myconfig.getInt("batchExecution/@read", 0), myconfig.getInt("batchExecution/@request", 0),
+                myconfig.getInt("batchExecution/@merge", 0), myconfig.getInt("batchExecution/@write", 0));
+
+        memoryLimitEnabled = myconfig.getBoolean("memoryLimit/@enabled", false);
+        memoryBudget = Math.max(1, myconfig.getInt("memoryLimit/@budget", 1024));
+        memoryFactor = Math.max(1, myconfig.getInt("memoryLimit/@factor", 10));
+
+        cacheEnabled = myconfig.getBoolean("cache/@enabled", false);
+        cacheDirectory = myconfig.getString("cache/@directory", null);
+        cacheTtl = myconfig.getLong("cache/@ttl", 86400);
+        cacheMaxEntries = myconfig.getInt("cache/@maxEntries", 10000);
+        cacheServeStale = myconfig.getBoolean("cache/@serveStale", true);
+
+        anchorCacheEnabled = myconfig.getBoolean("anchorCache/@enabled", false);
+        anchorCacheTtl = myconfig.getLong("anchorCache/@ttl", 3600);
+
+        offlineIndexFormat = myconfig.getString("offlineIndex/@format", OfflineCatalogueIndex.FORMAT_PICAXML).trim().toLowerCase();
+        if (myconfig.getBoolean("offlineIndex/@enabled", false) && StringUtils.isNotBlank(myconfig.getString("offlineIndex/@file"))) {
+            if (OfflineCatalogueIndex.FORMAT_PICAXML.equals(offlineIndexFormat)) {
+                offlineIndexFile = myconfig.getString("offlineIndex/@file").trim();
+            } else {
+                // no opac plugin converts other records yet
+                log.error("The catalogue export {} is not used, its format {} is not supported. Only picaxml exports can be used.",
+                        myconfig.getString("offlineIndex/@file"), offlineIndexFormat);
+                offlineIndexFile = null;
+            }
+        } else {
+            offlineIndexFile = null;
+        }
+        offlineIndexSearchField = myconfig.getString("offlineIndex/@searchField", "12");
+        offlineIndexIdentifierField = myconfig.getString("offlineIndex/@identifierField", "id");
+
+        requestTimeout = myconfig.getLong("requestTimeout", 0);
+        hedgingEnabled = myconfig.getBoolean("hedging/@enabled", false);
+        hedgingPercentile = Math.max(1, Math.min(100, myconfig.getInt("hedging/@percentile", 95)));
+        hedgingMinSamples = myconfig.getInt("hedging/@minSamples", 20);
+        circuitBreakerThreshold = myconfig.getInt("circuitBreaker/@failureThreshold", 0);
+        circuitBreakerOpenDuration = myconfig.getLong("circuitBreaker/@openDuration", 60000);
+
+        schedulerSettings = new CatalogueRequestScheduler.Settings(myconfig.getInt("scheduler/@maxConcurrentRequests", 0),
+                myconfig.getDouble("scheduler/@requestsPerSecond", 0), myconfig.getInt("scheduler/@maxQueueDepth", 0));
+        Map<String, CatalogueRequestScheduler.Settings> catalogueSettings = new HashMap<>();
+        for (HierarchicalConfiguration catalogueConfig : myconfig.configurationsAt("scheduler/catalogue")) {
+            catalogueSettings.put(catalogueConfig.getString("@name", ""),
+                    new CatalogueRequestScheduler.Settings(catalogueConfig.getInt("@maxConcurrentRequests", schedulerSettings.getMaxConcurrentRequests()),
+                            catalogueConfig.getDouble("@requestsPerSecond", schedulerSettings.getRequestsPerSecond()),
+                            catalogueConfig.getInt("@maxQueueDepth", schedulerSettings.getMaxQueueDepth())));
+        }
+        schedulerCatalogueSettings = Collections.unmodifiableMap(catalogueSettings);
+    }
+
+    /**
+     * Get the folder of the response cache
+     *
+     * @return the configured folder or the folder 'catalogue_request_cache' within the temporary folder of Goobi
+     */
+    public String getCacheDirectory() {
+        if (cacheDirectory != null) {
+            return cacheDirectory;
+        }
+        return Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "catalogue_request_cache").toString();
+    }
+
+    /**
+     * Get the limits of the request scheduler for a catalogue
+     *
+     * @param catalogue the title of the catalogue
+     * @return the limits configured for this catalogue or the general limits
+     */
+    CatalogueRequestScheduler.Settings getSchedulerSettings(String catalogue) {
+        return schedulerCatalogueSettings.getOrDefault(catalogue, schedulerSettings);
+    }
+}
@@ -0,0 +1,248 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Collects the durations and results of all catalogue request runs of this server. The values are kept in memory since the last start or reset and
+ * are published via JMX, so that they can be read with any JMX client or monitoring agent. Durations are recorded in histograms with fixed
+ * buckets, recording a value does not allocate any memory.
+ */
+@Log4j2
+public final class CatalogueRequestMetrics implements CatalogueRequestMetricsMXBean {
+
+    public static final String OBJECT_NAME = "de.intranda.goobi.plugins:type=CatalogueRequestMetrics";
+
+    // upper bounds of the buckets for durations in milliseconds
+    private static final long[] DURATION_BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000, 300000 };
+    // upper bounds of the buckets for file sizes in bytes
+    private static final long[] SIZE_BUCKETS = { 10240, 51200, 102400, 512000, 1048576, 5242880, 10485760, 52428800, 104857600, 524288000 };
+    // upper bounds of the buckets for memory usage in bytes
+    private static final long[] MEMORY_BUCKETS = { 1048576, 5242880, 10485760, 52428800, 104857600, 262144000, 524288000, 1073741824, 2147483648L,
+            4294967296L, 8589934592L };
+    // upper bounds of the buckets for the number of merged fields
+    private static final long[] COUNT_BUCKETS = { 0, 5, 10, 20, 50, 100, 200, 500, 1000, 5000, 10000 };
+
+    private static final CatalogueRequestMetrics INSTANCE = new CatalogueRequestMetrics();
+
+    private final LongAdder runs = new LongAdder();
+    private final Map<RunStatistics.Phase, Histogram> phases = new ConcurrentHashMap<>();
+    private final Map<String, Counters> catalogues = new ConcurrentHashMap<>();
+    private volatile Histogram metsFileSizes = new Histogram(SIZE_BUCKETS);
+    private volatile Histogram mergedFields = new Histogram(COUNT_BUCKETS);
+    private volatile Histogram reservedMemory = new Histogram(MEMORY_BUCKETS);
+    private volatile Histogram threadAllocations = new Histogram(MEMORY_BUCKETS);
+
+    private CatalogueRequestMetrics() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // the class can be loaded again after a redeployment of the plugin
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException | SecurityException e) {
+            log.warn("Cannot register the catalogue request metrics as {}", OBJECT_NAME, e);
+        }
+    }
+
+    public static CatalogueRequestMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Add the values of a finished run
+     *
+     * @param statistics the values of the run
+     */
+    void record(RunStatistics statistics) {
+        runs.increment();
+        for (Map.Entry<RunStatistics.Phase, Long> entry : statistics.getDurations().entrySet()) {
+            phases.computeIfAbsent(entry.getKey(), k -> new Histogram(DURATION_BUCKETS)).add(TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+        }
+        if (statistics.getCatalogue() != null && statistics.getOutcome() != null) {
+            catalogues.computeIfAbsent(statistics.getCatalogue(), k -> new Counters()).add(statistics.getOutcome());
+        }
+        if (statistics.getMetsFileSize() >= 0) {
+            metsFileSizes.add(statistics.getMetsFileSize());
+        }
+        mergedFields.add(statistics.getMergedFields());
+        if (statistics.getReservedMemory() >= 0) {
+            reservedMemory.add(statistics.getReservedMemory());
+        }
+        if (statistics.getThreadAllocatedBytes() >= 0) {
+            threadAllocations.add(statistics.getThreadAllocatedBytes());
+        }
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getPhaseDurations() {
+        Map<String, HistogramSnapshot> result = new TreeMap<>();
+        phases.forEach((phase, histogram) -> result.put(phase.name(), histogram.snapshot()));
+        return result;
+    }
+
+    @Override
+    public Map<String, CatalogueCounters> getCatalogues() {
+        Map<String, CatalogueCounters> result = new TreeMap<>();
+        catalogues.forEach((title, counters) -> result.put(title, counters.snapshot()));
+        return result;
+    }
+
+    @Override
+    public HistogramSnapshot getMetsFileSizes() {
+        return metsFileSizes.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getMergedFields() {
+        return mergedFields.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getReservedMemory() {
+        return reservedMemory.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getThreadAllocations() {
+        return threadAllocations.snapshot();
+    }
+
+    @Override
+    public void reset() {
+        runs.reset();
+        phases.clear();
+        catalogues.clear();
+        metsFileSizes = new Histogram(SIZE_BUCKETS);
+        mergedFields = new Histogram(COUNT_BUCKETS);
+        reservedMemory = new Histogram(MEMORY_BUCKETS);
+        threadAllocations = new Histogram(MEMORY_BUCKETS);
+    }
+
+    /**
+     * Values of a histogram at the time of the request. The percentiles are the upper bounds of the buckets containing them.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class HistogramSnapshot {
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final double mean;
+        private final long median;
+        private final long percentile95;
+        private final long percentile99;
+    }
+
+    /**
+     * Results of the requests to a catalogue
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class CatalogueCounters {
+        private final long hits;
+        private final long misses;
+        private final long errors;
+    }
+
+    /**
+     * Histogram with fixed buckets. A value belongs to the first bucket whose upper bound is not smaller than the value.
+     */
+    static class Histogram {
+        private final long[] bounds;
+        // one additional bucket for all values above the last bound
+        private final AtomicLongArray buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void add(long value) {
+            int index = 0;
+            while (index < bounds.length && value > bounds[index]) {
+                index++;
+            }
+            buckets.incrementAndGet(index);
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] values = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = buckets.get(i);
+                total += values[i];
+            }
+            long maximum = max.get();
+            long totalSum = sum.sum();
+            return new HistogramSnapshot(total, totalSum, maximum, total == 0 ? 0 : (double) totalSum / total, percentile(values, total, 0.5, maximum),
+                    percentile(values, total, 0.95, maximum), percentile(values, total, 0.99, maximum));
+        }
+
+        private long percentile(long[] values, long total, double percentile, long maximum) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < values.length; i++) {
+                seen += values[i];
+                if (seen >= rank) {
+                    return i < bounds.length ? Math.min(bounds[i], maximum) : maximum;
+                }
+            }
+            return maximum;
+        }
+    }
+
+    private static class Counters {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        private void add(RunStatistics.Outcome outcome) {
+            switch (outcome) {
+                case HIT:
+                    hits.increment();
+                    break;
+                case MISS:
+                    misses.increment();
+                    break;
+                default:
+                    errors.increment();
+                    break;
+            }
+        }
+
+        private CatalogueCounters snapshot() {
+            return new CatalogueCounters(hits.sum(), misses.sum(), errors.sum());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link CatalogueRequestMetrics}, registered as <code>de.intranda.goobi.plugins:type=CatalogueRequestMetrics</code>
+ */
+public interface CatalogueRequestMetricsMXBean {
+
+    /**
+     * @return number of finished catalogue request runs
+     */
+    long getRuns();
+
+    /**
+     * @return the durations of the phases in milliseconds, by phase name
+     */
+    Map<String, CatalogueRequestMetrics.HistogramSnapshot> getPhaseDurations();
+
+    /**
+     * @return the number of hits, misses and errors, by catalogue title
+     */
+    Map<String, CatalogueRequestMetrics.CatalogueCounters> getCatalogues();
+
+    /**
+     * @return the size of the METS files in bytes
+     */
+    CatalogueRequestMetrics.HistogramSnapshot getMetsFileSizes();
+
+    /**
+     * @return the number of fields merged into the METS files per run
+     */
+    CatalogueRequestMetrics.HistogramSnapshot getMergedFields();
+
+    /**
+     * @return the memory in bytes reserved from the memory budget per run
+     */
+    CatalogueRequestMetrics.HistogramSnapshot getReservedMemory();
+
+    /**
+     * @return the total number of bytes allocated on the heap by the thread executing the run, without the threads requesting the sub elements.
+     *         This includes objects that were released during the run, so it is not the memory in use
+     */
+    CatalogueRequestMetrics.HistogramSnapshot getThreadAllocations();
+
+    /**
+     * Reset all values
+     */
+    void reset();
+}
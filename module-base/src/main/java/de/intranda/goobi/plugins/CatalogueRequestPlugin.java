@@ -1,20 +1,27 @@
 package de.intranda.goobi.plugins;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.apache.commons.configuration.SubnodeConfiguration;
 import org.apache.commons.lang.StringUtils;
 import org.goobi.beans.GoobiProperty;
 import org.goobi.beans.Process;
@@ -29,27 +36,30 @@ import org.goobi.production.plugin.interfaces.IOpacPlugin;
 import org.goobi.production.plugin.interfaces.IOpacPluginVersion2;
 import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 
-import de.sub.goobi.config.ConfigPlugins;
+import de.intranda.goobi.plugins.PipelineLimits.Stage;
+import de.intranda.goobi.plugins.RunStatistics.Outcome;
+import de.intranda.goobi.plugins.RunStatistics.Phase;
+import de.sub.goobi.config.ConfigurationHelper;
 import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.HelperSchritte;
 import de.sub.goobi.helper.StorageProvider;
 import de.sub.goobi.helper.VariableReplacer;
-import de.unigoettingen.sub.search.opac.ConfigOpac;
 import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
-import ugh.dl.Corporate;
 import ugh.dl.DigitalDocument;
 import ugh.dl.DocStruct;
 import ugh.dl.Fileformat;
 import ugh.dl.Metadata;
-import ugh.dl.MetadataGroup;
 import ugh.dl.MetadataType;
-import ugh.dl.Person;
 import ugh.dl.Prefs;
-import ugh.exceptions.IncompletePersonObjectException;
 import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.fileformats.mets.MetsMods;
 
 @PluginImplementation
 @Log4j2
@@ -69,62 +79,209 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
     protected Process process;
     protected Prefs prefs;
 
-    protected String configCatalogue = "";
-    private boolean configIgnoreMissingData = false;
-    private boolean configIgnoreRequestIssues = false;
-    private boolean configMergeRecords = false;
-    private boolean configAnalyseSubElements = false;
-    private List<String> configSkipFields = null;
-    private List<String> configIncludeFields = null;
-    private String configCleanupValue = "";
+    private static final String RECORD_FINGERPRINT_FILE = "catalogue_request_fingerprint.txt";
 
-    private List<StringPair> configuredFields;
+    private static final CatalogueRequestCoalescer<FetchedRecord> RUNNING_REQUESTS = new CatalogueRequestCoalescer<>();
+
+    // anchor records are requested by their identifier
+    private static final String ANCHOR_SEARCH_FIELD = "12";
+
+    private CatalogueRequestConfiguration config;
+
+    // durations and results of the current run
+    private RunStatistics statistics = new RunStatistics();
+    // memory reserved for the current run
+    private MemoryBudget.Reservation memoryReservation;
 
     /**
-     * run this plugin and execute the catalogue update
+     * run this plugin and execute the catalogue update. If the asynchronous execution is enabled for automatic steps, the update is executed in the
+     * background and the step is closed afterwards.
      */
     @Override
     public PluginReturnValue run() {
-        log.debug("Starting catalogue request using catalogue: {} for process {}", configCatalogue, process.getTitel());
+        if (config.isAsyncExecution() && step.isTypAutomatisch()) {
+            return runAsync();
+        }
+        return runStep();
+    }
 
-        // first read the original METS file for the process
-        Fileformat ffOld = null;
-        DigitalDocument dd = null;
-        DocStruct topstructOld = null;
+    /**
+     * Execute the catalogue update for this step. If the batch execution is enabled and the process belongs to a Goobi batch, all processes of the
+     * batch are updated together.
+     * 
+     * @return the result of the catalogue update of this process
+     */
+    private PluginReturnValue runStep() {
+        if (config.isBatchExecution() && process.getBatch() != null) {
+            return runBatch();
+        }
+        return run(PipelineLimits.UNLIMITED);
+    }
+
+    /**
+     * Update all processes of the Goobi batch in parallel, see {@link CatalogueRequestBatch#runForBatch(Step)}. A summary is added to the journal
+     * of this process.
+     * 
+     * @return the result of the catalogue update of this process
+     */
+    private PluginReturnValue runBatch() {
+        CatalogueRequestBatch batch = new CatalogueRequestBatch(step.getTitel(), config.getBatchParallelism(), config.getBatchLimits());
+        CatalogueRequestBatch.BatchSummary summary = batch.runForBatch(step);
+
+        PluginReturnValue result = PluginReturnValue.ERROR;
+        StringBuilder message = new StringBuilder("Catalogue request for batch ").append(process.getBatch().getBatchId())
+                .append(": ")
+                .append(summary.getSuccessCount())
+                .append(" succeeded, ")
+                .append(summary.getFailureCount())
+                .append(" failed, ")
+                .append(summary.getNotRunCount())
+                .append(" not run");
+        for (CatalogueRequestBatch.ProcessResult processResult : summary.getResults()) {
+            if (process.getId().equals(processResult.getProcessId())) {
+                if (processResult.getResult() != null) {
+                    result = processResult.getResult();
+                }
+            } else if (processResult.getStatus() != CatalogueRequestBatch.Status.SUCCEEDED) {
+                message.append("\n")
+                        .append(processResult.getProcessTitle() == null ? processResult.getProcessId() : processResult.getProcessTitle())
+                        .append(": ")
+                        .append(processResult.getStatus())
+                        .append(" (")
+                        .append(processResult.getMessage())
+                        .append(')');
+            }
+        }
+        Helper.addMessageToProcessJournal(process.getId(), summary.getFailureCount() > 0 ? LogType.ERROR : LogType.INFO, message.toString());
+        return result;
+    }
 
-        DocStruct anchorOld = null;
-        DocStruct physOld = null;
+    /**
+     * Start the catalogue update in the background, the step is closed or set to error when it is finished. If too many updates are already
+     * running in the background, the update is executed directly.
+     * 
+     * @return WAIT if the update was started, otherwise the result of the synchronous execution
+     */
+    private PluginReturnValue runAsync() {
+        try {
+            AsyncStepExecutor.submit(() -> {
+                PluginReturnValue result = PluginReturnValue.ERROR;
+                try {
+                    result = runStep();
+                } catch (RuntimeException e) {
+                    log.error("Exception during the catalogue request for process {}", process.getTitel(), e);
+                    Helper.addMessageToProcessJournal(process.getId(), LogType.ERROR, "Exception during the catalogue request: " + e.getMessage());
+                } finally {
+                    completeStep(result);
+                }
+            }, config.getAsyncMaxConcurrent());
+            return PluginReturnValue.WAIT;
+        } catch (RejectedExecutionException e) {
+            log.debug("Cannot start the catalogue request for process {} in the background, running it directly: {}", process.getTitel(),
+                    e.getMessage());
+            return runStep();
+        }
+    }
+
+    /**
+     * Close the step after a catalogue update running in the background or set it to error
+     */
+    private void completeStep(PluginReturnValue result) {
         try {
-            ffOld = process.readMetadataFile();
+            HelperSchritte helper = new HelperSchritte();
+            if (PluginReturnValue.FINISH.equals(result)) {
+                helper.CloseStepObjectAutomatic(step);
+            } else {
+                helper.errorStep(step);
+            }
+        } catch (RuntimeException e) {
+            log.error("Cannot update the status of step {} of process {} after the catalogue request", step.getTitel(), process.getTitel(), e);
+        }
+    }
+
+    /**
+     * run the catalogue update and respect the given concurrency limits for the individual stages
+     * 
+     * @param limits the limits to use for reading, requesting, merging and writing
+     * @return the result of the catalogue update
+     */
+    public PluginReturnValue run(PipelineLimits limits) {
+        statistics = new RunStatistics();
+        long start = statistics.start();
+        long allocatedBefore = RunStatistics.getCurrentThreadAllocatedBytes();
+        PluginReturnValue result = PluginReturnValue.ERROR;
+        try {
+            result = runCatalogueRequest(limits);
+            return result;
+        } finally {
+            if (memoryReservation != null) {
+                memoryReservation.close();
+                memoryReservation = null;
+            }
+            statistics.stop(Phase.TOTAL, start);
+            long allocatedAfter = RunStatistics.getCurrentThreadAllocatedBytes();
+            if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+                statistics.setThreadAllocatedBytes(allocatedAfter - allocatedBefore);
+            }
+            finishStatistics();
+        }
+    }
+
+    private PluginReturnValue runCatalogueRequest(PipelineLimits limits) {
+        log.debug("Starting catalogue request using catalogue: {} for process {}", config.getCatalogue(), process.getTitel());
+
+        // resolve the catalogue fields, if possible without reading the complete METS file
+        long identifierStart = statistics.start();
+        boolean documentRequired = config.getCatalogueExpression().isDocumentRequired();
+        for (FieldExpression expression : config.getFieldExpressions()) {
+            documentRequired = documentRequired || expression.isDocumentRequired();
+        }
+        FieldExpression.MetadataSource metadataSource = null;
+        if (config.isFastIdentifierLookup() && !documentRequired) {
+            try {
+                metadataSource = MetsIdentifierReader.read(Paths.get(process.getMetadataFilePath()), config.getFieldMetadataNames());
+            } catch (Exception e) {
+                log.debug("Cannot resolve the catalogue fields of process {} from the METS file", process.getTitel(), e);
+            }
+        }
+        statistics.stop(Phase.IDENTIFIERS, identifierStart);
+
+        // otherwise read the original METS file for the process first
+        Fileformat ffOld = null;
+        DigitalDocument ddOld = null;
+        if (metadataSource == null) {
+            ffOld = readOldMetadata(limits);
             if (ffOld == null) {
-                log.error("Metadata file is not readable for process with ID " + step.getProcessId());
-                Helper.setFehlerMeldung("Metadata file is not readable for process with ID " + step.getProcessId());
                 return PluginReturnValue.ERROR;
             }
-            dd = ffOld.getDigitalDocument();
-            topstructOld = dd.getLogicalDocStruct();
-            if (topstructOld.getType().isAnchor()) {
-                anchorOld = topstructOld;
-                topstructOld = topstructOld.getAllChildren().get(0);
+            try {
+                ddOld = ffOld.getDigitalDocument();
+            } catch (PreferencesException e) {
+                log.error("An exception occurred while reading the metadata file for process with ID " + step.getProcessId(), e);
+                Helper.setFehlerMeldung("An exception occurred while reading the metadata file for process with ID " + step.getProcessId(), e);
+                return PluginReturnValue.ERROR;
             }
-            physOld = dd.getPhysicalDocStruct();
+            metadataSource = FieldExpression.of(ddOld);
+        }
 
-        } catch (Exception e) {
-            log.error("An exception occurred while reading the metadata file for process with ID " + step.getProcessId(), e);
-            Helper.setFehlerMeldung("An exception occurred while reading the metadata file for process with ID " + step.getProcessId(), e);
-            return PluginReturnValue.ERROR;
+        // the VariableReplacer is only needed for expressions containing other variables than metadata, create it once for all of them
+        boolean replacerRequired = !config.getCatalogueExpression().isCompiled();
+        for (FieldExpression expression : config.getFieldExpressions()) {
+            replacerRequired = replacerRequired || !expression.isCompiled();
         }
+        VariableReplacer replacer = replacerRequired ? new VariableReplacer(ddOld, prefs, step.getProzess(), step) : null;
+
+        identifierStart = statistics.start();
+        List<StringPair> valueList = new ArrayList<>(config.getConfiguredFields().size());
+        for (int i = 0; i < config.getConfiguredFields().size(); i++) {
+            StringPair entry = config.getConfiguredFields().get(i);
+            FieldExpression expression = config.getFieldExpressions().get(i);
 
-        // create a VariableReplacer to transform the identifier field from the configuration into a real value
-        VariableReplacer replacer = new VariableReplacer(dd, prefs, step.getProzess(), step);
-        List<StringPair> valueList = new ArrayList<>(configuredFields.size());
-        for (StringPair entry : configuredFields) {
+            String value = evaluate(expression, metadataSource, replacer);
 
-            // get the value and clean it up using a regular expression before it is used for the catalogue request
-            String value = replacer.replace(entry.getTwo());
-            if (StringUtils.isNotBlank(configCleanupValue)) {
-                Pattern pattern = Pattern.compile(configCleanupValue);
-                Matcher matcher = pattern.matcher(value);
+            // clean up the value using a regular expression before it is used for the catalogue request
+            if (config.getCleanupPattern() != null) {
+                Matcher matcher = config.getCleanupPattern().matcher(value);
                 if (matcher.find()) {
                     value = matcher.group();
                 }
@@ -136,9 +293,10 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
                 log.debug("Using field {} and value {} for the catalogue request", entry.getOne(), value);
             }
         }
+        statistics.stop(Phase.IDENTIFIERS, identifierStart);
 
         if (valueList.isEmpty()) {
-            if (configIgnoreMissingData) {
+            if (config.isIgnoreMissingData()) {
                 log.debug("No catalogue identifier found. No automatic catalogue request possible. Move on with workflow.");
                 Helper.setMeldung("No catalogue identifier found. No automatic catalogue request possible.");
                 Helper.addMessageToProcessJournal(step.getProzess().getId(), LogType.INFO,
@@ -165,19 +323,24 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
 
         // request the wished catalogue with the correct identifier
         Fileformat ffNew = null;
+        String recordFingerprint = null;
         IOpacPlugin myImportOpac = null;
         ConfigOpacCatalogue coc = null;
 
+        if (!enterStage(limits, Stage.REQUEST)) {
+            return PluginReturnValue.ERROR;
+        }
+        long requestStart = statistics.start();
         try {
-            String catalogue = replacer.replace(configCatalogue);
-            for (ConfigOpacCatalogue configOpacCatalogue : ConfigOpac.getInstance().getAllCatalogues(processTemplateName)) {
-                if (configOpacCatalogue.getTitle().equals(catalogue)) {
-                    myImportOpac = configOpacCatalogue.getOpacPlugin();
-                    coc = configOpacCatalogue;
-                }
+            String catalogue = evaluate(config.getCatalogueExpression(), metadataSource, replacer);
+            statistics.setCatalogue(catalogue);
+            coc = CatalogueRegistry.getInstance().getCatalogue(processTemplateName, catalogue);
+            if (coc != null) {
+                myImportOpac = CatalogueRegistry.getInstance().borrowPlugin(coc);
             }
             if (myImportOpac == null) {
-                if (configIgnoreMissingData) {
+                statistics.setOutcome(Outcome.ERROR);
+                if (config.isIgnoreMissingData()) {
                     log.debug(
                             "Opac plugin for catalogue " + catalogue + " not found. No automatic catalogue request possible. Move on with workflow.");
                     Helper.setMeldung("No catalogue identifier found. No automatic catalogue request possible.");
@@ -192,43 +355,54 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
                     return PluginReturnValue.ERROR;
                 }
             }
-            if ("intranda_opac_json".equals(myImportOpac.getTitle())) {
-
-                ffNew = opacSearch(valueList, myImportOpac, coc);
-
-            } else {
-                ffNew = myImportOpac.search(valueList.get(0).getOne(), valueList.get(0).getTwo(), coc, prefs);
-                if (myImportOpac instanceof IOpacPluginVersion2) {
-                    IOpacPluginVersion2 opacPluginV2 = (IOpacPluginVersion2) myImportOpac;
-                    // check if the plugin created files
-                    if (opacPluginV2.getRecordPathList() != null) {
-                        for (Path r : opacPluginV2.getRecordPathList()) {
-                            // if this is the case, move the files to the import/ folder
-                            Path destination = Paths.get(process.getImportDirectory(), r.getFileName().toString());
-                            StorageProvider.getInstance().createDirectories(destination.getParent());
-                            StorageProvider.getInstance().move(r, destination);
-                        }
-                    }
-                    // check if the plugin provides the data as string
-                    if (opacPluginV2.getRawDataAsString() != null) {
-                        // if this is the case, store it in a file in import/
-                        for (Entry<String, String> entry : opacPluginV2.getRawDataAsString().entrySet()) {
-                            Path destination = Paths.get(process.getImportDirectory(), entry.getKey().replaceAll("\\W", "_"));
-                            StorageProvider.getInstance().createDirectories(destination.getParent());
-                            Files.write(destination, entry.getValue().getBytes());
-                        }
-                    }
+            CatalogueResponse response = searchCatalogue(valueList, myImportOpac, coc);
+            statistics.setOutcome(response != null && response.getFileformat() != null ? Outcome.HIT : Outcome.MISS);
+            if (response != null) {
+                ffNew = response.getFileformat();
+                if (response.getRawDataFingerprint() != null) {
+                    recordFingerprint = createRecordFingerprint(response.getRawDataFingerprint(), coc.getTitle(), valueList);
                 }
-
+            }
+        } catch (CatalogueUnavailableException e) {
+            statistics.setOutcome(Outcome.ERROR);
+            if (config.isIgnoreRequestIssues()) {
+                log.warn(e.getMessage() + ". Move on with workflow.");
+                Helper.setMeldung(e.getMessage());
+                Helper.addMessageToProcessJournal(step.getProzess().getId(), LogType.INFO, e.getMessage() + ". Move on with workflow.");
+                return PluginReturnValue.FINISH;
+            } else {
+                log.error(e.getMessage());
+                Helper.setFehlerMeldung(e.getMessage());
+                Helper.addMessageToProcessJournal(step.getProzess().getId(), LogType.ERROR, e.getMessage());
+                return PluginReturnValue.ERROR;
+            }
+        } catch (CatalogueAdapterException e) {
+            statistics.setOutcome(Outcome.ERROR);
+            String message = "Opac plugin of catalogue " + coc.getTitle() + " cannot be used for the catalogue request: " + e.getMessage();
+            if (config.isIgnoreRequestIssues()) {
+                log.warn(message + ". Move on with workflow.", e);
+                Helper.setMeldung(message);
+                Helper.addMessageToProcessJournal(step.getProzess().getId(), LogType.INFO, message + ". Move on with workflow.");
+                return PluginReturnValue.FINISH;
+            } else {
+                log.error(message, e);
+                Helper.setFehlerMeldung(message);
+                Helper.addMessageToProcessJournal(step.getProzess().getId(), LogType.ERROR, message);
+                return PluginReturnValue.ERROR;
             }
         } catch (Exception e) {
+            statistics.setOutcome(Outcome.ERROR);
             log.error("Exception while requesting the catalogue", e);
             Helper.setFehlerMeldung("Exception while requesting the catalogue", e);
             return PluginReturnValue.ERROR;
+        } finally {
+            CatalogueRegistry.getInstance().releasePlugin(coc, myImportOpac, config.getReusablePlugins());
+            limits.release(Stage.REQUEST);
+            statistics.stop(Phase.REQUEST, requestStart);
         }
 
         if (ffNew == null) {
-            if (configIgnoreRequestIssues) {
+            if (config.isIgnoreRequestIssues()) {
                 log.debug("No record found. No automatic catalogue request possible. Move on with workflow.");
                 Helper.setMeldung("No record found. No automatic catalogue request possible.");
                 Helper.addMessageToProcessJournal(step.getProzess().getId(), LogType.INFO,
@@ -243,18 +417,77 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
             }
         }
 
+        // if the catalogue record did not change since the last run, there is nothing to update. The fingerprint does not cover the records of the
+        // sub elements, so they are always requested again
+        if (config.isSkipUnchangedRecords() && !config.isAnalyseSubElements() && recordFingerprint != null
+                && recordFingerprint.equals(readStoredRecordFingerprint())) {
+            log.debug("Catalogue record for process {} did not change since the last request", process.getTitel());
+            Helper.addMessageToProcessJournal(process.getId(), LogType.INFO,
+                    "Catalogue record did not change since the last request, the METS file was not updated.");
+            return PluginReturnValue.FINISH;
+        }
+
+        // for the merge only the main elements of the catalogue record are needed
+        CatalogueRecord catalogueRecord = null;
+        if (config.isMergeRecords()) {
+            try {
+                catalogueRecord = extractCatalogueRecord(ffNew, config.isMemoryLimitEnabled());
+            } catch (Exception e) {
+                log.error("Exception while merging the catalogue record into the existing METS file", e);
+                Helper.setFehlerMeldung("Exception while merging the catalogue record into the existing METS file", e);
+                return PluginReturnValue.ERROR;
+            }
+            if (config.isMemoryLimitEnabled()) {
+                // the rest of the catalogue record is released before the METS file is read
+                ffNew = null;
+            }
+        }
+
         // if structure subelements shall be kept, merge old and new fileformat, otherwise just write the new one
-        try {
-            if (configMergeRecords) {
-                // first load logical topstruct or first child
+        boolean metadataChanged = true;
+        boolean topstructChanged = false;
+        boolean physChanged = false;
+        boolean otherChanged = false;
+        // logical and physical element, if only their metadata sections need to be written
+        boolean partialWrite = false;
+        DocStruct partialTopstruct = null;
+        DocStruct partialPhys = null;
+        if (config.isMergeRecords()) {
+            // the existing METS file is only read now, if the catalogue fields could be resolved without it
+            if (ffOld == null) {
+                ffOld = readOldMetadata(limits);
+                if (ffOld == null) {
+                    return PluginReturnValue.ERROR;
+                }
+            }
+            if (!enterStage(limits, Stage.MERGE)) {
+                return PluginReturnValue.ERROR;
+            }
+            long mergeStart = statistics.start();
+            try {
+                DigitalDocument dd = ffOld.getDigitalDocument();
+                DocStruct topstructOld = dd.getLogicalDocStruct();
+                DocStruct anchorOld = null;
+                if (topstructOld.getType().isAnchor()) {
+                    anchorOld = topstructOld;
+                    topstructOld = topstructOld.getAllChildren().get(0);
+                }
+                DocStruct physOld = dd.getPhysicalDocStruct();
 
-                DocStruct topstructNew = ffNew.getDigitalDocument().getLogicalDocStruct();
-                DocStruct anchorNew = null;
-                DocStruct physNew = ffNew.getDigitalDocument().getPhysicalDocStruct();
-                if (topstructNew.getType().isAnchor()) {
-                    anchorNew = topstructNew;
-                    topstructNew = topstructNew.getAllChildren().get(0);
+                // remember the state of all docstructs that can be changed by the merge
+                List<DocStruct> descendants = new ArrayList<>();
+                if (config.isAnalyseSubElements()) {
+                    DocStructFingerprint.collectDescendants(topstructOld, descendants);
                 }
+                String topstructBefore = DocStructFingerprint.of(Collections.singletonList(topstructOld));
+                String anchorBefore = DocStructFingerprint.of(Collections.singletonList(anchorOld));
+                String physBefore = DocStructFingerprint.of(Collections.singletonList(physOld));
+                String descendantsBefore = DocStructFingerprint.of(descendants);
+
+                // first load logical topstruct or first child
+                DocStruct topstructNew = catalogueRecord.getTopstruct();
+                DocStruct anchorNew = catalogueRecord.getAnchor();
+                DocStruct physNew = catalogueRecord.getPhysical();
                 // uncommented doctype change for adw
                 // topstructOld.setType(topstructNew.getType());
 
@@ -263,7 +496,7 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
 
                 // replace metadata of anchor element
                 if (anchorNew != null && anchorOld != null) {
-                    mergeMetadataRecords(anchorOld, anchorNew);
+                    mergeAnchor(anchorOld, anchorNew, anchorBefore, coc);
                 }
 
                 // replace metadata of physical element
@@ -271,28 +504,61 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
                     mergeMetadataRecords(physOld, physNew);
                 }
 
-                if (configAnalyseSubElements) {
+                if (config.isAnalyseSubElements()) {
                     List<DocStruct> dsl = topstructOld.getAllChildren();
                     if (dsl != null) {
-                        MetadataType metadataType = prefs.getMetadataTypeByName(configuredFields.get(0)
-                                .getTwo()
-                                .replace("$", "")
-                                .replace("meta.", "")
-                                .replace("topstruct.", "")
-                                .replace("firstchild.", "")
-                                .replace("(", "")
-                                .replace("{", "")
-                                .replace("}", "")
-                                .replace(")", ""));
-                        for (DocStruct ds : dsl) {
-                            getMetadataForChild(configSkipFields, prefs, myImportOpac, coc, metadataType, ds);
+                        MetadataType metadataType = prefs.getMetadataTypeByName(config.getFieldExpressions().get(0).getFirstMetadataName());
+                        long subElementStart = statistics.start();
+                        if (!mergeSubElements(dsl, metadataType, coc)) {
+                            // the fingerprint is only stored if the process got all catalogue records
+                            recordFingerprint = null;
                         }
+                        statistics.stop(Phase.SUB_ELEMENTS, subElementStart);
                     }
                 }
 
-                // then write the updated old file format
-                process.writeMetadataFile(ffOld);
+                topstructChanged = !topstructBefore.equals(DocStructFingerprint.of(Collections.singletonList(topstructOld)));
+                physChanged = !physBefore.equals(DocStructFingerprint.of(Collections.singletonList(physOld)));
+                // changes of the anchor or the sub elements need a complete write of the METS file
+                otherChanged = !anchorBefore.equals(DocStructFingerprint.of(Collections.singletonList(anchorOld)))
+                        || !descendantsBefore.equals(DocStructFingerprint.of(descendants));
+                metadataChanged = topstructChanged || physChanged || otherChanged;
+                // the sections can only be replaced in files using the internal METS format
+                if (metadataChanged && config.isPartialWrite() && !otherChanged && ffOld.getClass() == MetsMods.class) {
+                    partialWrite = true;
+                    partialTopstruct = topstructOld;
+                    partialPhys = physOld;
+                }
+            } catch (Exception e) {
+                log.error("Exception while merging the catalogue record into the existing METS file", e);
+                Helper.setFehlerMeldung("Exception while merging the catalogue record into the existing METS file", e);
+                return PluginReturnValue.ERROR;
+            } finally {
+                limits.release(Stage.MERGE);
+                statistics.stop(Phase.MERGE, mergeStart);
+            }
+        }
+
+        if (!metadataChanged) {
+            log.debug("Catalogue record did not change the metadata of process {}, METS file is not written", process.getTitel());
+            Helper.addMessageToProcessJournal(process.getId(), LogType.INFO,
+                    "Catalogue request finished without changes, the METS file was not written.");
+            storeRecordFingerprint(recordFingerprint);
+            return PluginReturnValue.FINISH;
+        }
 
+        if (!enterStage(limits, Stage.WRITE)) {
+            return PluginReturnValue.ERROR;
+        }
+        long writeStart = statistics.start();
+        try {
+            if (partialWrite && DmdSecPatchWriter.write(Paths.get(process.getMetadataFilePath()), prefs, partialTopstruct, partialPhys,
+                    topstructChanged, physChanged, ConfigurationHelper.getInstance().getNumberOfMetaBackups())) {
+                // only the changed metadata sections were replaced
+                log.debug("Updated the metadata sections of the METS file for process {}", process.getTitel());
+            } else if (config.isMergeRecords()) {
+                // write the updated old file format
+                process.writeMetadataFile(ffOld);
             } else {
                 // just write the new one and don't merge any data
                 process.writeMetadataFile(ffNew);
@@ -301,186 +567,566 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
             log.error("Exception while writing the updated METS file into the file system", e);
             Helper.setFehlerMeldung("Exception while writing the updated METS file into the file system", e);
             return PluginReturnValue.ERROR;
+        } finally {
+            limits.release(Stage.WRITE);
+            statistics.stop(Phase.WRITE, writeStart);
         }
+        storeRecordFingerprint(recordFingerprint);
 
         // everything finished, exit plugin
         log.debug("Finished with catalogue request");
         return PluginReturnValue.FINISH;
     }
 
-    private Fileformat opacSearch(List<StringPair> valueList, IOpacPlugin myImportOpac, ConfigOpacCatalogue coc)
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    /**
+     * Get the value of a configured expression. The VariableReplacer is only used for expressions containing other variables than metadata.
+     */
+    private String evaluate(FieldExpression expression, FieldExpression.MetadataSource metadataSource, VariableReplacer replacer) {
+        String value = expression.evaluate(metadataSource);
+        if (!expression.isCompiled()) {
+            value = replacer.replace(value);
+        }
+        return value;
+    }
+
+    /**
+     * Read the existing METS file of the process
+     * 
+     * @param limits the limits to use for reading
+     * @return the METS file or null, if it cannot be read
+     */
+    private Fileformat readOldMetadata(PipelineLimits limits) {
+        if (!reserveMemory() || !enterStage(limits, Stage.READ)) {
+            return null;
+        }
+        long readStart = statistics.start();
+        try {
+            Fileformat ffOld = process.readMetadataFile();
+            if (ffOld == null) {
+                log.error("Metadata file is not readable for process with ID " + step.getProcessId());
+                Helper.setFehlerMeldung("Metadata file is not readable for process with ID " + step.getProcessId());
+            }
+            return ffOld;
+        } catch (Exception e) {
+            log.error("An exception occurred while reading the metadata file for process with ID " + step.getProcessId(), e);
+            Helper.setFehlerMeldung("An exception occurred while reading the metadata file for process with ID " + step.getProcessId(), e);
+            return null;
+        } finally {
+            limits.release(Stage.READ);
+            statistics.stop(Phase.READ, readStart);
+        }
+    }
+
+    /**
+     * Search the catalogue for the given values. If the cache is enabled, a cached record is used as long as it is not expired. If the catalogue
+     * is not reachable, an expired record can be used as well.
+     * 
+     * @param valueList the fields and values to search for
+     * @param myImportOpac the opac plugin to use
+     * @param coc the catalogue configuration
+     * @return the catalogue response or null, if no record was found
+     * @throws Exception
+     */
+    private CatalogueResponse searchCatalogue(List<StringPair> valueList, IOpacPlugin myImportOpac, ConfigOpacCatalogue coc) throws Exception {
+        if (!config.isCacheEnabled()) {
+            return requestCatalogue(valueList, myImportOpac, coc);
+        }
+        CatalogueResponseCache cache = CatalogueResponseCache.getInstance(Paths.get(config.getCacheDirectory()), config.getCacheMaxEntries());
+        String key = CatalogueResponseCache.createKey(coc.getTitle(), process.getRegelsatz().getDatei(), valueList);
+        CatalogueResponse cached = cache.get(key, config.getCacheTtl(), prefs, this::restoreCachedRecord);
+        if (cached != null) {
+            return cached;
+        }
+        CatalogueResponse response;
         try {
-            Fileformat ffNew;
-            Class<? extends Object> opacClass = myImportOpac.getClass();
-            Method getConfigForOpac = opacClass.getMethod("getConfigForOpac");
-            Object jsonOpacConfig = getConfigForOpac.invoke(myImportOpac);
+            response = requestCatalogue(valueList, myImportOpac, coc);
+        } catch (CatalogueAdapterException e) {
+            throw e;
+        } catch (Exception e) {
+            if (!config.isCacheServeStale() || config.isIgnoreRequestIssues()) {
+                throw e;
+            }
+            cached = cache.get(key, -1, prefs, this::restoreCachedRecord);
+            if (cached == null) {
+                throw e;
+            }
+            log.warn("Catalogue {} is not reachable, using an expired cached record for process {}", coc.getTitle(), process.getTitel(), e);
+            Helper.addMessageToProcessJournal(process.getId(), LogType.INFO,
+                    "Catalogue " + coc.getTitle() + " is not reachable, an expired cached record was used instead.");
+            return cached;
+        }
+        if (response != null && response.getFileformat() != null) {
+            cache.put(key, response.getFileformat(), response.getRawDataFingerprint(), response.getRawDataFiles(), prefs);
+        }
+        return response;
+    }
 
-            Class<? extends Object> jsonOpacConfigClass = jsonOpacConfig.getClass();
+    /**
+     * Copy the raw data files of a cached record into the import folder of the process, as if the catalogue was requested
+     * 
+     * @return the response or null, if its raw data cannot be restored
+     */
+    private CatalogueResponse restoreCachedRecord(CatalogueResponseCache.CachedRecord cachedRecord) {
+        try {
+            RawRecordWriter writer = new RawRecordWriter(Paths.get(process.getImportDirectory()), config.isCompressRawData(), new RawRecordFingerprint());
+            for (Path file : cachedRecord.getRawDataFiles()) {
+                writer.copyStoredFile(file);
+            }
+            return new CatalogueResponse(cachedRecord.getFileformat(), cachedRecord.getRawDataFingerprint(), writer.getStoredFiles());
+        } catch (IOException e) {
+            log.warn("Cannot restore the raw data of the cached record for process {}, requesting the catalogue", process.getTitel(), e);
+            return null;
+        }
+    }
 
-            Method getFieldList = jsonOpacConfigClass.getMethod("getFieldList");
+    /**
+     * Send the request to the catalogue. If the same record is requested for another process at the same time, the running request is used and
+     * this process gets its own copy of the record and of the stored raw data.
+     * 
+     * @param valueList the fields and values to search for
+     * @param myImportOpac the opac plugin to use
+     * @param coc the catalogue configuration
+     * @return the catalogue response
+     * @throws Exception
+     */
+    private CatalogueResponse requestCatalogue(List<StringPair> valueList, IOpacPlugin myImportOpac, ConfigOpacCatalogue coc) throws Exception {
+        Path importDirectory = Paths.get(process.getImportDirectory());
+        // the record is created with the ruleset of the requesting process, so it can only be shared between processes using the same ruleset
+        String key = CatalogueResponseCache.createKey(coc.getTitle(), process.getRegelsatz().getDatei(), valueList);
+        CatalogueRequestCoalescer.Result<FetchedRecord> result =
+                RUNNING_REQUESTS.execute(key, () -> fetchRecord(valueList, myImportOpac, coc, importDirectory));
+        FetchedRecord record = result.getValue();
+        if (!result.isShared()) {
+            return new CatalogueResponse(record.getFileformat(), record.getRawDataFingerprint(), record.getStoredFiles());
+        }
 
-            Object fieldList = getFieldList.invoke(jsonOpacConfig);
-            @SuppressWarnings("unchecked")
-            List<Object> searchfields = (List<Object>) fieldList;
-            for (StringPair sp : valueList) {
-                for (Object searchField : searchfields) {
-                    Class<? extends Object> searchFieldClass = searchField.getClass();
+        List<Path> storedFiles = record.getStoredFiles();
+        if (!importDirectory.equals(record.getDirectory()) && !storedFiles.isEmpty()) {
+            RawRecordWriter writer = new RawRecordWriter(importDirectory, config.isCompressRawData(), new RawRecordFingerprint());
+            for (Path file : record.getStoredFiles()) {
+                writer.copyStoredFile(file);
+            }
+            storedFiles = writer.getStoredFiles();
+        }
+        return new CatalogueResponse(CatalogueRequestCoalescer.copyRecord(record.getFileformat(), prefs), record.getRawDataFingerprint(),
+                storedFiles);
+    }
 
-                    Method getId = searchFieldClass.getMethod("getId");
+    /**
+     * Send the request to the catalogue. If the opac plugin provides the raw data of the record, it gets stored in the given folder. The request is
+     * protected by the deadline, hedging and circuit breaker settings of the configuration.
+     */
+    private FetchedRecord fetchRecord(List<StringPair> valueList, IOpacPlugin myImportOpac, ConfigOpacCatalogue coc, Path importDirectory)
+            throws Exception {
+        FetchedRecord offlineRecord = findOfflineRecord(valueList, myImportOpac, importDirectory);
+        if (offlineRecord != null) {
+            return offlineRecord;
+        }
 
-                    Method setText = searchFieldClass.getMethod("setText", String.class);
-                    Method setSelectedField = searchFieldClass.getMethod("setSelectedField", String.class);
+        CatalogueRegistry registry = CatalogueRegistry.getInstance();
+        CatalogueRequestScheduler scheduler = CatalogueRequestScheduler.getInstance();
+        CatalogueRequestScheduler.Settings schedulerSettings = config.getSchedulerSettings(coc.getTitle());
+        SearchResult result;
+        try {
+            // the circuit breaker and the deadline are checked first, then the request waits for the limits of the catalogue shared with all other
+            // processes. The second request is only sent if the limits allow it immediately
+            result = CatalogueCallGuard.getInstance(coc.getTitle())
+                    .call(config,
+                            () -> scheduler.execute(coc.getTitle(), schedulerSettings, !step.isTypAutomatisch(),
+                                    () -> searchRecord(myImportOpac, valueList, coc)),
+                            () -> scheduler.tryExecute(coc.getTitle(), schedulerSettings, () -> {
+                                // the second request needs its own plugin instance
+                                IOpacPlugin hedgePlugin = registry.borrowPlugin(coc);
+                                try {
+                                    return searchRecord(hedgePlugin, valueList, coc);
+                                } catch (Exception e) {
+                                    registry.releasePlugin(coc, hedgePlugin, config.getReusablePlugins());
+                                    throw e;
+                                }
+                            }), lost -> {
+                                // the plugin instance of the first request is given back by the caller
+                                if (lost.getPlugin() != myImportOpac) {
+                                    registry.releasePlugin(coc, lost.getPlugin(), config.getReusablePlugins());
+                                }
+                            });
+        } catch (CatalogueUnavailableException e) {
+            if (e.isTimeout()) {
+                // the request may still be running, the plugin instance must not be used again
+                registry.discardPlugin(myImportOpac);
+            }
+            throw e;
+        }
 
-                    Object id = getId.invoke(searchField);
-                    if (((String) id).equals(sp.getOne())) {
-                        String value = sp.getTwo();
-                        if (StringUtils.isNotBlank(value)) {
-                            setText.invoke(searchField, value);
-                            setSelectedField.invoke(searchField, sp.getOne());
-                        }
-                    }
+        try {
+            Fileformat ff = result.getFileformat();
+            String anchorFingerprint = null;
+            if (ff != null && result.getAnchorIdentifier() != null) {
+                DocStruct anchor = findAnchor(result.getAnchorIdentifier(), coc);
+                if (anchor != null && AnchorRecordCache.attachAnchor(ff, anchor)) {
+                    anchorFingerprint = DocStructFingerprint.of(Collections.singletonList(anchor));
+                } else {
+                    log.warn("Anchor {} of process {} cannot be used, requesting the complete record", result.getAnchorIdentifier(),
+                            process.getTitel());
+                    ff = requestWithoutHedging(result.getPlugin(), valueList, coc);
                 }
-
             }
-            Method search = opacClass.getMethod("search", String.class, String.class, ConfigOpacCatalogue.class, Prefs.class);
+            RawRecordFingerprint fingerprint = new RawRecordFingerprint();
+            RawRecordWriter writer = new RawRecordWriter(importDirectory, config.isCompressRawData(), fingerprint);
+            if (ff != null) {
+                storeRawData(result.getPlugin(), writer);
+            }
+            String rawDataFingerprint = ff == null ? null : fingerprint.finish();
+            if (rawDataFingerprint != null && anchorFingerprint != null) {
+                // the raw data only contains the volume, a changed anchor must lead to a new update as well
+                rawDataFingerprint += '|' + anchorFingerprint;
+            }
+            return new FetchedRecord(ff, rawDataFingerprint, importDirectory, writer.getStoredFiles());
+        } finally {
+            if (result.getPlugin() != myImportOpac) {
+                registry.discardPlugin(myImportOpac);
+                registry.releasePlugin(coc, result.getPlugin(), config.getReusablePlugins());
+            }
+        }
+    }
 
-            ffNew = (Fileformat) search.invoke(myImportOpac, "", "", coc, prefs);
-            return ffNew;
-        } catch (NoSuchMethodException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+    /**
+     * Find the record in the local index of a catalogue export, if it is configured
+     * 
+     * @return the record or null, if it was not found and the catalogue must be requested
+     */
+    private FetchedRecord findOfflineRecord(List<StringPair> valueList, IOpacPlugin myImportOpac, Path importDirectory) {
+        OfflineCatalogueIndex offlineIndex = getOfflineIndex();
+        if (offlineIndex == null || valueList.size() != 1 || !config.getOfflineIndexSearchField().equals(valueList.get(0).getOne())) {
+            return null;
+        }
+        String identifier = valueList.get(0).getTwo();
+        try {
+            byte[] record = offlineIndex.find(identifier);
+            Fileformat ff = record == null ? null : offlineIndex.decode(record, myImportOpac, prefs);
+            if (ff == null) {
+                log.debug("Record {} not found in the catalogue export, requesting the catalogue", identifier);
+                return null;
+            }
+            RawRecordFingerprint fingerprint = new RawRecordFingerprint();
+            try (OutputStream out = fingerprint.wrap(identifier, OutputStream.nullOutputStream())) {
+                out.write(record);
+                // a changed anchor record must lead to a new update as well
+                byte[] anchorRecord = offlineIndex.findAnchorRecord(record);
+                if (anchorRecord != null) {
+                    out.write(anchorRecord);
+                }
+            }
+            return new FetchedRecord(ff, fingerprint.finish(), importDirectory, Collections.emptyList());
+        } catch (Exception e) {
+            log.warn("Cannot read record {} from the catalogue export, requesting the catalogue", identifier, e);
             return null;
         }
+    }
 
+    private OfflineCatalogueIndex getOfflineIndex() {
+        if (config.getOfflineIndexFile() == null) {
+            return null;
+        }
+        return OfflineCatalogueIndex.getInstance(Paths.get(config.getOfflineIndexFile()), config.getOfflineIndexFormat(),
+                config.getOfflineIndexIdentifierField());
     }
 
     /**
-     * Replaces the metadata of the old docstruct with the values of the new docstruct. If a metadata type of the old docstruct is marked as to skip,
-     * it gets not replaced. Otherwise all old data is removed and all new metadata is added.
-     * 
-     * @param docstructOld
-     * @param docstructNew
-     * @throws MetadataTypeNotAllowedException
+     * Search the record. If the anchor cache is enabled and the opac plugin can request a volume without its anchor, only the volume is requested
+     * and the anchor is taken from the {@link AnchorRecordCache} afterwards.
      */
+    private SearchResult searchRecord(IOpacPlugin opacPlugin, List<StringPair> valueList, ConfigOpacCatalogue coc) throws Exception {
+        OpacPluginCapabilities capabilities = OpacPluginCapabilities.of(opacPlugin.getClass());
+        if (config.isAnchorCacheEnabled() && valueList.size() == 1 && capabilities.isAnchorSearch()) {
+            Fileformat ff = capabilities.searchWithoutAnchor(opacPlugin, valueList.get(0).getOne(), valueList.get(0).getTwo(), coc, prefs);
+            String anchorIdentifier = ff == null ? null : capabilities.getAnchorIdentifier(opacPlugin);
+            return new SearchResult(ff, opacPlugin, StringUtils.isBlank(anchorIdentifier) ? null : anchorIdentifier.trim());
+        }
+        return new SearchResult(search(opacPlugin, valueList, coc), opacPlugin, null);
+    }
 
-    private void mergeMetadataRecords(DocStruct docstructOld, DocStruct docstructNew) throws MetadataTypeNotAllowedException {
-        if (docstructOld.getAllMetadata() != null) {
-            List<Metadata> metadataToRemove = new ArrayList<>();
-            for (Metadata md : docstructOld.getAllMetadata()) {
-                // check if they should be replaced or skipped
-                if (configuredForUpdate(md)) {
-                    metadataToRemove.add(md);
-                }
+    /**
+     * Get the anchor record from the {@link AnchorRecordCache}. It is only requested, if no other volume of the work requested it before with the
+     * same catalogue, ruleset and configuration.
+     *
+     * @return the anchor or null, if the catalogue has no anchor record with this identifier
+     */
+    private DocStruct findAnchor(String identifier, ConfigOpacCatalogue coc) throws Exception {
+        String key = AnchorRecordCache.createKey(coc.getTitle(), process.getRegelsatz().getDatei(), config.getFileModified(), identifier);
+        return AnchorRecordCache.getInstance().getAnchor(key, config.getAnchorCacheTtl(), () -> {
+            // the instance of the volume request still holds the raw data of the volume, so the anchor gets its own instance
+            CatalogueRegistry registry = CatalogueRegistry.getInstance();
+            IOpacPlugin anchorPlugin = registry.borrowPlugin(coc);
+            if (anchorPlugin == null) {
+                return null;
             }
-            // remove old entry
-            for (Metadata md : metadataToRemove) {
-                docstructOld.removeMetadata(md, true);
+            try {
+                return requestWithoutHedging(anchorPlugin, Collections.singletonList(new StringPair(ANCHOR_SEARCH_FIELD, identifier)), coc);
+            } finally {
+                registry.releasePlugin(coc, anchorPlugin, config.getReusablePlugins());
             }
-        }
+        });
+    }
 
-        // add new metadata
-        if (docstructNew.getAllMetadata() != null) {
-            for (Metadata md : docstructNew.getAllMetadata()) {
-                if (configuredForUpdate(md)) {
-                    Metadata newmetadata = new Metadata(md.getType());
-                    newmetadata.setValue(md.getValue());
-                    docstructOld.addMetadata(newmetadata);
-                }
+    /**
+     * Send a single request, protected by the deadline and the circuit breaker, but without a second request
+     */
+    private Fileformat requestWithoutHedging(IOpacPlugin opacPlugin, List<StringPair> valueList, ConfigOpacCatalogue coc) throws Exception {
+        try {
+            return CatalogueCallGuard.getInstance(coc.getTitle())
+                    .call(config, () -> CatalogueRequestScheduler.getInstance()
+                            .execute(coc.getTitle(), config.getSchedulerSettings(coc.getTitle()), !step.isTypAutomatisch(),
+                                    () -> search(opacPlugin, valueList, coc)),
+                            null, null);
+        } catch (CatalogueUnavailableException e) {
+            if (e.isTimeout()) {
+                // the request may still be running, the plugin instance must not be used again
+                CatalogueRegistry.getInstance().discardPlugin(opacPlugin);
             }
+            throw e;
         }
-        if (docstructOld.getAllPersons() != null) {
-            List<Person> personsToRemove = new ArrayList<>();
-            for (Person pd : docstructOld.getAllPersons()) {
-                if (configuredForUpdate(pd)) {
-                    personsToRemove.add(pd);
-                }
-            }
-            for (Person pd : personsToRemove) {
-                docstructOld.removePerson(pd, true);
+    }
+
+    private Fileformat search(IOpacPlugin opacPlugin, List<StringPair> valueList, ConfigOpacCatalogue coc) throws Exception {
+        if ("intranda_opac_json".equals(opacPlugin.getTitle())) {
+            return JsonOpacBridge.search(opacPlugin, valueList, coc, prefs);
+        }
+        return opacPlugin.search(valueList.get(0).getOne(), valueList.get(0).getTwo(), coc, prefs);
+    }
+
+    /**
+     * Store the raw data of the last request in the import folder of the process
+     */
+    private void storeRawData(IOpacPlugin opacPlugin, RawRecordWriter writer) throws Exception {
+        if ("intranda_opac_json".equals(opacPlugin.getTitle()) || !(opacPlugin instanceof IOpacPluginVersion2)) {
+            return;
+        }
+        IOpacPluginVersion2 opacPluginV2 = (IOpacPluginVersion2) opacPlugin;
+        // check if the plugin created files
+        if (opacPluginV2.getRecordPathList() != null) {
+            for (Path r : opacPluginV2.getRecordPathList()) {
+                // if this is the case, move the files to the import/ folder
+                writer.moveRecordFile(r);
             }
         }
-        if (docstructNew.getAllPersons() != null) {
-            // now add the new persons to the old topstruct
-            for (Person pd : docstructNew.getAllPersons()) {
-                if (configuredForUpdate(pd)) {
-                    docstructOld.addPerson(pd);
-                }
+        // check if the plugin provides the data as string
+        if (opacPluginV2.getRawDataAsString() != null) {
+            // if this is the case, store it in a file in import/
+            for (Entry<String, String> entry : new TreeMap<>(opacPluginV2.getRawDataAsString()).entrySet()) {
+                writer.writeRawData(entry.getKey(), entry.getValue());
             }
         }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class SearchResult {
+        private final Fileformat fileformat;
+        private final IOpacPlugin plugin;
+        // identifier of the anchor, if the record was requested without its anchor
+        private final String anchorIdentifier;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class CatalogueRecord {
+        private final DocStruct topstruct;
+        private final DocStruct anchor;
+        private final DocStruct physical;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class FetchedRecord {
+        private final Fileformat fileformat;
+        private final String rawDataFingerprint;
+        // folder and files of the stored raw data
+        private final Path directory;
+        private final List<Path> storedFiles;
+    }
+
+    /**
+     * Merge the anchor record. All volumes of a work get the same anchor from the {@link AnchorRecordCache}, so the merge is skipped if the anchor
+     * of this process already equals the result of the last merge of the cached anchor.
+     */
+    private void mergeAnchor(DocStruct anchorOld, DocStruct anchorNew, String anchorBefore, ConfigOpacCatalogue coc)
+            throws MetadataTypeNotAllowedException {
+        MetadataType identifierType = config.isAnchorCacheEnabled() ? prefs.getMetadataTypeByName("CatalogIDDigital") : null;
+        List<? extends Metadata> identifiers = identifierType == null ? null : anchorNew.getAllMetadataByType(identifierType);
+        if (identifiers == null || identifiers.isEmpty() || StringUtils.isBlank(identifiers.get(0).getValue())) {
+            mergeMetadataRecords(anchorOld, anchorNew);
+            return;
+        }
+        String key = AnchorRecordCache.createKey(coc.getTitle(), process.getRegelsatz().getDatei(), config.getFileModified(),
+                identifiers.get(0).getValue().trim());
+        String anchorFingerprint = DocStructFingerprint.of(Collections.singletonList(anchorNew));
+        AnchorRecordCache cache = AnchorRecordCache.getInstance();
+        if (cache.isMerged(key, anchorFingerprint, anchorBefore)) {
+            log.debug("Anchor {} of process {} is already up to date, skipping the merge", identifiers.get(0).getValue(), process.getTitel());
+            return;
+        }
+        mergeMetadataRecords(anchorOld, anchorNew);
+        cache.setMerged(key, anchorFingerprint, DocStructFingerprint.of(Collections.singletonList(anchorOld)));
+    }
 
-        // corporates
-        List<Corporate> allCorporates = new ArrayList<>();
-        if (docstructOld.getAllCorporates() != null) {
-            allCorporates = new ArrayList<>(docstructOld.getAllCorporates());
+    /**
+     * Create the fingerprint of a catalogue record for this process. Besides the raw data it contains the requested values and the time of the
+     * last configuration change, so that changes in the configuration lead to a new update of the METS file.
+     */
+    private String createRecordFingerprint(String rawDataFingerprint, String catalogue, List<StringPair> valueList) {
+        StringBuilder sb = new StringBuilder(rawDataFingerprint);
+        sb.append('|').append(catalogue).append('|').append(config.getFileModified());
+        for (StringPair sp : valueList) {
+            sb.append('|').append(sp.getOne()).append('=').append(sp.getTwo());
         }
-        for (Corporate corporate : allCorporates) {
-            if (configuredForUpdate(corporate)) {
-                List<? extends Corporate> remove = docstructOld.getAllCorporatesByType(corporate.getType());
-                if (remove != null) {
-                    for (Corporate pdRm : remove) {
-                        docstructOld.removeCorporate(pdRm);
-                    }
-                }
+        return sb.toString();
+    }
+
+    private Path getRecordFingerprintFile() throws Exception {
+        return Paths.get(process.getProcessDataDirectory(), RECORD_FINGERPRINT_FILE);
+    }
+
+    private String readStoredRecordFingerprint() {
+        try {
+            Path file = getRecordFingerprintFile();
+            if (StorageProvider.getInstance().isFileExists(file)) {
+                return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
             }
+        } catch (Exception e) {
+            log.warn("Cannot read the catalogue record fingerprint of process {}", process.getTitel(), e);
         }
-        if (docstructNew.getAllCorporates() != null) {
-            // now add the new persons to the old topstruct
-            for (Corporate corporate : docstructNew.getAllCorporates()) {
-                if (configuredForUpdate(corporate)) {
-                    try {
-                        docstructOld.addCorporate(corporate);
-                    } catch (MetadataTypeNotAllowedException | IncompletePersonObjectException e) {
-                        // ignore metadata not allowed errors
-                    }
-                }
-            }
+        return null;
+    }
+
+    private void storeRecordFingerprint(String recordFingerprint) {
+        if (!config.isSkipUnchangedRecords() || recordFingerprint == null) {
+            return;
         }
+        try {
+            Files.write(getRecordFingerprintFile(), recordFingerprint.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            log.warn("Cannot store the catalogue record fingerprint of process {}", process.getTitel(), e);
+        }
+    }
 
-        if (docstructOld.getAllMetadataGroups() != null) {
-            List<MetadataGroup> groupsToRemove = new ArrayList<>();
+    /**
+     * Wait for the permission to enter a stage of the catalogue update
+     * 
+     * @param limits
+     * @param stage
+     * @return false if the thread got interrupted while waiting
+     */
+    private boolean enterStage(PipelineLimits limits, Stage stage) {
+        long start = statistics.start();
+        try {
+            limits.acquire(stage);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting for stage {} of process {}", stage, process.getTitel());
+            return false;
+        } finally {
+            statistics.stop(Phase.WAIT, start);
+        }
+    }
 
-            for (MetadataGroup group : docstructOld.getAllMetadataGroups()) {
-                // check if the group should be skipped
-                if (configuredForUpdate(group)) {
-                    // if not, remove the old groups of the type
-                    groupsToRemove.add(group);
-                }
-            }
-            for (MetadataGroup group : groupsToRemove) {
-                docstructOld.removeMetadataGroup(group, true);
-            }
+    /**
+     * Reserve the expected memory usage of the run from the memory budget before the METS file is read, if the memory limit is enabled. The usage
+     * is estimated using the size of the METS file.
+     * 
+     * @return false if the thread got interrupted while waiting
+     */
+    private boolean reserveMemory() {
+        if (!config.isMemoryLimitEnabled() || memoryReservation != null) {
+            return true;
         }
-        // add new metadata groups
-        if (docstructNew.getAllMetadataGroups() != null) {
-            for (MetadataGroup newGroup : docstructNew.getAllMetadataGroups()) {
-                if (configuredForUpdate(newGroup)) {
-                    docstructOld.addMetadataGroup(newGroup);
+        long size = 0;
+        try {
+            Path metsFile = Paths.get(process.getMetadataFilePath());
+            Path anchorFile = metsFile.resolveSibling(metsFile.getFileName().toString().replace(".xml", "_anchor.xml"));
+            for (Path file : new Path[] { metsFile, anchorFile }) {
+                if (Files.exists(file)) {
+                    size += Files.size(file);
                 }
             }
+        } catch (Exception e) {
+            log.debug("Cannot determine the size of the METS file of process {}", process.getTitel(), e);
+        }
+        long start = statistics.start();
+        try {
+            memoryReservation = MemoryBudget.getInstance(config.getMemoryBudget()).reserve(size * config.getMemoryFactor());
+            statistics.setReservedMemory(memoryReservation.getBytes());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting for memory to read the METS file of process {}", process.getTitel());
+            return false;
+        } finally {
+            statistics.stop(Phase.WAIT, start);
         }
     }
 
-    private boolean configuredForUpdate(MetadataGroup group) {
-        if (configIncludeFields != null && !configIncludeFields.isEmpty()) {
-            return configIncludeFields.contains(group.getType().getName());
-        } else {
-            return !configSkipFields.contains(group.getType().getName());
+    /**
+     * Get the main elements of the catalogue record
+     * 
+     * @param ffNew the catalogue record
+     * @param detach true to copy the metadata of the elements, so that the rest of the record can be released
+     * @return the logical element, its anchor and the physical element of the record
+     * @throws PreferencesException
+     */
+    private static CatalogueRecord extractCatalogueRecord(Fileformat ffNew, boolean detach) throws PreferencesException {
+        DigitalDocument dd = ffNew.getDigitalDocument();
+        DocStruct topstruct = dd.getLogicalDocStruct();
+        DocStruct anchor = null;
+        if (topstruct.getType().isAnchor()) {
+            anchor = topstruct;
+            topstruct = topstruct.getAllChildren().get(0);
         }
+        DocStruct physical = dd.getPhysicalDocStruct();
+        if (!detach) {
+            return new CatalogueRecord(topstruct, anchor, physical);
+        }
+        // copies of the metadata without any children
+        return new CatalogueRecord(topstruct.copy(true, false), anchor == null ? null : anchor.copy(true, false),
+                physical == null ? null : physical.copy(true, false));
     }
 
-    private boolean configuredForUpdate(Metadata md) {
-        if (configIncludeFields != null && !configIncludeFields.isEmpty()) {
-            return configIncludeFields.contains(md.getType().getName());
-        } else {
-            return !configSkipFields.contains(md.getType().getName());
+    /**
+     * Add the statistics of the finished run to the metrics and to the process journal, if configured
+     */
+    private void finishStatistics() {
+        try {
+            Path metsFile = Paths.get(process.getMetadataFilePath());
+            if (Files.exists(metsFile)) {
+                statistics.setMetsFileSize(Files.size(metsFile));
+            }
+        } catch (Exception e) {
+            log.debug("Cannot determine the size of the METS file of process {}", process.getTitel(), e);
+        }
+        CatalogueRequestMetrics.getInstance().record(statistics);
+        if (config.isTimingSummary()) {
+            Helper.addMessageToProcessJournal(process.getId(), LogType.INFO, statistics.toSummary());
         }
     }
 
+    /**
+     * Replaces the metadata of the old docstruct with the values of the new docstruct, see {@link MetadataMerger#merge(DocStruct, DocStruct)}
+     * 
+     * @param docstructOld
+     * @param docstructNew
+     * @throws MetadataTypeNotAllowedException
+     */
+    private void mergeMetadataRecords(DocStruct docstructOld, DocStruct docstructNew) throws MetadataTypeNotAllowedException {
+        statistics.addMergedFields(config.getMerger().merge(docstructOld, docstructNew));
+    }
+
     /**
      * execute method that is clicked by the user or executed by Goobi automatically
      */
     @Override
     public boolean execute() {
-        PluginReturnValue check = run();
+        // the caller closes the step itself, so the update is always executed directly
+        PluginReturnValue check = runStep();
         return PluginReturnValue.FINISH.equals(check);
     }
 
@@ -499,26 +1145,7 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
         process = step.getProzess();
         prefs = process.getRegelsatz().getPreferences();
 
-        SubnodeConfiguration myconfig = ConfigPlugins.getProjectAndStepConfig(title, step);
-        configCatalogue = myconfig.getString("catalogue", "GBV").trim();
-        configuredFields = new ArrayList<>();
-        List<HierarchicalConfiguration> fields = myconfig.configurationsAt("catalogueField");
-        for (HierarchicalConfiguration field : fields) {
-            String fieldname = field.getString("@fieldName");
-            String metadataName = field.getString("@fieldValue");
-            configuredFields.add(new StringPair(fieldname, metadataName));
-        }
-        if (configuredFields.isEmpty()) {
-            configuredFields.add(new StringPair("12", "$(meta.CatalogIDDigital)"));
-        }
-
-        configCleanupValue = myconfig.getString("cleanupValue", "");
-        configMergeRecords = myconfig.getBoolean("mergeRecords", false);
-        configAnalyseSubElements = myconfig.getBoolean("analyseSubElements", false);
-        configIgnoreRequestIssues = myconfig.getBoolean("ignoreRequestIssues", false);
-        configIgnoreMissingData = myconfig.getBoolean("ignoreMissingData", false);
-        configSkipFields = Arrays.asList(myconfig.getStringArray("skipField"));
-        configIncludeFields = Arrays.asList(myconfig.getStringArray("includeField"));
+        config = CatalogueRequestConfiguration.getInstance(title, step);
     }
 
     @Override
@@ -560,18 +1187,68 @@ public @Data class CatalogueRequestPlugin implements IStepPluginVersion2 {
         return "";
     }
 
-    private void getMetadataForChild(List<String> configSkipFields, Prefs prefs, IOpacPlugin myImportOpac, ConfigOpacCatalogue coc, MetadataType type,
-            DocStruct ds) throws Exception {
-        List<? extends Metadata> identifierList = ds.getAllMetadataByType(type);
-        if (identifierList != null && !identifierList.isEmpty()) {
-            String identifier = identifierList.get(0).getValue();
-            Fileformat ff = myImportOpac.search("12", identifier, coc, prefs);
-            mergeMetadataRecords(ds, ff.getDigitalDocument().getLogicalDocStruct());
+    /**
+     * Request the catalogue records for all sub elements that contain an identifier and merge them into the sub elements. Without the memory limit
+     * the identifiers of all sub elements are collected first and each identifier is requested only once. With the memory limit the sub elements
+     * are visited in parts, each part is requested and merged before the next part is collected, so that only the records of a single part are
+     * kept at the same time. An identifier used by sub elements of different parts is requested again. Sub elements whose record cannot be
+     * requested are reported and skipped.
+     * 
+     * @param children the sub elements of the main element
+     * @param type the metadata type containing the identifier
+     * @param coc the catalogue configuration
+     * @return true if the records of all sub elements were found
+     * @throws Exception
+     */
+    private boolean mergeSubElements(List<DocStruct> children, MetadataType type, ConfigOpacCatalogue coc) throws Exception {
+        Set<String> failed = new LinkedHashSet<>();
+        ChildRecordFetcher fetcher = new ChildRecordFetcher(coc, prefs, process.getRegelsatz().getDatei(), config,
+                "12".equals(config.getOfflineIndexSearchField()) ? getOfflineIndex() : null, !step.isTypAutomatisch());
+        // with the memory limit the records are requested and merged in small parts, so that only a few records are kept at the same time
+        int partSize = config.isMemoryLimitEnabled() ? Math.max(config.getSubElementParallelism(), config.getSubElementBatchSize())
+                : Integer.MAX_VALUE;
+        // sub elements that were not visited yet, in depth-first order
+        Deque<Iterator<DocStruct>> pending = new ArrayDeque<>();
+        pending.push(children.iterator());
+        while (!pending.isEmpty()) {
+            Map<String, List<DocStruct>> elementsByIdentifier = new LinkedHashMap<>();
+            collectSubElements(pending, type, partSize, elementsByIdentifier);
+            if (elementsByIdentifier.isEmpty()) {
+                break;
+            }
+            List<String> partFailed = new ArrayList<>();
+            Map<String, Fileformat> records = fetcher.fetch(elementsByIdentifier.keySet(), partFailed);
+            failed.addAll(partFailed);
+            ChildRecordFetcher.assignRecords(elementsByIdentifier, records, this::mergeMetadataRecords);
+        }
+
+        if (!failed.isEmpty()) {
+            log.warn("No catalogue record found for {} sub elements of process {}: {}", failed.size(), process.getTitel(), failed);
+            Helper.addMessageToProcessJournal(process.getId(), LogType.WARN,
+                    "No catalogue record found for the following sub elements, they were not updated: " + String.join(", ", failed));
         }
-        List<DocStruct> children = ds.getAllChildren();
-        if (children != null && !children.isEmpty()) {
-            for (DocStruct child : children) {
-                getMetadataForChild(configSkipFields, prefs, myImportOpac, coc, type, child);
+        return failed.isEmpty();
+    }
+
+    /**
+     * Visit the pending sub elements in depth-first order and collect the elements with an identifier, until the given number of different
+     * identifiers is reached. The sub elements that were not visited yet remain in the pending iterators.
+     */
+    private static void collectSubElements(Deque<Iterator<DocStruct>> pending, MetadataType type, int maxIdentifiers,
+            Map<String, List<DocStruct>> elementsByIdentifier) {
+        while (!pending.isEmpty() && elementsByIdentifier.size() < maxIdentifiers) {
+            Iterator<DocStruct> iterator = pending.peek();
+            if (!iterator.hasNext()) {
+                pending.pop();
+                continue;
+            }
+            DocStruct ds = iterator.next();
+            List<? extends Metadata> identifierList = ds.getAllMetadataByType(type);
+            if (identifierList != null && !identifierList.isEmpty() && StringUtils.isNotBlank(identifierList.get(0).getValue())) {
+                elementsByIdentifier.computeIfAbsent(identifierList.get(0).getValue(), k -> new ArrayList<>()).add(ds);
+            }
+            if (ds.getAllChildren() != null && !ds.getAllChildren().isEmpty()) {
+                pending.push(ds.getAllChildren().iterator());
             }
         }
     }
@@ -0,0 +1,216 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Schedules the catalogue requests of all plugin instances of this server. For each catalogue the number of requests at the same time and the
+ * number of requests per second can be limited. Waiting requests of interactive executions are always sent before the waiting requests of
+ * automatic steps, within a lane the requests are sent in the order of their arrival. If too many requests are waiting for a catalogue, further
+ * requests are rejected instead of being queued.
+ */
+@Log4j2
+final class CatalogueRequestScheduler {
+
+    private static final CatalogueRequestScheduler INSTANCE = new CatalogueRequestScheduler();
+
+    private final Map<String, Lanes> lanesByCatalogue = new ConcurrentHashMap<>();
+
+    private CatalogueRequestScheduler() {
+    }
+
+    static CatalogueRequestScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Execute a catalogue request as soon as the limits of the catalogue allow it
+     *
+     * @param catalogue the title of the catalogue
+     * @param settings the limits of the catalogue, the latest settings are used for all waiting requests
+     * @param interactive true if the request was triggered by a user, false for automatic steps
+     * @param request the request
+     * @return the result of the request
+     * @throws CatalogueUnavailableException if too many requests are waiting for the catalogue
+     * @throws Exception the exception of the request
+     */
+    <T> T execute(String catalogue, Settings settings, boolean interactive, Callable<T> request) throws Exception {
+        if (settings == null || !settings.isLimited()) {
+            return request.call();
+        }
+        Lanes lanes = lanesByCatalogue.computeIfAbsent(catalogue, Lanes::new);
+        CatalogueCallGuard.requestWaiting();
+        lanes.acquire(settings, interactive);
+        try {
+            CatalogueCallGuard.requestSent();
+            return request.call();
+        } finally {
+            lanes.release();
+        }
+    }
+
+    /**
+     * Execute a catalogue request only if the limits of the catalogue allow it immediately and no other request is waiting. This is used for
+     * requests that are only useful if they can be sent at once, like the second request of the hedging.
+     *
+     * @param catalogue the title of the catalogue
+     * @param settings the limits of the catalogue
+     * @param request the request
+     * @return the result of the request
+     * @throws CatalogueUnavailableException if the request cannot be sent immediately, in this case the request is not called
+     * @throws Exception the exception of the request
+     */
+    <T> T tryExecute(String catalogue, Settings settings, Callable<T> request) throws Exception {
+        if (settings == null || !settings.isLimited()) {
+            return request.call();
+        }
+        Lanes lanes = lanesByCatalogue.computeIfAbsent(catalogue, Lanes::new);
+        if (!lanes.tryAcquire(settings)) {
+            log.debug("No free request slot for catalogue {}, the request is not sent", catalogue);
+            throw new CatalogueUnavailableException("No free request slot for catalogue " + catalogue, false);
+        }
+        try {
+            CatalogueCallGuard.requestSent();
+            return request.call();
+        } finally {
+            lanes.release();
+        }
+    }
+
+    /**
+     * @param catalogue the title of the catalogue
+     * @return the number of requests waiting for the catalogue
+     */
+    int getWaitingRequests(String catalogue) {
+        Lanes lanes = lanesByCatalogue.get(catalogue);
+        return lanes == null ? 0 : lanes.waiting();
+    }
+
+    /**
+     * Limits of a catalogue, a value of zero or less means no limit
+     */
+    @Getter
+    @AllArgsConstructor
+    static class Settings {
+        // maximum number of requests at the same time
+        private final int maxConcurrentRequests;
+        // maximum number of requests started per second
+        private final double requestsPerSecond;
+        // maximum number of waiting requests
+        private final int maxQueueDepth;
+
+        boolean isLimited() {
+            return maxConcurrentRequests > 0 || requestsPerSecond > 0;
+        }
+    }
+
+    /**
+     * Waiting and running requests of a single catalogue
+     */
+    private static class Lanes {
+        private final String catalogue;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final ArrayDeque<Object> interactive = new ArrayDeque<>();
+        private final ArrayDeque<Object> automatic = new ArrayDeque<>();
+        private Settings settings;
+        private int running;
+        // earliest start of the next request according to the rate limit
+        private long nextStart = System.nanoTime();
+
+        private Lanes(String catalogue) {
+            this.catalogue = catalogue;
+        }
+
+        private void acquire(Settings currentSettings, boolean interactiveRequest) throws InterruptedException, CatalogueUnavailableException {
+            Object ticket = new Object();
+            lock.lock();
+            try {
+                settings = currentSettings;
+                if (settings.getMaxQueueDepth() > 0 && interactive.size() + automatic.size() >= settings.getMaxQueueDepth()) {
+                    log.debug("Rejecting request for catalogue {}, {} requests are waiting", catalogue, interactive.size() + automatic.size());
+                    throw new CatalogueUnavailableException("Too many waiting requests for catalogue " + catalogue, false);
+                }
+                ArrayDeque<Object> lane = interactiveRequest ? interactive : automatic;
+                lane.addLast(ticket);
+                try {
+                    while (true) {
+                        ArrayDeque<Object> next = interactive.isEmpty() ? automatic : interactive;
+                        if (next.peekFirst() == ticket && (settings.getMaxConcurrentRequests() <= 0 || running < settings.getMaxConcurrentRequests())) {
+                            long now = System.nanoTime();
+                            long wait = settings.getRequestsPerSecond() > 0 ? nextStart - now : 0;
+                            if (wait <= 0) {
+                                lane.removeFirst();
+                                start(now);
+                                // the next request in line can check its limits now
+                                changed.signalAll();
+                                return;
+                            }
+                            changed.awaitNanos(wait);
+                        } else {
+                            changed.await();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    lane.remove(ticket);
+                    changed.signalAll();
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean tryAcquire(Settings currentSettings) {
+            lock.lock();
+            try {
+                settings = currentSettings;
+                long now = System.nanoTime();
+                if (!interactive.isEmpty() || !automatic.isEmpty()
+                        || (settings.getMaxConcurrentRequests() > 0 && running >= settings.getMaxConcurrentRequests())
+                        || (settings.getRequestsPerSecond() > 0 && nextStart - now > 0)) {
+                    return false;
+                }
+                start(now);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int waiting() {
+            lock.lock();
+            try {
+                return interactive.size() + automatic.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void start(long now) {
+            running++;
+            if (settings.getRequestsPerSecond() > 0) {
+                nextStart = Math.max(now, nextStart) + (long) (TimeUnit.SECONDS.toNanos(1) / settings.getRequestsPerSecond());
+            }
+        }
+
+        private void release() {
+            lock.lock();
+            try {
+                running--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
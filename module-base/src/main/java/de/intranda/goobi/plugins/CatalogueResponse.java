@@ -0,0 +1,24 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ugh.dl.Fileformat;
+
+/**
+ * Result of a catalogue request: the record and, if the opac plugin provided the raw data of the record, a fingerprint of this raw data
+ */
+@Getter
+@AllArgsConstructor
+class CatalogueResponse {
+
+    private final Fileformat fileformat;
+
+    // null if the record was not requested from the catalogue directly or the plugin does not provide raw data
+    private final String rawDataFingerprint;
+
+    // raw data files of the record stored in the import folder of the process
+    private final List<Path> rawDataFiles;
+}
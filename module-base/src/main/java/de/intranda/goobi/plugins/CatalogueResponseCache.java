@@ -0,0 +1,337 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.goobi.production.cli.helper.StringPair;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+/**
+ * Disk based cache for catalogue responses. The records are stored in the internal METS format together with the raw data files and the
+ * fingerprint of the raw data, the key of each record is build from the catalogue title, the ruleset and the requested fields and values. The cache
+ * has a time to live for each entry and is limited in size, the least recently used entries get removed first. The files of an entry are prepared
+ * under temporary names and moved into place while the entry is locked, readers hold the same lock, so that they never combine the files of two
+ * writers.
+ */
+@Log4j2
+public class CatalogueResponseCache {
+
+    private static final String FILE_SUFFIX = ".xml";
+    private static final String ANCHOR_SUFFIX = "_anchor.xml";
+    private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+    private static final String RAW_DATA_SUFFIX = ".raw";
+
+    private static final Map<Path, CatalogueResponseCache> INSTANCES = new ConcurrentHashMap<>();
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path directory;
+    private volatile int maxEntries;
+
+    // all known entries in access order, the value is the time the record was stored
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // locks for the files of the entries, each key uses the lock of its hash code
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+
+    /**
+     * Get the cache for the given directory. All steps using the same directory share the same cache instance.
+     *
+     * @param directory the folder to store the records in
+     * @param maxEntries maximum number of records to keep
+     * @return the cache
+     */
+    public static CatalogueResponseCache getInstance(Path directory, int maxEntries) {
+        CatalogueResponseCache cache = INSTANCES.computeIfAbsent(directory.toAbsolutePath().normalize(), CatalogueResponseCache::new);
+        cache.maxEntries = maxEntries;
+        return cache;
+    }
+
+    private CatalogueResponseCache(Path directory) {
+        this.directory = directory;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        try {
+            Files.createDirectories(directory);
+            // restore the known entries, oldest first
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+                for (Path file : stream) {
+                    String name = file.getFileName().toString();
+                    if (!name.endsWith(ANCHOR_SUFFIX) && !name.startsWith("tmp-")) {
+                        files.add(file);
+                    }
+                }
+            }
+            files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                entries.put(name.substring(0, name.length() - FILE_SUFFIX.length()), file.toFile().lastModified());
+            }
+        } catch (IOException e) {
+            log.error("Cannot initialise the catalogue cache in {}", directory, e);
+        }
+    }
+
+    /**
+     * Create the cache key for a catalogue request
+     *
+     * @param catalogue title of the catalogue
+     * @param ruleset file name of the ruleset the record is created with
+     * @param values the requested fields and values
+     * @return the key
+     */
+    public static String createKey(String catalogue, String ruleset, List<StringPair> values) {
+        StringBuilder sb = new StringBuilder(catalogue).append('\u0000').append(ruleset);
+        for (StringPair sp : values) {
+            sb.append('\u0000').append(sp.getOne()).append('\u0000').append(sp.getTwo());
+        }
+        return DocStructFingerprint.toHex(DocStructFingerprint.newDigest().digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Get a record from the cache. The entry is locked while the given function is executed, so that the raw data files of the record can be
+     * copied before another process replaces them.
+     *
+     * @param key the cache key
+     * @param ttlSeconds maximum age of the record, a negative value accepts records of any age
+     * @param prefs the ruleset to read the record with
+     * @param restore gets the cached record, it must copy the raw data files of the record, if they are needed
+     * @return the result of the function or null, if no usable record exists
+     */
+    public <T> T get(String key, long ttlSeconds, Prefs prefs, Function<CachedRecord, T> restore) {
+        Long storedAt;
+        synchronized (entries) {
+            storedAt = entries.get(key);
+        }
+        if (storedAt == null || ttlSeconds >= 0 && System.currentTimeMillis() - storedAt > ttlSeconds * 1000) {
+            return null;
+        }
+        ReadWriteLock lock = getLock(key);
+        boolean unreadable = false;
+        lock.readLock().lock();
+        try {
+            CachedRecord cachedRecord = null;
+            try {
+                cachedRecord = read(key, prefs);
+            } catch (Exception e) {
+                log.warn("Cached catalogue record {} is not readable, removing it", key, e);
+                unreadable = true;
+            }
+            if (cachedRecord != null) {
+                log.debug("Using cached catalogue record {}", key);
+                return restore.apply(cachedRecord);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (unreadable) {
+            remove(key);
+        }
+        return null;
+    }
+
+    /**
+     * Read the files of an entry, the caller must hold the lock of the entry
+     *
+     * @return the record or null, if the entry was removed in the meantime
+     */
+    private CachedRecord read(String key, Prefs prefs) throws Exception {
+        Path file = directory.resolve(key + FILE_SUFFIX);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Fileformat ff = new MetsMods(prefs);
+        ff.read(file.toString());
+        String rawDataFingerprint = null;
+        Path fingerprintFile = directory.resolve(key + FINGERPRINT_SUFFIX);
+        if (Files.exists(fingerprintFile)) {
+            rawDataFingerprint = new String(Files.readAllBytes(fingerprintFile), StandardCharsets.UTF_8).trim();
+        }
+        List<Path> rawDataFiles = new ArrayList<>();
+        Path rawDataDirectory = directory.resolve(key + RAW_DATA_SUFFIX);
+        if (Files.isDirectory(rawDataDirectory)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(rawDataDirectory)) {
+                for (Path rawDataFile : stream) {
+                    rawDataFiles.add(rawDataFile);
+                }
+            }
+            Collections.sort(rawDataFiles);
+        }
+        return new CachedRecord(ff, rawDataFingerprint, rawDataFiles);
+    }
+
+    /**
+     * Store a record in the cache. Errors are only logged, as the cache must not stop the catalogue request.
+     *
+     * @param key the cache key
+     * @param fileformat the record to store
+     * @param rawDataFingerprint the fingerprint of the raw data of the record, can be null
+     * @param rawDataFiles the files containing the raw data of the record, they are copied into the cache
+     * @param prefs the ruleset
+     */
+    public void put(String key, Fileformat fileformat, String rawDataFingerprint, List<Path> rawDataFiles, Prefs prefs) {
+        String tempName = "tmp-" + UUID.randomUUID();
+        Path tempFile = directory.resolve(tempName + FILE_SUFFIX);
+        Path tempAnchor = directory.resolve(tempName + ANCHOR_SUFFIX);
+        Path tempRawData = directory.resolve(tempName + RAW_DATA_SUFFIX);
+        Path tempFingerprint = directory.resolve(tempName + FINGERPRINT_SUFFIX);
+        try {
+            // all files are written under temporary names first, only the moves are done while the entry is locked
+            MetsMods mm = new MetsMods(prefs);
+            mm.setDigitalDocument(fileformat.getDigitalDocument());
+            mm.write(tempFile.toString());
+            if (!rawDataFiles.isEmpty()) {
+                Files.createDirectories(tempRawData);
+                for (Path rawDataFile : rawDataFiles) {
+                    Files.copy(rawDataFile, tempRawData.resolve(rawDataFile.getFileName().toString()));
+                }
+            }
+            if (rawDataFingerprint != null) {
+                Files.write(tempFingerprint, rawDataFingerprint.getBytes(StandardCharsets.UTF_8));
+            }
+
+            Path file = directory.resolve(key + FILE_SUFFIX);
+            long now = System.currentTimeMillis();
+            ReadWriteLock lock = getLock(key);
+            lock.writeLock().lock();
+            try {
+                // move the anchor, raw data and fingerprint first, the main file marks the entry as complete
+                replace(tempAnchor, directory.resolve(key + ANCHOR_SUFFIX));
+                Path rawDataDirectory = directory.resolve(key + RAW_DATA_SUFFIX);
+                deleteDirectory(rawDataDirectory);
+                if (Files.isDirectory(tempRawData)) {
+                    moveAtomically(tempRawData, rawDataDirectory);
+                }
+                replace(tempFingerprint, directory.resolve(key + FINGERPRINT_SUFFIX));
+                moveAtomically(tempFile, file);
+                Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            synchronized (entries) {
+                entries.put(key, now);
+            }
+            evict();
+        } catch (Exception e) {
+            log.warn("Catalogue record {} could not be stored in the cache", key, e);
+            try {
+                Files.deleteIfExists(tempFile);
+                Files.deleteIfExists(tempAnchor);
+                Files.deleteIfExists(tempFingerprint);
+                deleteDirectory(tempRawData);
+            } catch (IOException e1) {
+                log.error(e1);
+            }
+        }
+    }
+
+    /**
+     * Move the temporary file to the target or delete the target, if no temporary file exists
+     */
+    private static void replace(Path tempFile, Path target) throws IOException {
+        if (Files.exists(tempFile)) {
+            moveAtomically(tempFile, target);
+        } else {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private ReadWriteLock getLock(String key) {
+        return locks[Math.floorMod(key.hashCode(), locks.length)];
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteDirectory(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(folder)) {
+            stream.forEach(files::add);
+        }
+        // children first
+        files.sort(Comparator.reverseOrder());
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void evict() {
+        List<String> toRemove = new ArrayList<>();
+        synchronized (entries) {
+            Iterator<String> iterator = entries.keySet().iterator();
+            while (entries.size() - toRemove.size() > maxEntries && iterator.hasNext()) {
+                toRemove.add(iterator.next());
+            }
+        }
+        for (String key : toRemove) {
+            remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+        ReadWriteLock lock = getLock(key);
+        lock.writeLock().lock();
+        try {
+            // the main file is removed first, so that the entry is not used anymore
+            Files.deleteIfExists(directory.resolve(key + FILE_SUFFIX));
+            Files.deleteIfExists(directory.resolve(key + ANCHOR_SUFFIX));
+            Files.deleteIfExists(directory.resolve(key + FINGERPRINT_SUFFIX));
+            deleteDirectory(directory.resolve(key + RAW_DATA_SUFFIX));
+        } catch (IOException e) {
+            log.error("Cannot delete cached catalogue record {}", key, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A record read from the cache
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class CachedRecord {
+        private final Fileformat fileformat;
+        // null if the record was stored without raw data
+        private final String rawDataFingerprint;
+        // files containing the raw data of the record, they can only be used while the entry is locked
+        private final List<Path> rawDataFiles;
+    }
+}
@@ -0,0 +1,20 @@
+package de.intranda.goobi.plugins;
+
+import lombok.Getter;
+
+/**
+ * Thrown if a catalogue request was not answered in time or was rejected, because the catalogue failed repeatedly before
+ */
+public class CatalogueUnavailableException extends Exception {
+
+    private static final long serialVersionUID = 2674300945619306520L;
+
+    // true if the request was sent, but not answered in time
+    @Getter
+    private final boolean timeout;
+
+    public CatalogueUnavailableException(String message, boolean timeout) {
+        super(message);
+        this.timeout = timeout;
+    }
+}
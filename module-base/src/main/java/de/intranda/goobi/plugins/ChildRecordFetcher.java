@@ -0,0 +1,358 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.goobi.production.cli.helper.StringPair;
+import org.goobi.production.plugin.interfaces.IOpacPlugin;
+
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+import ugh.exceptions.PreferencesException;
+
+/**
+ * Requests the catalogue records for the sub elements of a record. Each identifier is requested only once, the requests are executed in parallel
+ * up to the configured limit. As opac plugins keep the state of the last search, each request borrows its own plugin instance from the
+ * {@link CatalogueRegistry}. Identical requests of other processes running at the same time are combined. If the opac plugin provides the
+ * method of {@link IOpacPluginBatchSearch}, the identifiers are requested in chunks instead. All requests are checked by the
+ * {@link CatalogueCallGuard} of the catalogue first and then wait for the {@link CatalogueRequestScheduler}. Records found in the local index
+ * of a catalogue export are not requested at all.
+ */
+@Log4j2
+class ChildRecordFetcher {
+
+    private static final CatalogueRequestCoalescer<Fileformat> RUNNING_REQUESTS = new CatalogueRequestCoalescer<>();
+    private static final CatalogueRequestCoalescer<Map<String, Fileformat>> RUNNING_BATCHES = new CatalogueRequestCoalescer<>();
+
+    private final String catalogue;
+    private final ConfigOpacCatalogue coc;
+    private final CatalogueRequestConfiguration config;
+    private final Prefs prefs;
+    private final String ruleset;
+    private final int parallelism;
+    private final int batchSize;
+    private final CatalogueRequestScheduler.Settings schedulerSettings;
+    private final OfflineCatalogueIndex offlineIndex;
+    private final boolean interactive;
+    private final Set<String> reusablePlugins;
+
+    /**
+     * @param coc the catalogue
+     * @param prefs the ruleset
+     * @param ruleset the file name of the ruleset, records are only shared between processes using the same ruleset
+     * @param config the configuration containing the parallelism, batch size, scheduler limits and request protection
+     * @param offlineIndex local index of a catalogue export that is used before the catalogue is requested, can be null
+     * @param interactive true if the requests were triggered by a user
+     */
+    ChildRecordFetcher(ConfigOpacCatalogue coc, Prefs prefs, String ruleset, CatalogueRequestConfiguration config, OfflineCatalogueIndex offlineIndex,
+            boolean interactive) {
+        this(coc.getTitle(), coc, prefs, ruleset, config, offlineIndex, interactive);
+    }
+
+    /**
+     * @param catalogue the title of the catalogue
+     * @param coc the catalogue configuration given to the opac plugin
+     */
+    ChildRecordFetcher(String catalogue, ConfigOpacCatalogue coc, Prefs prefs, String ruleset, CatalogueRequestConfiguration config,
+            OfflineCatalogueIndex offlineIndex, boolean interactive) {
+        this.catalogue = catalogue;
+        this.coc = coc;
+        this.config = config;
+        this.prefs = prefs;
+        this.ruleset = ruleset;
+        this.offlineIndex = offlineIndex;
+        this.interactive = interactive;
+        this.parallelism = Math.max(1, config.getSubElementParallelism());
+        this.batchSize = Math.max(1, config.getSubElementBatchSize());
+        this.schedulerSettings = config.getSchedulerSettings(catalogue);
+        this.reusablePlugins = config.getReusablePlugins();
+    }
+
+    /**
+     * Request the records for all given identifiers
+     *
+     * @param identifiers the identifiers to request, must not contain duplicates
+     * @param failed list to collect the identifiers that could not be requested
+     * @return the records for all identifiers that were found
+     * @throws InterruptedException
+     */
+    Map<String, Fileformat> fetch(Collection<String> identifiers, List<String> failed) throws InterruptedException {
+        Map<String, Fileformat> records = new ConcurrentHashMap<>();
+        List<Runnable> tasks = new ArrayList<>();
+        if (batchSize > 1 && identifiers.size() > 1 && supportsBatchSearch()) {
+            List<String> chunk = new ArrayList<>(batchSize);
+            for (String identifier : identifiers) {
+                chunk.add(identifier);
+                if (chunk.size() == batchSize) {
+                    List<String> current = chunk;
+                    tasks.add(() -> fetchChunk(current, records, failed));
+                    chunk = new ArrayList<>(batchSize);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                List<String> current = chunk;
+                tasks.add(() -> fetchChunk(current, records, failed));
+            }
+        } else {
+            for (String identifier : identifiers) {
+                tasks.add(() -> fetchRecord(identifier, records, failed));
+            }
+        }
+
+        if (parallelism == 1 || tasks.size() < 2) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return records;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>(tasks.size());
+            for (Runnable task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("Unexpected error during the request of a sub element", e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return records;
+    }
+
+    private void fetchRecord(String identifier, Map<String, Fileformat> records, List<String> failed) {
+        try {
+            String key = CatalogueResponseCache.createKey(catalogue, ruleset, Collections.singletonList(new StringPair("12", identifier)));
+            CatalogueRequestCoalescer.Result<Fileformat> result = RUNNING_REQUESTS.execute(key, () -> search(identifier));
+            Fileformat ff = result.isShared() ? CatalogueRequestCoalescer.copyRecord(result.getValue(), prefs) : result.getValue();
+            if (isValid(ff)) {
+                records.put(identifier, ff);
+                return;
+            }
+            log.warn("No record found for sub element with identifier {}", identifier);
+        } catch (Exception e) {
+            log.warn("Exception while requesting the catalogue for sub element with identifier {}", identifier, e);
+        }
+        synchronized (failed) {
+            failed.add(identifier);
+        }
+    }
+
+    /**
+     * Request the records for a chunk of identifiers with a single request. If the batch request fails, each identifier is requested separately.
+     */
+    private void fetchChunk(List<String> identifiers, Map<String, Fileformat> records, List<String> failed) {
+        List<String> remaining = new ArrayList<>(identifiers);
+        if (offlineIndex != null) {
+            findOffline(remaining, records);
+            if (remaining.isEmpty()) {
+                return;
+            }
+        }
+        Map<String, Fileformat> found;
+        try {
+            List<StringPair> values = new ArrayList<>(remaining.size());
+            for (String identifier : remaining) {
+                values.add(new StringPair("12", identifier));
+            }
+            String key = CatalogueResponseCache.createKey(catalogue, ruleset, values);
+            // the plugin instance is only borrowed by the request that is actually sent
+            CatalogueRequestCoalescer.Result<Map<String, Fileformat>> result = RUNNING_BATCHES.execute(key, () -> searchBatch(remaining));
+            found = result.getValue();
+            if (found != null && result.isShared()) {
+                // the records of other processes must not be changed
+                Map<String, Fileformat> copies = new HashMap<>();
+                for (Map.Entry<String, Fileformat> entry : found.entrySet()) {
+                    copies.put(entry.getKey(), CatalogueRequestCoalescer.copyRecord(entry.getValue(), prefs));
+                }
+                found = copies;
+            }
+        } catch (Exception e) {
+            log.warn("Exception during the batch request of {} sub elements, requesting them separately", remaining.size(), e);
+            found = null;
+        }
+
+        if (found == null) {
+            for (String identifier : remaining) {
+                fetchRecord(identifier, records, failed);
+            }
+            return;
+        }
+        for (String identifier : remaining) {
+            Fileformat ff = found.get(identifier);
+            if (isValid(ff)) {
+                records.put(identifier, ff);
+            } else {
+                log.warn("No record found for sub element with identifier {}", identifier);
+                synchronized (failed) {
+                    failed.add(identifier);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the records of the given identifiers in the catalogue export, the identifiers of the records found are removed from the list. A plugin
+     * instance is only needed if the opac plugin converts the records itself.
+     */
+    private void findOffline(List<String> identifiers, Map<String, Fileformat> records) {
+        Class<?> pluginType = getPluginType();
+        IOpacPlugin plugin = pluginType != null && OpacPluginCapabilities.of(pluginType).isOfflineRecordDecoder() ? borrowPlugin() : null;
+        try {
+            for (Iterator<String> iterator = identifiers.iterator(); iterator.hasNext();) {
+                String identifier = iterator.next();
+                Fileformat ff = offlineIndex.lookup(identifier, plugin, prefs);
+                if (isValid(ff)) {
+                    records.put(identifier, ff);
+                    iterator.remove();
+                }
+            }
+        } finally {
+            releasePlugin(plugin);
+        }
+    }
+
+    private Map<String, Fileformat> searchBatch(List<String> identifiers) throws Exception {
+        IOpacPlugin plugin = borrowPlugin();
+        try {
+            return CatalogueCallGuard.getInstance(catalogue)
+                    .call(config, () -> CatalogueRequestScheduler.getInstance()
+                            .execute(catalogue, schedulerSettings, interactive, () -> searchBatch(plugin, identifiers)), null, null);
+        } catch (Exception e) {
+            discardIfAbandoned(plugin, e);
+            throw e;
+        } finally {
+            releasePlugin(plugin);
+        }
+    }
+
+    private Map<String, Fileformat> searchBatch(IOpacPlugin plugin, List<String> identifiers) throws Exception {
+        if (plugin instanceof IOpacPluginBatchSearch) {
+            return ((IOpacPluginBatchSearch) plugin).searchBatch("12", identifiers, coc, prefs);
+        }
+        // opac plugins loaded by their own class loader cannot implement the interface, their public method is called reflectively
+        return OpacPluginCapabilities.of(plugin.getClass()).searchBatch(plugin, "12", identifiers, coc, prefs);
+    }
+
+    private boolean supportsBatchSearch() {
+        Class<?> pluginType = getPluginType();
+        return pluginType != null
+                && (IOpacPluginBatchSearch.class.isAssignableFrom(pluginType) || OpacPluginCapabilities.of(pluginType).isBatchSearch());
+    }
+
+    /**
+     * @return an instance of the opac plugin of the catalogue, see {@link CatalogueRegistry#borrowPlugin(ConfigOpacCatalogue)}
+     */
+    IOpacPlugin borrowPlugin() {
+        return CatalogueRegistry.getInstance().borrowPlugin(coc);
+    }
+
+    /**
+     * Give a borrowed instance back, see {@link CatalogueRegistry#releasePlugin(ConfigOpacCatalogue, IOpacPlugin, Set)}
+     */
+    void releasePlugin(IOpacPlugin plugin) {
+        CatalogueRegistry.getInstance().releasePlugin(coc, plugin, reusablePlugins);
+    }
+
+    /**
+     * @return the class of the opac plugin of the catalogue or null, if the catalogue has no opac plugin
+     */
+    Class<?> getPluginType() {
+        return CatalogueRegistry.getInstance().getPluginType(coc);
+    }
+
+    /**
+     * Merge the records into the sub elements with their identifier. Every further sub element with the same identifier gets its own copy of the
+     * record.
+     *
+     * @param elementsByIdentifier the sub elements by the identifier of their record
+     * @param records the records found, by identifier
+     * @param merger merges a record into a sub element
+     * @throws Exception the exception of the merge
+     */
+    static void assignRecords(Map<String, List<DocStruct>> elementsByIdentifier, Map<String, Fileformat> records, RecordMerger merger)
+            throws Exception {
+        for (Map.Entry<String, List<DocStruct>> entry : elementsByIdentifier.entrySet()) {
+            Fileformat ff = records.get(entry.getKey());
+            if (ff == null) {
+                continue;
+            }
+            boolean first = true;
+            for (DocStruct ds : entry.getValue()) {
+                // the new elements are added directly, so every further sub element with the same identifier needs its own copy
+                DigitalDocument record = first ? ff.getDigitalDocument() : ff.getDigitalDocument().copyDigitalDocument();
+                merger.merge(ds, record.getLogicalDocStruct());
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * A request that exceeded its deadline may still be running, its plugin instance must not be used again
+     */
+    private static void discardIfAbandoned(IOpacPlugin plugin, Exception e) {
+        if (e instanceof CatalogueUnavailableException && ((CatalogueUnavailableException) e).isTimeout()) {
+            CatalogueRegistry.getInstance().discardPlugin(plugin);
+        }
+    }
+
+    private static boolean isValid(Fileformat ff) {
+        try {
+            return ff != null && ff.getDigitalDocument() != null && ff.getDigitalDocument().getLogicalDocStruct() != null;
+        } catch (PreferencesException e) {
+            return false;
+        }
+    }
+
+    private Fileformat search(String identifier) throws Exception {
+        IOpacPlugin plugin = borrowPlugin();
+        try {
+            if (offlineIndex != null) {
+                Fileformat ff = offlineIndex.lookup(identifier, plugin, prefs);
+                if (ff != null) {
+                    return ff;
+                }
+            }
+            return CatalogueCallGuard.getInstance(catalogue)
+                    .call(config, () -> CatalogueRequestScheduler.getInstance()
+                            .execute(catalogue, schedulerSettings, interactive, () -> plugin.search("12", identifier, coc, prefs)), null, null);
+        } catch (Exception e) {
+            discardIfAbandoned(plugin, e);
+            throw e;
+        } finally {
+            releasePlugin(plugin);
+        }
+    }
+
+    /**
+     * Merges a catalogue record into a sub element
+     */
+    interface RecordMerger {
+
+        /**
+         * @param element the sub element
+         * @param record the logical element of the record
+         */
+        void merge(DocStruct element, DocStruct record) throws Exception;
+    }
+}
@@ -0,0 +1,519 @@
+package de.intranda.goobi.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import de.sub.goobi.helper.BackupFileRotation;
+import de.sub.goobi.helper.StorageProvider;
+import de.sub.goobi.helper.StorageProviderInterface;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.FileSet;
+import ugh.dl.Prefs;
+import ugh.exceptions.UGHException;
+import ugh.fileformats.mets.MetsMods;
+
+/**
+ * Updates the descriptive metadata of the logical and physical top element in an existing METS file without writing the complete file again. The
+ * changed elements are serialized into a small METS document, their <code>dmdSec</code> sections replace the sections of the existing file. The
+ * existing file is parsed only up to the start of the physical structure to find the sections, then it is copied in chunks to the new file and only
+ * the replaced sections are exchanged. The new file is written next to the existing one and renamed afterwards, the existing file is kept as a
+ * backup in the same way as Goobi does it for the complete write.
+ */
+@Log4j2
+final class DmdSecPatchWriter {
+
+    private static final String METS_NAMESPACE = "http://www.loc.gov/METS/";
+
+    private static final XMLInputFactory FACTORY;
+
+    static {
+        FACTORY = XMLInputFactory.newInstance();
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private DmdSecPatchWriter() {
+    }
+
+    /**
+     * Replace the dmdSec sections of the given elements
+     *
+     * @param metsFile the existing METS file
+     * @param prefs the ruleset
+     * @param topstruct the logical element described in the file, the first child of an anchor
+     * @param physical the physical top element
+     * @param topstructChanged true if the metadata of the logical element was changed
+     * @param physicalChanged true if the metadata of the physical element was changed
+     * @param numberOfBackups number of backups of the METS file to keep, 0 disables the backup
+     * @return true if the file was updated, false if the sections cannot be replaced and the complete file must be written
+     */
+    static boolean write(Path metsFile, Prefs prefs, DocStruct topstruct, DocStruct physical, boolean topstructChanged, boolean physicalChanged,
+            int numberOfBackups) {
+        StorageProviderInterface storage = StorageProvider.getInstance();
+        Path targetFile = metsFile.resolveSibling("." + metsFile.getFileName() + ".tmp");
+        Path patchFile = null;
+        try {
+            // write the changed elements into a small document to get their serialized metadata
+            DigitalDocument patch = new DigitalDocument();
+            patch.setFileSet(new FileSet());
+            patch.setLogicalDocStruct(topstruct.copy(true, false));
+            if (physical != null) {
+                patch.setPhysicalDocStruct(physical.copy(true, false));
+            }
+            patchFile = Files.createTempFile("catalogue_request_", ".xml");
+            MetsMods mm = new MetsMods(prefs);
+            mm.setDigitalDocument(patch);
+            mm.write(patchFile.toString());
+            byte[] patchContent = Files.readAllBytes(patchFile);
+            Structure patchStructure = Structure.scan(new ByteArrayInputStream(patchContent));
+
+            Structure existing;
+            try (InputStream in = storage.newInputStream(metsFile)) {
+                existing = Structure.scan(in);
+            }
+            // existing section id -> new section
+            Map<String, byte[]> replacements = new HashMap<>();
+            if (topstructChanged && !addReplacement(replacements, existing, existing.getLogicalId(), patchContent, patchStructure,
+                    patchStructure.getLogicalId())) {
+                return false;
+            }
+            if (physicalChanged && !addReplacement(replacements, existing, existing.getPhysicalId(), patchContent, patchStructure,
+                    patchStructure.getPhysicalId())) {
+                return false;
+            }
+
+            // the file is read a second time, everything but the replaced sections is copied as it is
+            try (SectionReader in = new SectionReader(storage.newInputStream(metsFile));
+                    OutputStream out = storage.newOutputStream(targetFile)) {
+                if (!copySections(in, out, existing, replacements)) {
+                    return false;
+                }
+                in.transferTo(out);
+            }
+
+            createBackup(metsFile, numberOfBackups);
+            replace(targetFile, metsFile);
+            return true;
+        } catch (IOException | XMLStreamException | UGHException | RuntimeException e) {
+            log.warn("Cannot update the metadata sections of {}, writing the complete file", metsFile, e);
+            return false;
+        } finally {
+            deleteQuietly(patchFile);
+            try {
+                if (storage.isFileExists(targetFile)) {
+                    storage.deleteFile(targetFile);
+                }
+            } catch (Exception e) {
+                log.debug("Cannot delete temporary file {}", targetFile, e);
+            }
+        }
+    }
+
+    /**
+     * Keep the existing file as backup. The same helper and the same file names are used as for the complete write, so the backups of the METS
+     * file and of its anchor file stay together.
+     */
+    private static void createBackup(Path metsFile, int numberOfBackups) throws IOException {
+        if (numberOfBackups <= 0) {
+            return;
+        }
+        String filename = metsFile.getFileName().toString();
+        String baseName = filename.endsWith(".xml") ? filename.substring(0, filename.length() - 4) : filename;
+        BackupFileRotation rotation = new BackupFileRotation();
+        rotation.setNumberOfBackups(numberOfBackups);
+        rotation.setFormat(Pattern.quote(baseName) + ".*\\.xml");
+        rotation.setProcessDataDirectory(metsFile.getParent().toString() + File.separator);
+        rotation.performBackup();
+    }
+
+    /**
+     * Replace the existing file by the new one. On a local file system the new file is renamed atomically, so the METS file is always complete.
+     */
+    private static void replace(Path targetFile, Path metsFile) throws IOException {
+        if (Files.exists(targetFile)) {
+            try {
+                Files.move(targetFile, metsFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                return;
+            } catch (AtomicMoveNotSupportedException e) {
+                log.debug("Cannot rename {} atomically", targetFile, e);
+            }
+        }
+        // the file is not stored in the local file system or cannot be renamed atomically
+        StorageProvider.getInstance().move(targetFile, metsFile);
+    }
+
+    /**
+     * Copy the existing file up to the end of the last replaced section. The dmdSec sections are searched in the order in which they were found by
+     * the parser, each start tag must contain the expected id.
+     *
+     * @return false if a section could not be found
+     */
+    private static boolean copySections(SectionReader in, OutputStream out, Structure structure, Map<String, byte[]> replacements)
+            throws IOException {
+        int remaining = replacements.size();
+        for (Map.Entry<String, String> dmdSec : structure.getDmdSecNames().entrySet()) {
+            if (remaining == 0) {
+                break;
+            }
+            byte[] replacement = replacements.get(dmdSec.getKey());
+            // the existing section is skipped if it is replaced
+            OutputStream sectionOut = replacement == null ? out : null;
+            if (!in.moveToElement(bytes("<" + dmdSec.getValue()), out)) {
+                return false;
+            }
+            ByteArrayOutputStream startTag = new ByteArrayOutputStream();
+            if (!in.moveTo(bytes(">"), startTag) || !in.copy(1, startTag)) {
+                return false;
+            }
+            String tag = new String(startTag.toByteArray(), StandardCharsets.UTF_8);
+            if (!tag.matches("(?s).*\\sID\\s*=\\s*[\"']" + Pattern.quote(dmdSec.getKey()) + "[\"'].*")) {
+                return false;
+            }
+            if (sectionOut != null) {
+                startTag.writeTo(sectionOut);
+            }
+            // an empty section has no end tag
+            if (!tag.endsWith("/>") && !(in.moveToElement(bytes("</" + dmdSec.getValue()), sectionOut) && in.moveTo(bytes(">"), sectionOut)
+                    && in.copy(1, sectionOut))) {
+                return false;
+            }
+            if (replacement != null) {
+                out.write(replacement);
+                remaining--;
+            }
+        }
+        return remaining == 0;
+    }
+
+    private static boolean addReplacement(Map<String, byte[]> replacements, Structure existing, String existingId, byte[] patchContent,
+            Structure patch, String patchId) {
+        if (existingId == null || patchId == null || existingId.contains(" ") || patchId.contains(" ")) {
+            // the element has no own section in one of the files, so the structMap would change as well
+            return false;
+        }
+        Map<String, int[]> patchRanges = findSections(patchContent, patch);
+        int[] range = patchRanges == null ? null : patchRanges.get(patchId);
+        if (range == null) {
+            return false;
+        }
+        String section = new String(patchContent, range[0], range[1] - range[0], StandardCharsets.UTF_8);
+        // use the id of the existing section
+        section = section.replaceFirst(Pattern.quote("ID=\"" + patchId + "\""), Matcher.quoteReplacement("ID=\"" + existingId + "\""));
+        // namespaces of the small document that are not declared the same way in the existing file
+        StringBuilder declarations = new StringBuilder();
+        for (Map.Entry<String, String> namespace : patch.getNamespaces().entrySet()) {
+            if (!namespace.getValue().equals(existing.getNamespaces().get(namespace.getKey()))) {
+                declarations.append(namespace.getKey().isEmpty() ? " xmlns" : " xmlns:" + namespace.getKey())
+                        .append("=\"")
+                        .append(namespace.getValue())
+                        .append('"');
+            }
+        }
+        String startTag = "<" + patch.getDmdSecNames().get(patchId);
+        section = startTag + declarations + section.substring(startTag.length());
+        replacements.put(existingId, bytes(section));
+        return true;
+    }
+
+    /**
+     * Find the byte ranges of the dmdSec sections in the given content. The sections are searched in the order in which they were found by the
+     * parser, each start tag must contain the expected id.
+     *
+     * @return section id -> start and end of the section or null, if the sections could not be found
+     */
+    private static Map<String, int[]> findSections(byte[] content, Structure structure) {
+        Map<String, int[]> ranges = new HashMap<>();
+        int position = 0;
+        for (Map.Entry<String, String> dmdSec : structure.getDmdSecNames().entrySet()) {
+            byte[] startPattern = bytes("<" + dmdSec.getValue());
+            int start = indexOf(content, startPattern, position);
+            while (start >= 0 && !isNameEnd(content, start + startPattern.length)) {
+                start = indexOf(content, startPattern, start + 1);
+            }
+            if (start < 0) {
+                return null;
+            }
+            int startTagEnd = indexOf(content, bytes(">"), start);
+            if (startTagEnd < 0) {
+                return null;
+            }
+            String startTag = new String(content, start, startTagEnd - start, StandardCharsets.UTF_8);
+            if (!startTag.matches("(?s).*\\sID\\s*=\\s*[\"']" + Pattern.quote(dmdSec.getKey()) + "[\"'].*")) {
+                return null;
+            }
+            int end;
+            if (content[startTagEnd - 1] == '/') {
+                // empty section
+                end = startTagEnd + 1;
+            } else {
+                byte[] endPattern = bytes("</" + dmdSec.getValue());
+                int endTag = indexOf(content, endPattern, startTagEnd);
+                while (endTag >= 0 && !isNameEnd(content, endTag + endPattern.length)) {
+                    endTag = indexOf(content, endPattern, endTag + 1);
+                }
+                int endTagEnd = endTag < 0 ? -1 : indexOf(content, bytes(">"), endTag);
+                if (endTagEnd < 0) {
+                    return null;
+                }
+                end = endTagEnd + 1;
+            }
+            ranges.put(dmdSec.getKey(), new int[] { start, end });
+            position = end;
+        }
+        return ranges;
+    }
+
+    private static boolean isNameEnd(byte[] content, int index) {
+        if (index >= content.length) {
+            return false;
+        }
+        byte b = content[index];
+        return b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static int indexOf(byte[] content, byte[] pattern, int from) {
+        return indexOf(content, pattern, from, content.length);
+    }
+
+    private static int indexOf(byte[] content, byte[] pattern, int from, int to) {
+        outer: for (int i = Math.max(0, from); i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (content[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Cannot delete temporary file {}", file, e);
+        }
+    }
+
+    /**
+     * The parts of a METS file needed to replace the sections: the namespaces of the root element, the qualified names of all dmdSec sections and
+     * the section ids of the logical element that is described in this file and of the physical top element. If the logical top element is an
+     * anchor, the described element is its first child.
+     */
+    @Getter
+    private static class Structure {
+        private final Map<String, String> namespaces = new HashMap<>();
+        // section id -> qualified element name, in the order of the file
+        private final Map<String, String> dmdSecNames = new LinkedHashMap<>();
+        private String logicalId;
+        private String physicalId;
+
+        /**
+         * Parse the file until the logical and the physical top element are found
+         */
+        private static Structure scan(InputStream in) throws XMLStreamException {
+            Structure structure = new Structure();
+            XMLStreamReader xml = FACTORY.createXMLStreamReader(in);
+            try {
+                String structMap = null;
+                int depth = 0;
+                int structMapDepth = -1;
+                String topId = null;
+                boolean anchor = false;
+                boolean logicalDone = false;
+                boolean physicalDone = false;
+                // the rest of the file is not needed
+                while (xml.hasNext() && !(logicalDone && physicalDone)) {
+                    int event = xml.next();
+                    if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                        if (isMets(xml, "structMap") && "LOGICAL".equals(structMap) && !logicalDone) {
+                            structure.logicalId = anchor ? null : topId;
+                            logicalDone = true;
+                        }
+                        continue;
+                    } else if (event != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    depth++;
+                    if (depth == 1) {
+                        for (int i = 0; i < xml.getNamespaceCount(); i++) {
+                            String prefix = xml.getNamespacePrefix(i);
+                            structure.namespaces.put(prefix == null ? "" : prefix, xml.getNamespaceURI(i));
+                        }
+                    }
+                    if (isMets(xml, "dmdSec")) {
+                        String prefix = xml.getPrefix();
+                        String id = xml.getAttributeValue(null, "ID");
+                        if (id != null) {
+                            structure.dmdSecNames.put(id, prefix == null || prefix.isEmpty() ? "dmdSec" : prefix + ":dmdSec");
+                        }
+                    } else if (isMets(xml, "structMap")) {
+                        structMap = xml.getAttributeValue(null, "TYPE");
+                        structMapDepth = depth;
+                    } else if ("LOGICAL".equals(structMap) && !logicalDone) {
+                        if (isMets(xml, "div") && depth == structMapDepth + 1) {
+                            topId = xml.getAttributeValue(null, "DMDID");
+                        } else if (isMets(xml, "mptr") && depth == structMapDepth + 2) {
+                            anchor = true;
+                        } else if (isMets(xml, "div") && depth == structMapDepth + 2) {
+                            structure.logicalId = anchor ? xml.getAttributeValue(null, "DMDID") : topId;
+                            logicalDone = true;
+                        }
+                    } else if ("PHYSICAL".equals(structMap) && isMets(xml, "div") && depth == structMapDepth + 1) {
+                        structure.physicalId = xml.getAttributeValue(null, "DMDID");
+                        physicalDone = true;
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+            return structure;
+        }
+
+        private static boolean isMets(XMLStreamReader xml, String localName) {
+            return localName.equals(xml.getLocalName()) && METS_NAMESPACE.equals(xml.getNamespaceURI());
+        }
+    }
+
+    /**
+     * Reads a file in chunks and copies the bytes up to a searched pattern. Only the current chunk is kept in memory.
+     */
+    private static class SectionReader implements Closeable {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final InputStream in;
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        // the unread bytes of the current chunk
+        private int position = 0;
+        private int limit = 0;
+        private boolean eof = false;
+
+        private SectionReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Make sure that the next bytes are in the buffer
+         *
+         * @return false if the file ends before
+         */
+        private boolean fill(int count) throws IOException {
+            if (limit - position >= count) {
+                return true;
+            }
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            if (count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(count, 2 * buffer.length));
+            }
+            while (limit < count && !eof) {
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    limit += read;
+                }
+            }
+            return limit >= count;
+        }
+
+        /**
+         * Copy the next bytes
+         *
+         * @param out the stream to copy to or null to skip the bytes
+         * @return false if the file ends before
+         */
+        private boolean copy(int count, OutputStream out) throws IOException {
+            if (!fill(count)) {
+                return false;
+            }
+            if (out != null) {
+                out.write(buffer, position, count);
+            }
+            position += count;
+            return true;
+        }
+
+        /**
+         * Copy all bytes up to the next occurrence of the pattern, the pattern itself is not read
+         *
+         * @param out the stream to copy to or null to skip the bytes
+         * @return false if the pattern was not found
+         */
+        private boolean moveTo(byte[] pattern, OutputStream out) throws IOException {
+            while (fill(pattern.length)) {
+                int index = indexOf(buffer, pattern, position, limit);
+                if (index >= 0) {
+                    return copy(index - position, out);
+                }
+                // the end of the chunk may be the beginning of the pattern
+                copy(limit - position - pattern.length + 1, out);
+            }
+            return false;
+        }
+
+        /**
+         * Like {@link #moveTo(byte[], OutputStream)} for the start of a tag, the pattern must be followed by the end of the element name
+         */
+        private boolean moveToElement(byte[] pattern, OutputStream out) throws IOException {
+            while (moveTo(pattern, out)) {
+                if (!fill(pattern.length + 1)) {
+                    return false;
+                }
+                if (isNameEnd(buffer, position + pattern.length)) {
+                    return true;
+                }
+                copy(1, out);
+            }
+            return false;
+        }
+
+        /**
+         * Copy the rest of the file
+         */
+        private void transferTo(OutputStream out) throws IOException {
+            out.write(buffer, position, limit - position);
+            position = limit;
+            in.transferTo(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
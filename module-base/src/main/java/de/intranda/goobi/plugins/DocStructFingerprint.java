@@ -0,0 +1,147 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ugh.dl.Corporate;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.NamePart;
+import ugh.dl.Person;
+
+/**
+ * Creates a canonical fingerprint of the descriptive metadata of docstructs. The entries are ordered by their type, the order of entries with the
+ * same type is kept. Two docstructs with the same metadata get the same fingerprint, even if the merge changed the position of the entries
+ * within the docstruct.
+ */
+final class DocStructFingerprint {
+
+    private DocStructFingerprint() {
+    }
+
+    /**
+     * Create the fingerprint of the given docstructs. Null values are allowed and create an own marker.
+     *
+     * @param docstructs the docstructs to use
+     * @return hex encoded SHA-256 fingerprint
+     */
+    static String of(List<DocStruct> docstructs) {
+        MessageDigest digest = newDigest();
+        for (DocStruct ds : docstructs) {
+            if (ds == null) {
+                update(digest, "null");
+            } else {
+                update(digest, "ds");
+                update(digest, ds.getType().getName());
+                addMetadata(digest, ds.getAllMetadata(), ds.getAllPersons(), ds.getAllCorporates(), ds.getAllMetadataGroups());
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Collect the given docstruct and all its logical descendants
+     *
+     * @param docstruct the docstruct to start with
+     * @param result the list to add the docstructs to
+     */
+    static void collectDescendants(DocStruct docstruct, List<DocStruct> result) {
+        List<DocStruct> children = docstruct.getAllChildren();
+        if (children != null) {
+            for (DocStruct child : children) {
+                result.add(child);
+                collectDescendants(child, result);
+            }
+        }
+    }
+
+    private static void addMetadata(MessageDigest digest, List<? extends Metadata> metadata, List<? extends Person> persons,
+            List<? extends Corporate> corporates, List<? extends MetadataGroup> groups) {
+        Map<String, List<String>> entries = new TreeMap<>();
+        if (metadata != null) {
+            for (Metadata md : metadata) {
+                entries.computeIfAbsent("m:" + md.getType().getName(), k -> new ArrayList<>())
+                        .add(join(md.getValue(), md.getAuthorityID(), md.getAuthorityURI(), md.getAuthorityValue()));
+            }
+        }
+        if (persons != null) {
+            for (Person p : persons) {
+                entries.computeIfAbsent("p:" + p.getType().getName(), k -> new ArrayList<>())
+                        .add(join(p.getRole(), p.getFirstname(), p.getLastname(), p.getDisplayname(), joinNameParts(p.getAdditionalNameParts()),
+                                p.getAuthorityID(), p.getAuthorityURI(), p.getAuthorityValue()));
+            }
+        }
+        if (corporates != null) {
+            for (Corporate c : corporates) {
+                entries.computeIfAbsent("c:" + c.getType().getName(), k -> new ArrayList<>())
+                        .add(join(c.getRole(), c.getMainName(), joinNameParts(c.getSubNames()), c.getPartName(), c.getAuthorityID(),
+                                c.getAuthorityURI(), c.getAuthorityValue()));
+            }
+        }
+        if (groups != null) {
+            for (MetadataGroup group : groups) {
+                MessageDigest groupDigest = newDigest();
+                addMetadata(groupDigest, group.getMetadataList(), group.getPersonList(), group.getCorporateList(), group.getAllMetadataGroups());
+                entries.computeIfAbsent("g:" + group.getType().getName(), k -> new ArrayList<>()).add(toHex(groupDigest.digest()));
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : entries.entrySet()) {
+            update(digest, entry.getKey());
+            for (String value : entry.getValue()) {
+                update(digest, value);
+            }
+        }
+        update(digest, "end");
+    }
+
+    private static String joinNameParts(List<NamePart> nameParts) {
+        StringBuilder sb = new StringBuilder();
+        if (nameParts != null) {
+            for (NamePart np : nameParts) {
+                sb.append(np.getType()).append('\u0002').append(np.getValue()).append('\u0002');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String join(String... values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            sb.append(value == null ? "" : value).append('\u0001');
+        }
+        return sb.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Create the SHA-256 digest used for all fingerprints and cache keys of the plugin
+     *
+     * @return a new digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // cannot happen, SHA-256 is available on every java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+
+/**
+ * A configured field value like <code>$(meta.CatalogIDDigital)</code>, parsed once when the configuration is read. The metadata variables are
+ * resolved directly from the docstructs in the same way as the {@link de.sub.goobi.helper.VariableReplacer} does it: <code>meta.topstruct.X</code>
+ * uses the logical top element, <code>meta.firstchild.X</code> the first child of an anchor and <code>meta.X</code> prefers the first child. If the
+ * expression contains other variables, it is not compiled and the result must be passed to the VariableReplacer afterwards.
+ */
+public final class FieldExpression {
+
+    // $(meta.X) or ${meta.X}, other notations are left to the VariableReplacer
+    private static final Pattern META_VARIABLE = Pattern.compile("\\$(?:\\(meta\\.([\\w.-]*)\\)|\\{meta\\.([\\w.-]*)\\})");
+    // any other variable of the VariableReplacer
+    private static final Pattern OTHER_VARIABLE = Pattern.compile("\\$\\(|\\{|\\}");
+    // variables that need the complete digital document
+    private static final Pattern DOCUMENT_VARIABLE = Pattern.compile("(?:\\(|\\{)metas\\.");
+
+    public enum Level {
+        TOPSTRUCT,
+        FIRSTCHILD,
+        ALL
+    }
+
+    /**
+     * Source of the metadata values
+     */
+    public interface MetadataSource {
+
+        /**
+         * @return the first value of the metadata on the given level or null, if it does not exist
+         */
+        String getValue(Level level, String metadataName);
+    }
+
+    @Getter
+    private final String expression;
+    // literal strings and variables
+    private final List<Object> parts;
+    @Getter
+    private final Set<String> metadataNames;
+    // true if no further replacement is needed
+    @Getter
+    private final boolean compiled;
+    // true if the expression can only be evaluated using the complete digital document
+    @Getter
+    private final boolean documentRequired;
+
+    private FieldExpression(String expression, List<Object> parts, Set<String> metadataNames, boolean compiled, boolean documentRequired) {
+        this.expression = expression;
+        this.parts = parts;
+        this.metadataNames = metadataNames;
+        this.compiled = compiled;
+        this.documentRequired = documentRequired;
+    }
+
+    /**
+     * Parse the expression
+     *
+     * @param expression the configured value
+     * @return the parsed expression
+     */
+    public static FieldExpression compile(String expression) {
+        List<Object> parts = new ArrayList<>();
+        Set<String> names = new LinkedHashSet<>();
+        StringBuilder rest = new StringBuilder();
+        Matcher matcher = META_VARIABLE.matcher(expression);
+        int position = 0;
+        while (matcher.find()) {
+            addLiteral(parts, rest, expression.substring(position, matcher.start()));
+            Variable variable = Variable.parse(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+            parts.add(variable);
+            names.add(variable.getMetadataName());
+            position = matcher.end();
+        }
+        addLiteral(parts, rest, expression.substring(position));
+        boolean compiled = !OTHER_VARIABLE.matcher(rest).find();
+        boolean documentRequired = DOCUMENT_VARIABLE.matcher(rest).find();
+        return new FieldExpression(expression, Collections.unmodifiableList(parts), Collections.unmodifiableSet(names), compiled, documentRequired);
+    }
+
+    private static void addLiteral(List<Object> parts, StringBuilder rest, String literal) {
+        if (!literal.isEmpty()) {
+            parts.add(literal);
+            rest.append(literal);
+        }
+    }
+
+    /**
+     * Replace all metadata variables with the values from the given source
+     *
+     * @param source the source of the values
+     * @return the value, if the expression is not compiled it still contains the other variables
+     */
+    public String evaluate(MetadataSource source) {
+        if (parts.size() == 1 && parts.get(0) instanceof String) {
+            return (String) parts.get(0);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Object part : parts) {
+            if (part instanceof Variable) {
+                Variable variable = (Variable) part;
+                String value = source.getValue(variable.getLevel(), variable.getMetadataName());
+                sb.append(value == null ? "" : value);
+            } else {
+                sb.append((String) part);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the metadata name of the first variable. This is the metadata used to identify sub elements.
+     *
+     * @return the metadata name or the expression itself, if it does not contain a variable
+     */
+    public String getFirstMetadataName() {
+        return metadataNames.isEmpty() ? expression.trim() : metadataNames.iterator().next();
+    }
+
+    /**
+     * Create a source for the values of a digital document
+     *
+     * @param dd the digital document
+     * @return the source
+     */
+    static MetadataSource of(DigitalDocument dd) {
+        DocStruct topstruct = dd == null ? null : dd.getLogicalDocStruct();
+        DocStruct firstchild = null;
+        if (topstruct != null && topstruct.getType().isAnchor() && topstruct.getAllChildren() != null && !topstruct.getAllChildren().isEmpty()) {
+            firstchild = topstruct.getAllChildren().get(0);
+        }
+        DocStruct first = firstchild;
+        return (level, name) -> {
+            String top = getValue(topstruct, name);
+            String child = getValue(first, name);
+            return select(level, top, child);
+        };
+    }
+
+    /**
+     * Select the value for the given level
+     */
+    static String select(Level level, String top, String child) {
+        switch (level) {
+            case TOPSTRUCT:
+                return top;
+            case FIRSTCHILD:
+                return child;
+            default:
+                return child != null ? child : top;
+        }
+    }
+
+    private static String getValue(DocStruct ds, String name) {
+        if (ds == null || ds.getAllMetadata() == null) {
+            return null;
+        }
+        for (Metadata md : ds.getAllMetadata()) {
+            if (md.getType() != null && name.equals(md.getType().getName())) {
+                return md.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Variable {
+        private final Level level;
+        private final String metadataName;
+
+        private static Variable parse(String variable) {
+            String lower = variable.toLowerCase();
+            if (lower.startsWith("firstchild.")) {
+                return new Variable(Level.FIRSTCHILD, variable.substring(11));
+            } else if (lower.startsWith("topstruct.")) {
+                return new Variable(Level.TOPSTRUCT, variable.substring(10));
+            }
+            return new Variable(Level.ALL, variable);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package de.intranda.goobi.plugins;
+
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+
+/**
+ * Optional capability of an opac plugin to request the record of a volume without requesting its anchor record. If the opac plugin of a catalogue
+ * provides these methods and the anchor cache is enabled, the anchor of a multi-volume work or periodical is requested only once and kept in the
+ * {@link AnchorRecordCache} for all further volumes.
+ *
+ * The opac plugins are built without this plugin, so they usually do not implement this interface. It describes the signature of public methods
+ * that are found by their name and parameter types, see {@link OpacPluginCapabilities}.
+ */
+public interface IOpacPluginAnchorSearch {
+
+    /**
+     * Request a record without its anchor record
+     *
+     * @param searchField the field to search in
+     * @param value the value to search for
+     * @param coc the catalogue
+     * @param prefs the ruleset to use
+     * @return the record or null, if no record was found. The logical element of a volume is the volume itself.
+     * @throws Exception
+     */
+    Fileformat searchWithoutAnchor(String searchField, String value, ConfigOpacCatalogue coc, Prefs prefs) throws Exception;
+
+    /**
+     * Get the identifier of the anchor record of the last record returned by {@link #searchWithoutAnchor(String, String, ConfigOpacCatalogue, Prefs)}
+     *
+     * @return the identifier or null, if the record has no anchor
+     */
+    String getAnchorIdentifier();
+}
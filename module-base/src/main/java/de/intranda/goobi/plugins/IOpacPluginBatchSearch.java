@@ -0,0 +1,33 @@
+package de.intranda.goobi.plugins;
+
+import java.util.List;
+import java.util.Map;
+
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+
+/**
+ * Optional capability of an opac plugin to request the records for several identifiers with a single request, e.g. as an OR query or as a list
+ * of ids. If the opac plugin of a catalogue provides this method, the records of sub elements are requested in chunks instead of one request per
+ * identifier.
+ *
+ * The opac plugins are built without this plugin, so they do not implement this interface. It describes the signature of a public method that is
+ * found by its name and parameter types, see {@link OpacPluginCapabilities}. None of the opac plugins published for Goobi workflow provides it yet,
+ * their catalogues are requested once per identifier.
+ */
+public interface IOpacPluginBatchSearch {
+
+    /**
+     * Request the records for all given identifiers
+     *
+     * @param searchField the field to search in
+     * @param identifiers the identifiers to request
+     * @param coc the catalogue
+     * @param prefs the ruleset to use
+     * @return the records found, mapped to the identifier that was used to request them. Identifiers without a record are not contained. If the
+     *         catalogue does not support batch requests, null is returned and each identifier is requested separately.
+     * @throws Exception
+     */
+    Map<String, Fileformat> searchBatch(String searchField, List<String> identifiers, ConfigOpacCatalogue coc, Prefs prefs) throws Exception;
+}
@@ -0,0 +1,147 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.goobi.production.cli.helper.StringPair;
+import org.goobi.production.plugin.interfaces.IOpacPlugin;
+
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+
+/**
+ * Bridge to the search fields of the intranda_opac_json plugin. The plugin is not available at compile time, so its members are accessed
+ * reflectively. The method handles are resolved only once per plugin class and reused for all further requests.
+ */
+final class JsonOpacBridge {
+
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, String.class);
+    private static final MethodType SEARCH = MethodType.methodType(Object.class, Object.class, String.class, String.class,
+            ConfigOpacCatalogue.class, Prefs.class);
+
+    private static final ClassValue<Members> OPAC_MEMBERS = new ClassValue<Members>() {
+        @Override
+        protected Members computeValue(Class<?> type) {
+            Members members = new Members(type);
+            members.resolve("getConfigForOpac", GETTER);
+            members.resolve("search", SEARCH, String.class, String.class, ConfigOpacCatalogue.class, Prefs.class);
+            return members;
+        }
+    };
+
+    private static final ClassValue<Members> CONFIG_MEMBERS = new ClassValue<Members>() {
+        @Override
+        protected Members computeValue(Class<?> type) {
+            Members members = new Members(type);
+            members.resolve("getFieldList", GETTER);
+            return members;
+        }
+    };
+
+    private static final ClassValue<Members> FIELD_MEMBERS = new ClassValue<Members>() {
+        @Override
+        protected Members computeValue(Class<?> type) {
+            Members members = new Members(type);
+            members.resolve("getId", GETTER);
+            members.resolve("setText", SETTER, String.class);
+            members.resolve("setSelectedField", SETTER, String.class);
+            return members;
+        }
+    };
+
+    private JsonOpacBridge() {
+    }
+
+    /**
+     * Fill the search fields of the plugin with the given values and execute the search
+     *
+     * @param opacPlugin the intranda_opac_json plugin
+     * @param valueList the field ids and values to search for
+     * @param coc the catalogue configuration
+     * @param prefs the ruleset
+     * @return the record or null, if no record was found
+     * @throws CatalogueAdapterException if the plugin does not provide the expected members
+     * @throws Exception any exception thrown by the search of the plugin
+     */
+    static Fileformat search(IOpacPlugin opacPlugin, List<StringPair> valueList, ConfigOpacCatalogue coc, Prefs prefs) throws Exception {
+        Members opac = OPAC_MEMBERS.get(opacPlugin.getClass());
+        Object jsonOpacConfig = invoke(opac, "getConfigForOpac", opacPlugin);
+        if (jsonOpacConfig == null) {
+            throw new CatalogueAdapterException("Plugin " + opacPlugin.getTitle() + " does not provide a configuration for catalogue " + coc.getTitle());
+        }
+        Members config = CONFIG_MEMBERS.get(jsonOpacConfig.getClass());
+        @SuppressWarnings("unchecked")
+        List<Object> searchfields = (List<Object>) invoke(config, "getFieldList", jsonOpacConfig);
+
+        // several search fields can use the same id, all of them get the value
+        Map<String, List<Object>> fieldsById = new HashMap<>();
+        if (searchfields != null) {
+            for (Object searchField : searchfields) {
+                Members field = FIELD_MEMBERS.get(searchField.getClass());
+                fieldsById.computeIfAbsent((String) invoke(field, "getId", searchField), k -> new ArrayList<>()).add(searchField);
+            }
+        }
+
+        for (StringPair sp : valueList) {
+            if (StringUtils.isBlank(sp.getTwo())) {
+                continue;
+            }
+            for (Object searchField : fieldsById.getOrDefault(sp.getOne(), Collections.emptyList())) {
+                Members field = FIELD_MEMBERS.get(searchField.getClass());
+                invoke(field, "setText", searchField, sp.getTwo());
+                invoke(field, "setSelectedField", searchField, sp.getOne());
+            }
+        }
+        return (Fileformat) invoke(opac, "search", opacPlugin, "", "", coc, prefs);
+    }
+
+    private static Object invoke(Members members, String name, Object... arguments) throws Exception {
+        MethodHandle handle = members.get(name);
+        try {
+            return handle.invokeWithArguments(arguments);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new CatalogueAdapterException("Call of " + name + " failed for " + members.type.getName(), e);
+        }
+    }
+
+    /**
+     * The resolved method handles of a single class
+     */
+    private static final class Members {
+        private final Class<?> type;
+        private final Map<String, MethodHandle> handles = new HashMap<>();
+        private final Map<String, String> errors = new HashMap<>();
+
+        private Members(Class<?> type) {
+            this.type = type;
+        }
+
+        private void resolve(String name, MethodType handleType, Class<?>... parameterTypes) {
+            try {
+                MethodHandle handle = MethodHandles.publicLookup().unreflect(type.getMethod(name, parameterTypes));
+                handles.put(name, handle.asType(handleType));
+            } catch (ReflectiveOperationException | IllegalArgumentException | SecurityException e) {
+                errors.put(name, e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+
+        private MethodHandle get(String name) throws CatalogueAdapterException {
+            MethodHandle handle = handles.get(name);
+            if (handle == null) {
+                throw new CatalogueAdapterException("Method " + name + " is not available in class " + type.getName() + " (" + errors.get(name) + ")");
+            }
+            return handle;
+        }
+    }
+}
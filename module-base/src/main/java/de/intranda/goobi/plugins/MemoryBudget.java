@@ -0,0 +1,88 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.Semaphore;
+
+import lombok.Getter;
+
+/**
+ * Heap budget shared by all catalogue requests of this server. Before a METS file is read, each run reserves the memory it is expected to use, runs
+ * that would exceed the budget wait until other runs are finished. A single run larger than the complete budget gets the complete budget, so it is
+ * executed alone instead of waiting forever.
+ */
+final class MemoryBudget {
+
+    private static final long KILOBYTE = 1024;
+
+    private static volatile MemoryBudget instance;
+
+    @Getter
+    private final int totalMegabytes;
+    // one permit per kilobyte
+    private final Semaphore permits;
+
+    private MemoryBudget(int totalMegabytes) {
+        this.totalMegabytes = totalMegabytes;
+        this.permits = new Semaphore((int) Math.min(Integer.MAX_VALUE, totalMegabytes * KILOBYTE), true);
+    }
+
+    /**
+     * Get the budget with the given size. If the configured size was changed, a new budget is created, reservations of the old budget are given
+     * back to the old one.
+     *
+     * @param totalMegabytes the size of the budget in megabytes
+     * @return the budget
+     */
+    static MemoryBudget getInstance(int totalMegabytes) {
+        MemoryBudget budget = instance;
+        if (budget == null || budget.totalMegabytes != totalMegabytes) {
+            synchronized (MemoryBudget.class) {
+                budget = instance;
+                if (budget == null || budget.totalMegabytes != totalMegabytes) {
+                    budget = new MemoryBudget(totalMegabytes);
+                    instance = budget;
+                }
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Wait until the given amount of memory is available and reserve it
+     *
+     * @param bytes the expected memory usage of the run
+     * @return the reservation, it must be closed at the end of the run
+     * @throws InterruptedException
+     */
+    Reservation reserve(long bytes) throws InterruptedException {
+        int kilobytes = (int) Math.max(1, Math.min(bytes / KILOBYTE, Math.min(Integer.MAX_VALUE, totalMegabytes * KILOBYTE)));
+        permits.acquire(kilobytes);
+        return new Reservation(kilobytes);
+    }
+
+    /**
+     * Memory reserved by a single run
+     */
+    final class Reservation implements AutoCloseable {
+        private final int kilobytes;
+        private boolean released;
+
+        private Reservation(int kilobytes) {
+            this.kilobytes = kilobytes;
+        }
+
+        /**
+         * @return the reserved memory in bytes
+         */
+        long getBytes() {
+            return kilobytes * KILOBYTE;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                permits.release(kilobytes);
+            }
+        }
+    }
+}
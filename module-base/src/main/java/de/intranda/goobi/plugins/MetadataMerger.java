@@ -0,0 +1,129 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import ugh.dl.Corporate;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.Person;
+import ugh.exceptions.IncompletePersonObjectException;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+
+/**
+ * Merges the metadata of a catalogue record into an existing docstruct. The decision if a type gets updated is made once per type using the
+ * configured skip and include fields. All entries of the updated types are removed from the old docstruct in a single pass, afterwards the new
+ * entries are added.
+ */
+public class MetadataMerger {
+
+    private final Set<String> skipFields;
+    private final Set<String> includeFields;
+
+    /**
+     * Create a new merger
+     *
+     * @param skipFields the metadata types that must not be changed
+     * @param includeFields if not empty, only these metadata types are changed
+     */
+    public MetadataMerger(Set<String> skipFields, Set<String> includeFields) {
+        this.skipFields = skipFields == null ? Collections.emptySet() : skipFields;
+        this.includeFields = includeFields == null ? Collections.emptySet() : includeFields;
+    }
+
+    /**
+     * Check if metadata of the given type gets updated
+     *
+     * @param typeName name of the metadata type
+     * @return true if the type is updated
+     */
+    public boolean isConfiguredForUpdate(String typeName) {
+        if (!includeFields.isEmpty()) {
+            return includeFields.contains(typeName);
+        } else {
+            return !skipFields.contains(typeName);
+        }
+    }
+
+    /**
+     * Replaces the metadata of the old docstruct with the values of the new docstruct. If a metadata type of the old docstruct is marked as to
+     * skip, it gets not replaced. Otherwise all old data is removed and all new metadata is added.
+     *
+     * @param docstructOld
+     * @param docstructNew
+     * @return the number of metadata, persons, corporates and groups taken from the new docstruct
+     * @throws MetadataTypeNotAllowedException
+     */
+    public int merge(DocStruct docstructOld, DocStruct docstructNew) throws MetadataTypeNotAllowedException {
+        int merged = 0;
+        // metadata
+        removeForUpdate(docstructOld.getAllMetadata(), md -> md.getType().getName());
+        for (Metadata md : selectForUpdate(docstructNew.getAllMetadata(), m -> m.getType().getName())) {
+            Metadata newmetadata = new Metadata(md.getType());
+            newmetadata.setValue(md.getValue());
+            docstructOld.addMetadata(newmetadata);
+            merged++;
+        }
+
+        // persons
+        removeForUpdate(docstructOld.getAllPersons(), p -> p.getType().getName());
+        for (Person pd : selectForUpdate(docstructNew.getAllPersons(), p -> p.getType().getName())) {
+            docstructOld.addPerson(pd);
+            merged++;
+        }
+
+        // corporates
+        removeForUpdate(docstructOld.getAllCorporates(), c -> c.getType().getName());
+        for (Corporate corporate : selectForUpdate(docstructNew.getAllCorporates(), c -> c.getType().getName())) {
+            try {
+                docstructOld.addCorporate(corporate);
+                merged++;
+            } catch (MetadataTypeNotAllowedException | IncompletePersonObjectException e) {
+                // ignore metadata not allowed errors
+            }
+        }
+
+        // groups
+        removeForUpdate(docstructOld.getAllMetadataGroups(), g -> g.getType().getName());
+        for (MetadataGroup newGroup : selectForUpdate(docstructNew.getAllMetadataGroups(), g -> g.getType().getName())) {
+            docstructOld.addMetadataGroup(newGroup);
+            merged++;
+        }
+        return merged;
+    }
+
+    /**
+     * Remove all entries that get updated in a single pass. The lists returned by the docstruct are its internal lists, so the entries are removed
+     * from the docstruct directly.
+     */
+    private <T> void removeForUpdate(List<T> entries, Function<T, String> typeName) {
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+        Map<String, Boolean> decisions = new HashMap<>();
+        entries.removeIf(entry -> decisions.computeIfAbsent(typeName.apply(entry), this::isConfiguredForUpdate));
+    }
+
+    /**
+     * Select all entries that get updated, keeping their original order
+     */
+    private <T> List<T> selectForUpdate(List<T> entries, Function<T, String> typeName) {
+        if (entries == null || entries.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<String, Boolean> decisions = new HashMap<>();
+        List<T> selected = new ArrayList<>(entries.size());
+        for (T entry : entries) {
+            if (decisions.computeIfAbsent(typeName.apply(entry), this::isConfiguredForUpdate)) {
+                selected.add(entry);
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,176 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Reads the metadata values used by the catalogue fields directly from the METS file, without creating the complete digital document. The file is
+ * streamed once, only the simple metadata of the logical top element and of the first child of an anchor are collected.
+ */
+@Log4j2
+final class MetsIdentifierReader implements FieldExpression.MetadataSource {
+
+    private static final XMLInputFactory FACTORY;
+
+    static {
+        FACTORY = XMLInputFactory.newInstance();
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final Set<String> metadataNames;
+
+    private Map<String, String> topstruct = Collections.emptyMap();
+    private Map<String, String> firstchild = Collections.emptyMap();
+
+    private MetsIdentifierReader(Set<String> metadataNames) {
+        this.metadataNames = metadataNames;
+    }
+
+    /**
+     * Read the values of the given metadata from the METS file
+     *
+     * @param metsFile the METS file of the process
+     * @param metadataNames the metadata to read
+     * @return the values or null, if they cannot be determined without reading the complete file
+     */
+    static FieldExpression.MetadataSource read(Path metsFile, Set<String> metadataNames) {
+        MetsIdentifierReader reader = new MetsIdentifierReader(metadataNames);
+        if (metadataNames.isEmpty()) {
+            return reader;
+        }
+        try {
+            return reader.read(metsFile) ? reader : null;
+        } catch (IOException | XMLStreamException e) {
+            log.debug("Cannot read the identifiers from {}, reading the complete file", metsFile, e);
+            return null;
+        }
+    }
+
+    @Override
+    public String getValue(FieldExpression.Level level, String metadataName) {
+        return FieldExpression.select(level, topstruct.get(metadataName), firstchild.get(metadataName));
+    }
+
+    /**
+     * Read the METS file and the anchor file, if the logical top element is an anchor
+     *
+     * @return false if the structure could not be determined
+     */
+    private boolean read(Path metsFile) throws IOException, XMLStreamException {
+        FileContent content = readFile(metsFile);
+        if (content.topDmdId == null && !content.anchor) {
+            return false;
+        }
+        if (content.anchor) {
+            // the metadata of the anchor is stored in its own file
+            String filename = metsFile.getFileName().toString();
+            Path anchorFile = metsFile.resolveSibling(filename.substring(0, filename.lastIndexOf('.')) + "_anchor.xml");
+            if (!StorageProvider.getInstance().isFileExists(anchorFile)) {
+                return false;
+            }
+            FileContent anchorContent = readFile(anchorFile);
+            topstruct = anchorContent.getMetadata(anchorContent.topDmdId);
+            firstchild = content.getMetadata(content.firstChildDmdId);
+        } else {
+            topstruct = content.getMetadata(content.topDmdId);
+        }
+        return true;
+    }
+
+    private FileContent readFile(Path file) throws IOException, XMLStreamException {
+        FileContent content = new FileContent();
+        try (InputStream in = StorageProvider.getInstance().newInputStream(file)) {
+            XMLStreamReader xml = FACTORY.createXMLStreamReader(in);
+            try {
+                String dmdId = null;
+                int goobiDepth = -1;
+                int depth = 0;
+                int logicalDepth = -1;
+                while (xml.hasNext()) {
+                    int event = xml.next();
+                    if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                        if (depth < goobiDepth) {
+                            goobiDepth = -1;
+                        }
+                        if ("dmdSec".equals(xml.getLocalName())) {
+                            dmdId = null;
+                        } else if ("structMap".equals(xml.getLocalName()) && logicalDepth >= 0) {
+                            // the logical structure is complete, the rest of the file is not needed
+                            return content;
+                        }
+                        continue;
+                    }
+                    if (event != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    depth++;
+                    String name = xml.getLocalName();
+                    if ("dmdSec".equals(name)) {
+                        dmdId = xml.getAttributeValue(null, "ID");
+                    } else if ("goobi".equals(name) && dmdId != null) {
+                        goobiDepth = depth;
+                    } else if ("metadata".equals(name) && dmdId != null && depth == goobiDepth + 1) {
+                        String metadataName = xml.getAttributeValue(null, "name");
+                        // persons, corporates and groups are not used by the variable replacer
+                        if (xml.getAttributeValue(null, "type") == null && metadataNames.contains(metadataName)) {
+                            String value = xml.getElementText();
+                            depth--;
+                            content.metadata.computeIfAbsent(dmdId, k -> new HashMap<>()).putIfAbsent(metadataName, value);
+                        }
+                    } else if ("structMap".equals(name) && "LOGICAL".equals(xml.getAttributeValue(null, "TYPE"))) {
+                        logicalDepth = depth;
+                    } else if (logicalDepth >= 0 && "div".equals(name)) {
+                        if (depth == logicalDepth + 1) {
+                            content.topDmdId = xml.getAttributeValue(null, "DMDID");
+                        } else if (depth == logicalDepth + 2) {
+                            content.firstChildDmdId = xml.getAttributeValue(null, "DMDID");
+                            return content;
+                        }
+                    } else if (logicalDepth >= 0 && "mptr".equals(name) && depth == logicalDepth + 2) {
+                        content.anchor = true;
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        }
+        return content;
+    }
+
+    private static class FileContent {
+        private final Map<String, Map<String, String>> metadata = new HashMap<>();
+        private String topDmdId;
+        private String firstChildDmdId;
+        private boolean anchor;
+
+        private Map<String, String> getMetadata(String dmdId) {
+            if (dmdId == null) {
+                return Collections.emptyMap();
+            }
+            // DMDID can reference more than one section
+            Map<String, String> result = new HashMap<>();
+            for (String id : dmdId.trim().split("\\s+")) {
+                Map<String, String> values = metadata.get(id);
+                if (values != null) {
+                    values.forEach(result::putIfAbsent);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,703 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.DocStructType;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+import ugh.fileformats.opac.PicaPlus;
+
+/**
+ * Local index of a bulk export of a catalogue. The export is scanned once and an index file is created next to it, containing the identifier,
+ * position and length of each record, sorted by identifier. The index file is memory-mapped, so looking up a record only needs a binary search and
+ * a single read of the export. The index is created again, if the export was changed. Creating the index of a large export takes a while, so it
+ * is done in the background. Until it is finished no record is found and the catalogue is requested instead.
+ *
+ * Supported formats are PICA XML and MARC XML files containing <code>record</code> elements and JSON lines files with one record per line. Only PICA
+ * XML records can be converted without an {@link OfflineRecordDecoder}. A PICA record of a volume gets its anchor record from the export as well.
+ */
+@Log4j2
+final class OfflineCatalogueIndex {
+
+    static final String FORMAT_PICAXML = "picaxml";
+    static final String FORMAT_MARCXML = "marcxml";
+    static final String FORMAT_JSONL = "jsonl";
+
+    private static final int MAGIC = 0x43524958;
+    private static final int VERSION = 1;
+    // magic, version, export size, export modification time, number of records
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    // key position, record position, record length
+    private static final int ENTRY_SIZE = 4 + 8 + 4;
+
+    private static final Pattern PICA_IDENTIFIER = Pattern
+            .compile("tag=\"003@\"[^>]*>\\s*<(?:\\w+:)?subfield[^>]*code=\"0\"[^>]*>([^<]+)<");
+    // the link of a volume to its anchor record
+    private static final Pattern PICA_PARENT = Pattern.compile("(?s)<(?:\\w+:)?datafield[^>]*tag=\"036D\"[^>]*>(.*?)</(?:\\w+:)?datafield>");
+    private static final Pattern PICA_PARENT_IDENTIFIER = Pattern.compile("<(?:\\w+:)?subfield[^>]*code=\"9\"[^>]*>([^<]+)<");
+    private static final Pattern MARC_IDENTIFIER = Pattern.compile("<(?:\\w+:)?controlfield[^>]*tag=\"001\"[^>]*>([^<]+)<");
+
+    private static final Map<String, OfflineCatalogueIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalogue-export-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path exportFile;
+    private final Path indexFile;
+    private final String format;
+    private final String identifierField;
+
+    private volatile Mapping mapping;
+    private volatile boolean decoderMissingLogged = false;
+    private final AtomicBoolean buildScheduled = new AtomicBoolean();
+    private final Object buildLock = new Object();
+    // size and modification time of an export whose index could not be created, it is not tried again
+    private volatile long[] failedExport;
+
+    private OfflineCatalogueIndex(Path exportFile, String format, String identifierField) {
+        this.exportFile = exportFile;
+        this.indexFile = exportFile.resolveSibling(exportFile.getFileName() + ".idx");
+        this.format = format;
+        this.identifierField = identifierField;
+    }
+
+    /**
+     * Get the index of an export
+     *
+     * @param exportFile the bulk export
+     * @param format the format of the export
+     * @param identifierField the field containing the identifier, only used for JSON lines
+     * @return the index
+     */
+    static OfflineCatalogueIndex getInstance(Path exportFile, String format, String identifierField) {
+        String key = exportFile.toAbsolutePath() + "\u0000" + format + "\u0000" + identifierField;
+        return INDEXES.computeIfAbsent(key, k -> new OfflineCatalogueIndex(exportFile, format.toLowerCase(), identifierField));
+    }
+
+    /**
+     * Find the record with the given identifier and convert it into a fileformat. If the opac plugin provides the method of
+     * {@link OfflineRecordDecoder} it is used for the conversion, otherwise only PICA XML records can be converted.
+     *
+     * @param identifier the identifier of the record
+     * @param opacPlugin the opac plugin of the catalogue
+     * @param prefs the ruleset to use
+     * @return the record or null, if it or its anchor record is not contained in the export or it cannot be converted
+     */
+    Fileformat lookup(String identifier, Object opacPlugin, Prefs prefs) {
+        try {
+            byte[] record = find(identifier);
+            return record == null ? null : decode(record, opacPlugin, prefs);
+        } catch (Exception e) {
+            log.warn("Cannot read the record {} from the export {}", identifier, exportFile, e);
+        }
+        return null;
+    }
+
+    /**
+     * Convert a record of the export into a fileformat
+     *
+     * @param record the raw record
+     * @param opacPlugin the opac plugin of the catalogue
+     * @param prefs the ruleset to use
+     * @return the record or null, if it cannot be converted or its anchor record is not contained in the export
+     * @throws Exception
+     */
+    Fileformat decode(byte[] record, Object opacPlugin, Prefs prefs) throws Exception {
+        OpacPluginCapabilities capabilities = opacPlugin == null ? null : OpacPluginCapabilities.of(opacPlugin.getClass());
+        if (capabilities != null && capabilities.isOfflineRecordDecoder()) {
+            return capabilities.decodeOfflineRecord(opacPlugin, format, record, prefs);
+        } else if (FORMAT_PICAXML.equals(format)) {
+            Fileformat ff = decodePica(record, prefs);
+            return ff == null ? null : addPicaAnchor(ff, record, prefs);
+        }
+        if (!decoderMissingLogged) {
+            decoderMissingLogged = true;
+            log.warn("Records of the {} export {} cannot be converted, the opac plugin does not support offline records", format, exportFile);
+        }
+        return null;
+    }
+
+    /**
+     * Add the anchor record to the record of a volume, like the opac plugin does it
+     *
+     * @return the volume within its anchor or null, if the anchor record is not contained in the export and the catalogue must be requested
+     */
+    private Fileformat addPicaAnchor(Fileformat volume, byte[] record, Prefs prefs) throws Exception {
+        String parent = findParentIdentifier(record);
+        if (parent == null) {
+            return volume;
+        }
+        byte[] parentRecord = find(parent);
+        Fileformat anchor = parentRecord == null ? null : decodePica(parentRecord, prefs);
+        DocStruct anchorStruct = anchor == null ? null : anchor.getDigitalDocument().getLogicalDocStruct();
+        if (anchorStruct == null || !anchorStruct.getType().isAnchor() || !AnchorRecordCache.attachAnchor(volume, anchorStruct)) {
+            log.debug("Anchor record {} is not contained in the catalogue export {}", parent, exportFile);
+            return null;
+        }
+        return volume;
+    }
+
+    /**
+     * Find the raw anchor record of a record
+     *
+     * @param record the raw record
+     * @return the anchor record or null, if the record has no anchor or the anchor is not contained in the export
+     * @throws IOException
+     */
+    byte[] findAnchorRecord(byte[] record) throws IOException {
+        String parent = findParentIdentifier(record);
+        return parent == null ? null : find(parent);
+    }
+
+    private String findParentIdentifier(byte[] record) {
+        if (!FORMAT_PICAXML.equals(format)) {
+            return null;
+        }
+        Matcher field = PICA_PARENT.matcher(new String(record, StandardCharsets.UTF_8));
+        if (!field.find()) {
+            return null;
+        }
+        Matcher identifier = PICA_PARENT_IDENTIFIER.matcher(field.group(1));
+        return identifier.find() ? identifier.group(1).trim() : null;
+    }
+
+    /**
+     * Find the raw record with the given identifier
+     *
+     * @param identifier the identifier of the record
+     * @return the record or null, if it is not contained in the export or the index is not created yet
+     * @throws IOException
+     */
+    byte[] find(String identifier) throws IOException {
+        Mapping current = getMapping();
+        if (current == null) {
+            log.debug("The index of the catalogue export {} is not available yet, record {} is not searched", exportFile, identifier);
+            return null;
+        }
+        ByteBuffer buffer = current.index.duplicate();
+        int count = buffer.getInt(HEADER_SIZE - 4);
+        byte[] key = identifier.trim().getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = HEADER_SIZE + middle * ENTRY_SIZE;
+            int comparison = compareKey(buffer, buffer.getInt(entry), key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                long position = buffer.getLong(entry + 4);
+                int length = buffer.getInt(entry + 12);
+                return readRecord(current.export, position, length);
+            }
+        }
+        return null;
+    }
+
+    private static int compareKey(ByteBuffer buffer, int keyPosition, byte[] key) {
+        int length = buffer.getShort(keyPosition) & 0xFFFF;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int comparison = Integer.compare(buffer.get(keyPosition + 2 + i) & 0xFF, key[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private byte[] readRecord(FileChannel export, long position, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(length);
+        // positional reads do not change the channel, so all lookups share it
+        while (record.hasRemaining()) {
+            if (export.read(record, position + record.position()) < 0) {
+                throw new IOException("Unexpected end of export " + exportFile);
+            }
+        }
+        return record.array();
+    }
+
+    /**
+     * Get the memory-mapped index. If it does not exist or if the export was changed, it is created in the background.
+     *
+     * @return the index or null, if it is not available yet
+     */
+    private Mapping getMapping() throws IOException {
+        long size = Files.size(exportFile);
+        long modified = Files.getLastModifiedTime(exportFile).toMillis();
+        Mapping current = mapping;
+        if (isCurrent(current, size, modified)) {
+            return current;
+        }
+        if (isIndexValid(size, modified)) {
+            return map(size, modified);
+        }
+        long[] failed = failedExport;
+        if ((failed == null || failed[0] != size || failed[1] != modified) && buildScheduled.compareAndSet(false, true)) {
+            BUILDER.execute(() -> {
+                try {
+                    awaitIndex();
+                } catch (IOException | RuntimeException e) {
+                    failedExport = new long[] { size, modified };
+                    log.error("Cannot create the index of the catalogue export {}", exportFile, e);
+                } finally {
+                    buildScheduled.set(false);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Create the index if it does not exist or if the export was changed and wait until it is available. This is done in the background by
+     * {@link #find(String)}, tests can call it directly.
+     *
+     * @return the memory-mapped index
+     * @throws IOException
+     */
+    MappedByteBuffer awaitIndex() throws IOException {
+        // the lookups only wait for the mapping, not for the creation
+        synchronized (buildLock) {
+            long size = Files.size(exportFile);
+            long modified = Files.getLastModifiedTime(exportFile).toMillis();
+            Mapping current = mapping;
+            if (isCurrent(current, size, modified)) {
+                return current.index;
+            }
+            if (!isIndexValid(size, modified)) {
+                buildIndex(size, modified);
+            }
+            return map(size, modified).index;
+        }
+    }
+
+    private synchronized Mapping map(long size, long modified) throws IOException {
+        Mapping current = mapping;
+        if (isCurrent(current, size, modified)) {
+            return current;
+        }
+        MappedByteBuffer index;
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapping = new Mapping(index, FileChannel.open(exportFile, StandardOpenOption.READ));
+        if (current != null) {
+            // lookups still reading the previous export fail and request the catalogue instead
+            try {
+                current.export.close();
+            } catch (IOException e) {
+                log.debug("Cannot close the catalogue export {}", exportFile, e);
+            }
+        }
+        return mapping;
+    }
+
+    private static boolean isCurrent(Mapping current, long size, long modified) {
+        return current != null && current.index.getLong(8) == size && current.index.getLong(16) == modified;
+    }
+
+    private boolean isIndexValid(long size, long modified) {
+        if (!Files.exists(indexFile)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getLong(8) == size && header.getLong(16) == modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Scan the export and write the index file
+     */
+    private void buildIndex(long size, long modified) throws IOException {
+        log.info("Creating index for catalogue export {}", exportFile);
+        long start = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(exportFile), 1 << 16)) {
+            if (FORMAT_JSONL.equals(format)) {
+                scanLines(in, entries);
+            } else {
+                scanRecords(in, entries);
+            }
+        }
+        entries.sort((a, b) -> compareBytes(a.key, b.key));
+
+        Path temp = indexFile.resolveSibling("." + indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeInt(entries.size());
+            int keyPosition = HEADER_SIZE + entries.size() * ENTRY_SIZE;
+            for (Entry entry : entries) {
+                out.writeInt(keyPosition);
+                out.writeLong(entry.position);
+                out.writeInt(entry.length);
+                keyPosition += 2 + entry.key.length;
+            }
+            for (Entry entry : entries) {
+                out.writeShort(entry.key.length);
+                out.write(entry.key);
+            }
+        }
+        try {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        log.info("Created index with {} records for catalogue export {} in {} ms", entries.size(), exportFile, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Find all <code>record</code> elements of an XML export. The elements may use a namespace prefix.
+     */
+    private void scanRecords(InputStream in, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        long position = -1;
+        long tagStart = 0;
+        long recordStart = -1;
+        boolean readingName = false;
+        int b;
+        while ((b = in.read()) != -1) {
+            position++;
+            if (recordStart >= 0) {
+                record.write(b);
+            }
+            if (b == '<') {
+                readingName = true;
+                tag.reset();
+                tagStart = position;
+                continue;
+            }
+            if (!readingName) {
+                continue;
+            }
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n' && b != '>' && (b != '/' || tag.size() == 0)) {
+                tag.write(b);
+                continue;
+            }
+            readingName = false;
+            String name = tag.toString(StandardCharsets.UTF_8.name());
+            boolean closing = name.startsWith("/");
+            String qualifiedName = closing ? name.substring(1) : name;
+            String localName = qualifiedName.substring(qualifiedName.indexOf(':') + 1);
+            if (!"record".equals(localName)) {
+                continue;
+            }
+            if (!closing && recordStart < 0) {
+                recordStart = tagStart;
+                record.reset();
+                record.write('<');
+                record.write(tag.toByteArray());
+                record.write(b);
+            } else if (closing && recordStart >= 0) {
+                // read the rest of the closing tag
+                while (b != '>' && (b = in.read()) != -1) {
+                    position++;
+                    record.write(b);
+                }
+                addEntry(entries, record.toByteArray(), recordStart);
+                recordStart = -1;
+            }
+        }
+    }
+
+    /**
+     * Each line of a JSON lines export contains a record
+     */
+    private void scanLines(InputStream in, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long position = 0;
+        long lineStart = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            position++;
+            if (b == '\n') {
+                if (line.size() > 0) {
+                    addEntry(entries, line.toByteArray(), lineStart);
+                }
+                line.reset();
+                lineStart = position;
+            } else {
+                line.write(b);
+            }
+        }
+        if (line.size() > 0) {
+            addEntry(entries, line.toByteArray(), lineStart);
+        }
+    }
+
+    private void addEntry(List<Entry> entries, byte[] record, long position) {
+        String content = new String(record, StandardCharsets.UTF_8);
+        String identifier;
+        if (FORMAT_PICAXML.equals(format) || FORMAT_MARCXML.equals(format)) {
+            Matcher matcher = (FORMAT_PICAXML.equals(format) ? PICA_IDENTIFIER : MARC_IDENTIFIER).matcher(content);
+            identifier = matcher.find() ? matcher.group(1) : null;
+        } else {
+            identifier = findJsonValue(content, identifierField);
+        }
+        if (identifier != null) {
+            byte[] key = identifier.trim().getBytes(StandardCharsets.UTF_8);
+            if (key.length > 0 && key.length <= 0xFFFF) {
+                entries.add(new Entry(key, position, record.length));
+            }
+        }
+    }
+
+    /**
+     * Get the value of a field of a JSON record. Only the fields of the record itself are used, fields with the same name in nested objects are
+     * ignored.
+     *
+     * @param json the record
+     * @param field the name of the field
+     * @return the value of the field or null, if the record does not contain the field or its value is an object, an array or null
+     */
+    static String findJsonValue(String json, String field) {
+        int depth = 0;
+        int i = 0;
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                int end = findStringEnd(json, i);
+                int next = skipWhitespace(json, end + 1);
+                if (depth == 1 && next < json.length() && json.charAt(next) == ':') {
+                    if (field.equals(unescape(json, i + 1, end))) {
+                        return readJsonValue(json, skipWhitespace(json, next + 1));
+                    }
+                    i = next + 1;
+                } else {
+                    i = end + 1;
+                }
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+            i++;
+        }
+        return null;
+    }
+
+    private static String readJsonValue(String json, int start) {
+        if (start >= json.length()) {
+            return null;
+        }
+        char c = json.charAt(start);
+        if (c == '"') {
+            return unescape(json, start + 1, findStringEnd(json, start));
+        } else if (c == '{' || c == '[') {
+            return null;
+        }
+        int end = start;
+        while (end < json.length() && ",}] \t\r\n".indexOf(json.charAt(end)) < 0) {
+            end++;
+        }
+        String value = json.substring(start, end);
+        return "null".equals(value) ? null : value;
+    }
+
+    /**
+     * @return the position of the closing quote of the string starting at the given position
+     */
+    private static int findStringEnd(String json, int start) {
+        int i = start + 1;
+        while (i < json.length() && json.charAt(i) != '"') {
+            i += json.charAt(i) == '\\' ? 2 : 1;
+        }
+        return Math.min(i, json.length());
+    }
+
+    private static int skipWhitespace(String json, int start) {
+        int i = start;
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static String unescape(String json, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            if (c != '\\' || i + 1 >= end) {
+                sb.append(c);
+                continue;
+            }
+            char escaped = json.charAt(++i);
+            switch (escaped) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 < end && isHex(json, i + 1, i + 5)) {
+                        sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    } else {
+                        sb.append(escaped);
+                    }
+                    break;
+                default:
+                    sb.append(escaped);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHex(String value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            int comparison = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /**
+     * Convert a PICA XML record using the PICA+ import of the ruleset
+     */
+    private static Fileformat decodePica(byte[] record, Prefs prefs) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document source = builder.parse(new ByteArrayInputStream(record));
+
+        // PICA XML uses datafield elements, the PICA+ import expects field elements without namespace
+        Document target = builder.newDocument();
+        Element targetRecord = target.createElement("record");
+        target.appendChild(targetRecord);
+        NodeList fields = source.getDocumentElement().getChildNodes();
+        for (int i = 0; i < fields.getLength(); i++) {
+            Node field = fields.item(i);
+            if (field.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element targetField = target.createElement("field");
+            copyAttributes(field, targetField);
+            NodeList subfields = field.getChildNodes();
+            for (int j = 0; j < subfields.getLength(); j++) {
+                Node subfield = subfields.item(j);
+                if (subfield.getNodeType() == Node.ELEMENT_NODE) {
+                    Element targetSubfield = target.createElement("subfield");
+                    copyAttributes(subfield, targetSubfield);
+                    targetSubfield.setTextContent(subfield.getTextContent());
+                    targetField.appendChild(targetSubfield);
+                }
+            }
+            targetRecord.appendChild(targetField);
+        }
+
+        PicaPlus pp = new PicaPlus(prefs);
+        pp.read(targetRecord);
+        DigitalDocument dd = pp.getDigitalDocument();
+        if (dd == null || dd.getLogicalDocStruct() == null) {
+            return null;
+        }
+        if (dd.getPhysicalDocStruct() == null) {
+            DocStructType boundBook = prefs.getDocStrctTypeByName("BoundBook");
+            if (boundBook != null) {
+                DocStruct physical = dd.createDocStruct(boundBook);
+                dd.setPhysicalDocStruct(physical);
+            }
+        }
+        return pp;
+    }
+
+    private static void copyAttributes(Node source, Element target) {
+        NamedNodeMap attributes = source.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            String name = attribute.getNodeName();
+            if (!name.startsWith("xmlns")) {
+                target.setAttribute(name.substring(name.indexOf(':') + 1), attribute.getNodeValue());
+            }
+        }
+    }
+
+    /**
+     * The memory-mapped index and the export it belongs to. The export stays open as long as the index is used.
+     */
+    @AllArgsConstructor
+    private static class Mapping {
+        private final MappedByteBuffer index;
+        private final FileChannel export;
+    }
+
+    @AllArgsConstructor
+    private static class Entry {
+        private final byte[] key;
+        private final long position;
+        private final int length;
+    }
+}
@@ -0,0 +1,27 @@
+package de.intranda.goobi.plugins;
+
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+
+/**
+ * Optional capability of an opac plugin to convert a record from a bulk export of its catalogue into a fileformat. If the opac plugin of a
+ * catalogue provides this method, records found in the offline index are converted by the plugin itself, so that they get the same structure as
+ * records requested from the catalogue.
+ *
+ * The opac plugins are built without this plugin, so they do not implement this interface. It describes the signature of a public method that is
+ * found by its name and parameter types, see {@link OpacPluginCapabilities}. None of the opac plugins published for Goobi workflow provides it yet,
+ * so only PICA XML exports can be used, which are converted by the PICA+ import of the ruleset.
+ */
+public interface OfflineRecordDecoder {
+
+    /**
+     * Convert a record of a bulk export
+     *
+     * @param format the format of the export, e.g. <code>picaxml</code>, <code>marcxml</code> or <code>jsonl</code>
+     * @param record the UTF-8 encoded record as it is contained in the export
+     * @param prefs the ruleset to use
+     * @return the converted record or null, if the record cannot be converted
+     * @throws Exception
+     */
+    Fileformat decodeOfflineRecord(String format, byte[] record, Prefs prefs) throws Exception;
+}
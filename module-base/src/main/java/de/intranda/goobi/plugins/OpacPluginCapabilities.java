@@ -0,0 +1,164 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+
+/**
+ * Optional capabilities of an opac plugin, described by {@link IOpacPluginBatchSearch}, {@link OfflineRecordDecoder} and
+ * {@link IOpacPluginAnchorSearch}. The opac plugins are loaded by their own class loader and are built without this plugin, so they cannot
+ * implement these interfaces. Instead a plugin provides a public method with the same name and signature, which is found reflectively. The method
+ * handles are resolved only once per plugin class.
+ */
+@Log4j2
+final class OpacPluginCapabilities {
+
+    private static final MethodType SEARCH_BATCH = MethodType.methodType(Map.class, Object.class, String.class, List.class,
+            ConfigOpacCatalogue.class, Prefs.class);
+    private static final MethodType DECODE_OFFLINE_RECORD = MethodType.methodType(Fileformat.class, Object.class, String.class, byte[].class,
+            Prefs.class);
+    private static final MethodType SEARCH_WITHOUT_ANCHOR = MethodType.methodType(Fileformat.class, Object.class, String.class, String.class,
+            ConfigOpacCatalogue.class, Prefs.class);
+    private static final MethodType GET_ANCHOR_IDENTIFIER = MethodType.methodType(String.class, Object.class);
+
+    private static final ClassValue<OpacPluginCapabilities> CAPABILITIES = new ClassValue<OpacPluginCapabilities>() {
+        @Override
+        protected OpacPluginCapabilities computeValue(Class<?> type) {
+            return new OpacPluginCapabilities(type);
+        }
+    };
+
+    private final Class<?> type;
+    private final MethodHandle searchBatch;
+    private final MethodHandle decodeOfflineRecord;
+    private final MethodHandle searchWithoutAnchor;
+    private final MethodHandle getAnchorIdentifier;
+
+    private OpacPluginCapabilities(Class<?> type) {
+        this.type = type;
+        this.searchBatch = resolve(type, "searchBatch", Map.class, SEARCH_BATCH, String.class, List.class, ConfigOpacCatalogue.class, Prefs.class);
+        this.decodeOfflineRecord = resolve(type, "decodeOfflineRecord", Fileformat.class, DECODE_OFFLINE_RECORD, String.class, byte[].class,
+                Prefs.class);
+        this.searchWithoutAnchor = resolve(type, "searchWithoutAnchor", Fileformat.class, SEARCH_WITHOUT_ANCHOR, String.class, String.class,
+                ConfigOpacCatalogue.class, Prefs.class);
+        this.getAnchorIdentifier = resolve(type, "getAnchorIdentifier", String.class, GET_ANCHOR_IDENTIFIER);
+    }
+
+    /**
+     * Get the capabilities of an opac plugin class
+     *
+     * @param type the class of the opac plugin
+     * @return the capabilities
+     */
+    static OpacPluginCapabilities of(Class<?> type) {
+        return CAPABILITIES.get(type);
+    }
+
+    /**
+     * @return true if the plugin can request several identifiers with a single request
+     */
+    boolean isBatchSearch() {
+        return searchBatch != null;
+    }
+
+    /**
+     * @return true if the plugin can convert records of a bulk export
+     */
+    boolean isOfflineRecordDecoder() {
+        return decodeOfflineRecord != null;
+    }
+
+    /**
+     * @return true if the plugin can request a volume without its anchor
+     */
+    boolean isAnchorSearch() {
+        return searchWithoutAnchor != null && getAnchorIdentifier != null;
+    }
+
+    /**
+     * Call {@link IOpacPluginBatchSearch#searchBatch(String, List, ConfigOpacCatalogue, Prefs)} of the plugin
+     *
+     * @throws CatalogueAdapterException if the plugin does not provide the method
+     * @throws Exception any exception thrown by the plugin
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Fileformat> searchBatch(Object opacPlugin, String searchField, List<String> identifiers, ConfigOpacCatalogue coc, Prefs prefs)
+            throws Exception {
+        return (Map<String, Fileformat>) invoke(searchBatch, "searchBatch", opacPlugin, searchField, identifiers, coc, prefs);
+    }
+
+    /**
+     * Call {@link OfflineRecordDecoder#decodeOfflineRecord(String, byte[], Prefs)} of the plugin
+     *
+     * @throws CatalogueAdapterException if the plugin does not provide the method
+     * @throws Exception any exception thrown by the plugin
+     */
+    Fileformat decodeOfflineRecord(Object opacPlugin, String format, byte[] record, Prefs prefs) throws Exception {
+        return (Fileformat) invoke(decodeOfflineRecord, "decodeOfflineRecord", opacPlugin, format, record, prefs);
+    }
+
+    /**
+     * Call {@link IOpacPluginAnchorSearch#searchWithoutAnchor(String, String, ConfigOpacCatalogue, Prefs)} of the plugin
+     *
+     * @throws CatalogueAdapterException if the plugin does not provide the method
+     * @throws Exception any exception thrown by the plugin
+     */
+    Fileformat searchWithoutAnchor(Object opacPlugin, String searchField, String value, ConfigOpacCatalogue coc, Prefs prefs) throws Exception {
+        if (opacPlugin instanceof IOpacPluginAnchorSearch) {
+            return ((IOpacPluginAnchorSearch) opacPlugin).searchWithoutAnchor(searchField, value, coc, prefs);
+        }
+        return (Fileformat) invoke(searchWithoutAnchor, "searchWithoutAnchor", opacPlugin, searchField, value, coc, prefs);
+    }
+
+    /**
+     * Call {@link IOpacPluginAnchorSearch#getAnchorIdentifier()} of the plugin
+     *
+     * @throws CatalogueAdapterException if the plugin does not provide the method
+     * @throws Exception any exception thrown by the plugin
+     */
+    String getAnchorIdentifier(Object opacPlugin) throws Exception {
+        if (opacPlugin instanceof IOpacPluginAnchorSearch) {
+            return ((IOpacPluginAnchorSearch) opacPlugin).getAnchorIdentifier();
+        }
+        return (String) invoke(getAnchorIdentifier, "getAnchorIdentifier", opacPlugin);
+    }
+
+    private Object invoke(MethodHandle handle, String name, Object... arguments) throws Exception {
+        if (handle == null) {
+            throw new CatalogueAdapterException("Method " + name + " is not available in class " + type.getName());
+        }
+        try {
+            return handle.invokeWithArguments(arguments);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new CatalogueAdapterException("Call of " + name + " failed for " + type.getName(), e);
+        }
+    }
+
+    private static MethodHandle resolve(Class<?> type, String name, Class<?> returnType, MethodType handleType, Class<?>... parameterTypes) {
+        try {
+            Method method = type.getMethod(name, parameterTypes);
+            if (!returnType.isAssignableFrom(method.getReturnType())) {
+                log.warn("Method {} of class {} is not used, it returns {} instead of {}", name, type.getName(), method.getReturnType().getName(),
+                        returnType.getName());
+                return null;
+            }
+            return MethodHandles.publicLookup().unreflect(method).asType(handleType);
+        } catch (NoSuchMethodException e) {
+            // the capability is optional
+            return null;
+        } catch (ReflectiveOperationException | IllegalArgumentException | SecurityException e) {
+            log.warn("Method {} of class {} cannot be used", name, type.getName(), e);
+            return null;
+        }
+    }
+}
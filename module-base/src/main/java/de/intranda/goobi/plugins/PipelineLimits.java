@@ -0,0 +1,72 @@
+package de.intranda.goobi.plugins;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Concurrency limits for the stages of a catalogue request run. Each stage can be limited independently, a limit of zero or less means that the
+ * stage is not limited at all.
+ */
+public class PipelineLimits {
+
+    public enum Stage {
+        READ,
+        REQUEST,
+        MERGE,
+        WRITE
+    }
+
+    /**
+     * limits used for single step executions, nothing is restricted here
+     */
+    public static final PipelineLimits UNLIMITED = new PipelineLimits(0, 0, 0, 0);
+
+    private final Map<Stage, Semaphore> permits = new EnumMap<>(Stage.class);
+
+    /**
+     * Create new limits for the different stages
+     *
+     * @param read maximum number of METS files that are read at the same time
+     * @param request maximum number of catalogue requests at the same time
+     * @param merge maximum number of merge operations at the same time
+     * @param write maximum number of METS files that are written at the same time
+     */
+    public PipelineLimits(int read, int request, int merge, int write) {
+        addLimit(Stage.READ, read);
+        addLimit(Stage.REQUEST, request);
+        addLimit(Stage.MERGE, merge);
+        addLimit(Stage.WRITE, write);
+    }
+
+    private void addLimit(Stage stage, int limit) {
+        if (limit > 0) {
+            permits.put(stage, new Semaphore(limit, true));
+        }
+    }
+
+    /**
+     * Wait until the given stage can be entered
+     *
+     * @param stage
+     * @throws InterruptedException
+     */
+    public void acquire(Stage stage) throws InterruptedException {
+        Semaphore semaphore = permits.get(stage);
+        if (semaphore != null) {
+            semaphore.acquire();
+        }
+    }
+
+    /**
+     * Leave the given stage again
+     *
+     * @param stage
+     */
+    public void release(Stage stage) {
+        Semaphore semaphore = permits.get(stage);
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+import de.sub.goobi.helper.StorageProvider;
+
+/**
+ * Content hash of the raw data a catalogue returned for a record. It is used to detect if the catalogue record changed since the last request.
+ */
+final class RawRecordFingerprint {
+
+    private final MessageDigest digest = DocStructFingerprint.newDigest();
+    private boolean empty = true;
+
+    /**
+     * Add the content of a record file
+     *
+     * @param file the file created by the opac plugin
+     * @throws IOException
+     */
+    void addFile(Path file) throws IOException {
+        addName(file.getFileName().toString());
+        byte[] buffer = new byte[8192];
+        try (InputStream in = StorageProvider.getInstance().newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        empty = false;
+    }
+
+    /**
+     * Wrap an output stream, so that all bytes written to it are added to the fingerprint as well
+     *
+     * @param key the name of the data
+     * @param out the stream to wrap
+     * @return the wrapped stream
+     */
+    OutputStream wrap(String key, OutputStream out) {
+        addName(key);
+        empty = false;
+        return new DigestOutputStream(out, digest);
+    }
+
+    private void addName(String name) {
+        digest.update(name.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Finish the fingerprint
+     *
+     * @param context additional values that must be the same for an unchanged result, e.g. the configuration
+     * @return hex encoded fingerprint or null, if no raw data was added
+     */
+    String finish(String... context) {
+        if (empty) {
+            return null;
+        }
+        for (String value : context) {
+            addName(String.valueOf(value));
+        }
+        return DocStructFingerprint.toHex(digest.digest());
+    }
+}
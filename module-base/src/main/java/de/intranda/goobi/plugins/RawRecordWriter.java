@@ -0,0 +1,118 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import de.sub.goobi.helper.StorageProvider;
+import de.sub.goobi.helper.StorageProviderInterface;
+
+/**
+ * Stores the raw data of a catalogue record in the import folder of a process. The data is encoded as UTF-8 while it is written, optionally
+ * compressed and written into a temporary file first, which is renamed afterwards. A file of the same data with the other compression setting is
+ * removed. The target folder is created only once for all files of a record. All files are written through the {@link StorageProvider}, so that
+ * they are stored in the same storage as the other files of the process.
+ */
+final class RawRecordWriter {
+
+    private final Path directory;
+    private final boolean gzip;
+    private final RawRecordFingerprint fingerprint;
+    private final List<Path> storedFiles = new ArrayList<>();
+    private boolean directoryCreated = false;
+
+    /**
+     * @param directory the folder to store the files in
+     * @param gzip true, if the raw data shall be compressed
+     * @param fingerprint the fingerprint to add all stored data to
+     */
+    RawRecordWriter(Path directory, boolean gzip, RawRecordFingerprint fingerprint) {
+        this.directory = directory;
+        this.gzip = gzip;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Move a file created by the opac plugin into the folder
+     *
+     * @param file the record file
+     * @throws IOException
+     */
+    void moveRecordFile(Path file) throws IOException {
+        fingerprint.addFile(file);
+        createDirectory();
+        Path destination = directory.resolve(file.getFileName().toString());
+        StorageProvider.getInstance().move(file, destination);
+        storedFiles.add(destination);
+    }
+
+    /**
+     * Copy a file that was already stored for another process with the same record. The fingerprint is not changed, the fingerprint of the
+     * other process can be used instead.
+     *
+     * @param file the stored file
+     * @throws IOException
+     */
+    void copyStoredFile(Path file) throws IOException {
+        createDirectory();
+        Path destination = directory.resolve(file.getFileName().toString());
+        StorageProvider.getInstance().copyFile(file, destination);
+        storedFiles.add(destination);
+    }
+
+    /**
+     * Write the raw data of a record into a file
+     *
+     * @param key the name of the data, used as file name
+     * @param data the raw data
+     * @throws IOException
+     */
+    void writeRawData(String key, String data) throws IOException {
+        createDirectory();
+        String basename = key.replaceAll("\\W", "_");
+        String filename = basename + (gzip ? ".gz" : "");
+        Path destination = directory.resolve(filename);
+        Path temp = directory.resolve("." + filename + ".tmp");
+        StorageProviderInterface storage = StorageProvider.getInstance();
+        try {
+            try (OutputStream fileOut = storage.newOutputStream(temp);
+                    OutputStream out = gzip ? new GZIPOutputStream(fileOut, 8192) : fileOut;
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(fingerprint.wrap(key, out), StandardCharsets.UTF_8.newEncoder()))) {
+                writer.write(data);
+            }
+            storage.move(temp, destination);
+            // a file of the last run with the other compression setting would be outdated now
+            Path outdated = directory.resolve(gzip ? basename : basename + ".gz");
+            if (storage.isFileExists(outdated)) {
+                storage.deleteFile(outdated);
+            }
+            storedFiles.add(destination);
+        } finally {
+            if (storage.isFileExists(temp)) {
+                storage.deleteFile(temp);
+            }
+        }
+    }
+
+    /**
+     * @return all files stored by this writer
+     */
+    List<Path> getStoredFiles() {
+        return Collections.unmodifiableList(storedFiles);
+    }
+
+    private void createDirectory() throws IOException {
+        if (!directoryCreated) {
+            StorageProvider.getInstance().createDirectories(directory);
+            directoryCreated = true;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Durations and results of a single catalogue request run. The values are collected by the plugin while the run is executed and added to the
+ * {@link CatalogueRequestMetrics} afterwards.
+ */
+@Getter
+class RunStatistics {
+
+    public enum Phase {
+        // waiting for the pipeline limits
+        WAIT("wait"),
+        // resolving the catalogue fields
+        IDENTIFIERS("identifiers"),
+        READ("read"),
+        REQUEST("request"),
+        // contains the time used for the sub elements
+        MERGE("merge"),
+        SUB_ELEMENTS("sub elements"),
+        WRITE("write"),
+        TOTAL("total");
+
+        @Getter
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Outcome {
+        // a record was found
+        HIT,
+        // the catalogue did not return a record
+        MISS,
+        // the catalogue could not be requested
+        ERROR
+    }
+
+    private final Map<Phase, Long> durations = new EnumMap<>(Phase.class);
+
+    @Setter
+    private String catalogue;
+    @Setter
+    private Outcome outcome;
+    @Setter
+    private long metsFileSize = -1;
+    private int mergedFields;
+    // memory reserved from the memory budget
+    @Setter
+    private long reservedMemory = -1;
+    // total number of bytes allocated on the heap by the thread executing the run, including released objects
+    @Setter
+    private long threadAllocatedBytes = -1;
+
+    /**
+     * @return the start time for {@link #stop(Phase, long)}
+     */
+    long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since the given start to the phase
+     *
+     * @param phase the phase
+     * @param start the value returned by {@link #start()}
+     */
+    void stop(Phase phase, long start) {
+        durations.merge(phase, System.nanoTime() - start, Long::sum);
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread so far
+     *
+     * @return the number of bytes or -1, if it cannot be measured
+     */
+    static long getCurrentThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            try {
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+            } catch (UnsupportedOperationException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    void addMergedFields(int count) {
+        mergedFields += count;
+    }
+
+    /**
+     * Create a short summary of the durations for the process journal
+     *
+     * @return the summary
+     */
+    String toSummary() {
+        StringBuilder sb = new StringBuilder("Catalogue request timings:");
+        String separator = " ";
+        for (Map.Entry<Phase, Long> entry : durations.entrySet()) {
+            sb.append(separator).append(entry.getKey().getLabel()).append(' ').append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append(" ms");
+            separator = ", ";
+        }
+        if (metsFileSize >= 0) {
+            sb.append(separator).append("METS file ").append(metsFileSize / 1024).append(" KB");
+        }
+        sb.append(separator).append("merged fields ").append(mergedFields);
+        if (reservedMemory >= 0) {
+            sb.append(separator).append("reserved memory ").append(reservedMemory / 1048576).append(" MB");
+        }
+        if (threadAllocatedBytes >= 0) {
+            sb.append(separator).append("thread allocations ").append(threadAllocatedBytes / 1048576).append(" MB");
+        }
+        return sb.toString();
+    }
+}
@@ -4,8 +4,25 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import de.intranda.goobi.plugins.AnchorRecordCacheTest;
+import de.intranda.goobi.plugins.AsyncStepExecutorTest;
+import de.intranda.goobi.plugins.CatalogueCallGuardTest;
+import de.intranda.goobi.plugins.CatalogueRequestCoalescerTest;
+import de.intranda.goobi.plugins.CatalogueRequestMetricsTest;
+import de.intranda.goobi.plugins.CatalogueRequestSchedulerTest;
+import de.intranda.goobi.plugins.ChildRecordFetcherTest;
+import de.intranda.goobi.plugins.DmdSecPatchWriterTest;
+import de.intranda.goobi.plugins.DocStructFingerprintTest;
+import de.intranda.goobi.plugins.FieldExpressionTest;
+import de.intranda.goobi.plugins.MetadataMergerTest;
+import de.intranda.goobi.plugins.MetsIdentifierReaderTest;
+import de.intranda.goobi.plugins.OfflineCatalogueIndexTest;
+
 @RunWith(Suite.class)
-@SuiteClasses({  })
+@SuiteClasses({ AnchorRecordCacheTest.class, AsyncStepExecutorTest.class, CatalogueCallGuardTest.class, CatalogueRequestCoalescerTest.class,
+        CatalogueRequestMetricsTest.class, CatalogueRequestSchedulerTest.class, ChildRecordFetcherTest.class, DmdSecPatchWriterTest.class,
+        DocStructFingerprintTest.class, FieldExpressionTest.class, MetadataMergerTest.class, MetsIdentifierReaderTest.class,
+        OfflineCatalogueIndexTest.class })
 public class AllTests {
 
 }
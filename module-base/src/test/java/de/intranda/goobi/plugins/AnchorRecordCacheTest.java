@@ -0,0 +1,165 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+public class AnchorRecordCacheTest {
+
+    private static String resourcesFolder;
+
+    private Prefs prefs;
+
+    @BeforeClass
+    public static void setUpClass() {
+        resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        prefs = new Prefs();
+        prefs.loadPrefs(resourcesFolder + "ruleset.xml");
+    }
+
+    @Test
+    public void testSecondVolumeDoesNotRequestAnchor() throws Exception {
+        VolumePlugin plugin = new VolumePlugin(prefs, "Periodical");
+        Fileformat first = requestVolume(plugin, "testSecondVolumeDoesNotRequestAnchor", 1, "PPN100");
+        Fileformat second = requestVolume(plugin, "testSecondVolumeDoesNotRequestAnchor", 1, "PPN101");
+        assertEquals(2, plugin.volumeRequests);
+        assertEquals(1, plugin.anchorRequests);
+
+        DocStruct firstAnchor = first.getDigitalDocument().getLogicalDocStruct();
+        DocStruct secondAnchor = second.getDigitalDocument().getLogicalDocStruct();
+        assertEquals("Periodical", firstAnchor.getType().getName());
+        assertEquals("Periodical", secondAnchor.getType().getName());
+        assertEquals("Göttinger Zeitschrift", getValue(secondAnchor, "TitleDocMain"));
+        assertEquals("PPN100", getValue(firstAnchor.getAllChildren().get(0), "CatalogIDDigital"));
+        assertEquals("PPN101", getValue(secondAnchor.getAllChildren().get(0), "CatalogIDDigital"));
+        // each volume gets its own copy of the anchor
+        assertNotSame(firstAnchor, secondAnchor);
+    }
+
+    @Test
+    public void testChangedConfigurationRequestsAnchorAgain() throws Exception {
+        VolumePlugin plugin = new VolumePlugin(prefs, "Periodical");
+        requestVolume(plugin, "testChangedConfigurationRequestsAnchorAgain", 1, "PPN100");
+        requestVolume(plugin, "testChangedConfigurationRequestsAnchorAgain", 2, "PPN101");
+        assertEquals(2, plugin.anchorRequests);
+    }
+
+    @Test
+    public void testRecordWithoutAnchorIsNotCached() throws Exception {
+        // the catalogue returns a monograph for the identifier of the anchor
+        VolumePlugin plugin = new VolumePlugin(prefs, "Monograph");
+        String key = AnchorRecordCache.createKey("testRecordWithoutAnchorIsNotCached", "ruleset.xml", 1, VolumePlugin.ANCHOR_IDENTIFIER);
+        assertNull(AnchorRecordCache.getInstance().getAnchor(key, 3600, () -> plugin.searchAnchor(VolumePlugin.ANCHOR_IDENTIFIER)));
+        assertNull(AnchorRecordCache.getInstance().getAnchor(key, 3600, () -> plugin.searchAnchor(VolumePlugin.ANCHOR_IDENTIFIER)));
+        assertEquals(2, plugin.anchorRequests);
+    }
+
+    @Test
+    public void testMergeIsRemembered() throws Exception {
+        VolumePlugin plugin = new VolumePlugin(prefs, "Periodical");
+        String key = AnchorRecordCache.createKey("testMergeIsRemembered", "ruleset.xml", 1, VolumePlugin.ANCHOR_IDENTIFIER);
+        AnchorRecordCache cache = AnchorRecordCache.getInstance();
+        DocStruct anchor = cache.getAnchor(key, 3600, () -> plugin.searchAnchor(VolumePlugin.ANCHOR_IDENTIFIER));
+        String anchorFingerprint = DocStructFingerprint.of(Collections.singletonList(anchor));
+
+        assertFalse(cache.isMerged(key, anchorFingerprint, "merged"));
+        cache.setMerged(key, anchorFingerprint, "merged");
+        assertTrue(cache.isMerged(key, anchorFingerprint, "merged"));
+        // another anchor of the volume or another catalogue anchor needs a merge
+        assertFalse(cache.isMerged(key, anchorFingerprint, "changed"));
+        assertFalse(cache.isMerged(key, "other", "merged"));
+    }
+
+    /**
+     * Request a volume like the plugin does: the volume without its anchor first, then the anchor from the cache
+     */
+    private Fileformat requestVolume(VolumePlugin plugin, String catalogue, long fileModified, String identifier) throws Exception {
+        OpacPluginCapabilities capabilities = OpacPluginCapabilities.of(plugin.getClass());
+        assertTrue(capabilities.isAnchorSearch());
+        Fileformat ff = capabilities.searchWithoutAnchor(plugin, "12", identifier, null, prefs);
+        String anchorIdentifier = capabilities.getAnchorIdentifier(plugin);
+        String key = AnchorRecordCache.createKey(catalogue, "ruleset.xml", fileModified, anchorIdentifier);
+        DocStruct anchor = AnchorRecordCache.getInstance().getAnchor(key, 3600, () -> plugin.searchAnchor(anchorIdentifier));
+        assertTrue(AnchorRecordCache.attachAnchor(ff, anchor));
+        return ff;
+    }
+
+    private String getValue(DocStruct ds, String metadataType) {
+        return ds.getAllMetadataByType(prefs.getMetadataTypeByName(metadataType)).get(0).getValue();
+    }
+
+    /**
+     * Opac plugin returning periodical volumes without their anchor
+     */
+    public static class VolumePlugin implements IOpacPluginAnchorSearch {
+        private static final String ANCHOR_IDENTIFIER = "PPN1";
+
+        private final Prefs prefs;
+        private final String anchorType;
+        private int volumeRequests = 0;
+        private int anchorRequests = 0;
+        private String anchorIdentifier;
+
+        private VolumePlugin(Prefs prefs, String anchorType) {
+            this.prefs = prefs;
+            this.anchorType = anchorType;
+        }
+
+        @Override
+        public Fileformat searchWithoutAnchor(String searchField, String value, ConfigOpacCatalogue coc, Prefs prefs) throws Exception {
+            volumeRequests++;
+            anchorIdentifier = ANCHOR_IDENTIFIER;
+            return createRecord("PeriodicalVolume", value, "Band " + value);
+        }
+
+        @Override
+        public String getAnchorIdentifier() {
+            return anchorIdentifier;
+        }
+
+        private Fileformat searchAnchor(String identifier) throws Exception {
+            anchorRequests++;
+            return createRecord(anchorType, identifier, "Göttinger Zeitschrift");
+        }
+
+        private Fileformat createRecord(String type, String identifier, String title) throws Exception {
+            Fileformat ff = new MetsMods(prefs);
+            DigitalDocument dd = new DigitalDocument();
+            ff.setDigitalDocument(dd);
+            DocStruct logical = dd.createDocStruct(prefs.getDocStrctTypeByName(type));
+            Metadata id = new Metadata(prefs.getMetadataTypeByName("CatalogIDDigital"));
+            id.setValue(identifier);
+            logical.addMetadata(id);
+            Metadata titleMetadata = new Metadata(prefs.getMetadataTypeByName("TitleDocMain"));
+            titleMetadata.setValue(title);
+            logical.addMetadata(titleMetadata);
+            dd.setLogicalDocStruct(logical);
+            return ff;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class AsyncStepExecutorTest {
+
+    @Test
+    public void testMaxConcurrent() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            AsyncStepExecutor.submit(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, 2);
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        AtomicBoolean executed = new AtomicBoolean();
+        try {
+            AsyncStepExecutor.submit(() -> executed.set(true), 2);
+            fail("The limit was not checked");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertFalse(executed.get());
+
+        release.countDown();
+        long end = System.currentTimeMillis() + 5000;
+        while (AsyncStepExecutor.getRunning() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, AsyncStepExecutor.getRunning());
+
+        CountDownLatch done = new CountDownLatch(1);
+        AsyncStepExecutor.submit(done::countDown, 2);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWithoutLimit() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        AsyncStepExecutor.submit(done::countDown, 0);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
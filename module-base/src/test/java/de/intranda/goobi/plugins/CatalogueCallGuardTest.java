@@ -0,0 +1,202 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.junit.Test;
+
+public class CatalogueCallGuardTest {
+
+    @Test
+    public void testCallWithoutLimits() throws Exception {
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance("testCallWithoutLimits");
+        assertEquals("record", guard.call(createConfiguration(""), () -> "record", null, null));
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance("testDeadline");
+        CatalogueRequestConfiguration config = createConfiguration("<requestTimeout>50</requestTimeout>");
+        try {
+            guard.call(config, () -> {
+                Thread.sleep(5000);
+                return "record";
+            }, null, null);
+            fail("The deadline was not checked");
+        } catch (CatalogueUnavailableException e) {
+            assertTrue(e.isTimeout());
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance("testCircuitBreaker");
+        CatalogueRequestConfiguration config = createConfiguration("<circuitBreaker failureThreshold=\"2\" openDuration=\"60000\" />");
+        for (int i = 0; i < 2; i++) {
+            try {
+                guard.call(config, () -> {
+                    throw new IOException("catalogue not reachable");
+                }, null, null);
+                fail("The exception of the request was not thrown");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        AtomicBoolean requested = new AtomicBoolean();
+        try {
+            guard.call(config, () -> {
+                requested.set(true);
+                return "record";
+            }, null, null);
+            fail("The circuit breaker did not reject the request");
+        } catch (CatalogueUnavailableException e) {
+            assertFalse(e.isTimeout());
+        }
+        assertFalse(requested.get());
+    }
+
+    @Test
+    public void testNoHedgeWithoutSamples() throws Exception {
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance("testNoHedgeWithoutSamples");
+        CatalogueRequestConfiguration config = createConfiguration("<hedging enabled=\"true\" percentile=\"50\" minSamples=\"3\" />");
+        AtomicBoolean hedged = new AtomicBoolean();
+        assertEquals("record", guard.call(config, () -> "record", () -> {
+            hedged.set(true);
+            return "hedge";
+        }, null));
+        assertFalse(hedged.get());
+    }
+
+    @Test
+    public void testNoHedgeOnFailure() throws Exception {
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance("testNoHedgeOnFailure");
+        CatalogueRequestConfiguration config =
+                createConfiguration("<requestTimeout>5000</requestTimeout><hedging enabled=\"true\" percentile=\"100\" minSamples=\"3\" />");
+        // the second request would be sent after 200 ms
+        for (int i = 0; i < 3; i++) {
+            guard.call(config, () -> {
+                Thread.sleep(200);
+                return "record";
+            }, null, null);
+        }
+        AtomicBoolean hedged = new AtomicBoolean();
+        try {
+            guard.call(config, () -> {
+                throw new IOException("record not found");
+            }, () -> {
+                hedged.set(true);
+                return "hedge";
+            }, null);
+            fail("The exception of the request was not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(hedged.get());
+    }
+
+    @Test
+    public void testHedgeDiscardsSlowRequest() throws Exception {
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance("testHedgeDiscardsSlowRequest");
+        CatalogueRequestConfiguration config = createConfiguration("<hedging enabled=\"true\" percentile=\"50\" minSamples=\"3\" />");
+        for (int i = 0; i < 3; i++) {
+            guard.call(config, () -> "record", null, null);
+        }
+        AtomicInteger hedges = new AtomicInteger();
+        AtomicReference<String> discarded = new AtomicReference<>();
+        CountDownLatch discardLatch = new CountDownLatch(1);
+        String result = guard.call(config, () -> {
+            // the slow request ignores the interruption, like most opac plugins do
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+            while (System.nanoTime() < end) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // continue
+                }
+            }
+            return "primary";
+        }, () -> {
+            hedges.incrementAndGet();
+            return "hedge";
+        }, lost -> {
+            discarded.set(lost);
+            discardLatch.countDown();
+        });
+        assertEquals("hedge", result);
+        assertEquals(1, hedges.get());
+        assertTrue(discardLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("primary", discarded.get());
+    }
+
+    @Test
+    public void testRejectedWithoutFreeThread() throws Exception {
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance("testRejectedWithoutFreeThread");
+        // one running request with a second request and one waiting request
+        CatalogueRequestConfiguration config = createConfiguration(
+                "<requestTimeout>50</requestTimeout><scheduler maxConcurrentRequests=\"1\" maxQueueDepth=\"1\" />");
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            try {
+                guard.call(config, () -> {
+                    // the hanging request ignores the interruption
+                    while (release.getCount() > 0) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            // continue
+                        }
+                    }
+                    return "record";
+                }, null, null);
+                fail("The deadline was not checked");
+            } catch (CatalogueUnavailableException e) {
+                assertTrue(e.isTimeout());
+            }
+        }
+
+        AtomicBoolean requested = new AtomicBoolean();
+        try {
+            guard.call(config, () -> {
+                requested.set(true);
+                return "record";
+            }, null, null);
+            fail("The request was started without a free thread");
+        } catch (CatalogueUnavailableException e) {
+            assertFalse(e.isTimeout());
+        }
+        assertFalse(requested.get());
+
+        release.countDown();
+        long end = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                assertEquals("record", guard.call(config, () -> "record", null, null));
+                break;
+            } catch (CatalogueUnavailableException e) {
+                if (System.currentTimeMillis() > end) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    static CatalogueRequestConfiguration createConfiguration(String elements) throws Exception {
+        XMLConfiguration xmlConfig = new XMLConfiguration();
+        xmlConfig.load(new StringReader("<config_plugin><config>" + elements + "</config></config_plugin>"));
+        xmlConfig.setExpressionEngine(new XPathExpressionEngine());
+        return CatalogueRequestConfiguration.create(xmlConfig.configurationAt("config"));
+    }
+}
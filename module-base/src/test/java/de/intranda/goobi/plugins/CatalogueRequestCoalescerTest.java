@@ -0,0 +1,134 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CatalogueRequestCoalescerTest {
+
+    @Test
+    public void testSingleRequest() throws Exception {
+        CatalogueRequestCoalescer<String> coalescer = new CatalogueRequestCoalescer<>();
+        CatalogueRequestCoalescer.Result<String> result = coalescer.execute("key", () -> "record");
+        assertEquals("record", result.getValue());
+        assertFalse(result.isShared());
+    }
+
+    @Test
+    public void testIdenticalRequestsAreCombined() throws Exception {
+        CatalogueRequestCoalescer<String> coalescer = new CatalogueRequestCoalescer<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger executions = new AtomicInteger();
+        Callable<String> request = () -> {
+            executions.incrementAndGet();
+            started.countDown();
+            release.await();
+            return "record";
+        };
+
+        FutureTask<CatalogueRequestCoalescer.Result<String>> first = start(() -> coalescer.execute("key", request));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        FutureTask<CatalogueRequestCoalescer.Result<String>> second = new FutureTask<>(() -> coalescer.execute("key", request));
+        Thread secondThread = new Thread(second);
+        secondThread.start();
+        awaitWaiting(secondThread);
+        release.countDown();
+
+        assertEquals("record", first.get(5, TimeUnit.SECONDS).getValue());
+        assertTrue(first.get().isShared());
+        assertEquals("record", second.get(5, TimeUnit.SECONDS).getValue());
+        assertTrue(second.get().isShared());
+        assertEquals(1, executions.get());
+
+        // finished requests are not kept
+        coalescer.execute("key", request);
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void testDifferentRequestsAreNotCombined() throws Exception {
+        CatalogueRequestCoalescer<String> coalescer = new CatalogueRequestCoalescer<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FutureTask<CatalogueRequestCoalescer.Result<String>> first = start(() -> coalescer.execute("first", () -> {
+            started.countDown();
+            release.await();
+            return "first record";
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CatalogueRequestCoalescer.Result<String> second = coalescer.execute("second", () -> "second record");
+        release.countDown();
+
+        assertEquals("second record", second.getValue());
+        assertFalse(second.isShared());
+        assertEquals("first record", first.get(5, TimeUnit.SECONDS).getValue());
+        assertFalse(first.get().isShared());
+    }
+
+    @Test
+    public void testExceptionIsShared() throws Exception {
+        CatalogueRequestCoalescer<String> coalescer = new CatalogueRequestCoalescer<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Callable<String> request = () -> {
+            started.countDown();
+            release.await();
+            throw new IOException("catalogue not reachable");
+        };
+
+        FutureTask<CatalogueRequestCoalescer.Result<String>> first = start(() -> coalescer.execute("key", request));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        FutureTask<CatalogueRequestCoalescer.Result<String>> second = new FutureTask<>(() -> coalescer.execute("key", request));
+        Thread secondThread = new Thread(second);
+        secondThread.start();
+        awaitWaiting(secondThread);
+        release.countDown();
+
+        assertRequestFailed(first);
+        assertRequestFailed(second);
+    }
+
+    @Test
+    public void testCopyEmptyRecord() throws Exception {
+        assertNull(CatalogueRequestCoalescer.copyRecord(null, null));
+    }
+
+    private static void assertRequestFailed(FutureTask<?> task) throws Exception {
+        try {
+            task.get(5, TimeUnit.SECONDS);
+            fail("The exception of the request was not thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static <T> FutureTask<T> start(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        new Thread(task).start();
+        return task;
+    }
+
+    /**
+     * Wait until the thread waits for the result of the running request
+     */
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+}
@@ -0,0 +1,107 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CatalogueRequestMetricsTest {
+
+    private static final long[] BOUNDS = { 10, 100, 1000 };
+
+    @Test
+    public void testEmptyHistogram() {
+        CatalogueRequestMetrics.HistogramSnapshot snapshot = new CatalogueRequestMetrics.Histogram(BOUNDS).snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getSum());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getMean(), 0);
+        assertEquals(0, snapshot.getMedian());
+        assertEquals(0, snapshot.getPercentile95());
+        assertEquals(0, snapshot.getPercentile99());
+    }
+
+    @Test
+    public void testCountSumAndMean() {
+        CatalogueRequestMetrics.Histogram histogram = new CatalogueRequestMetrics.Histogram(BOUNDS);
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i);
+        }
+        CatalogueRequestMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(5050, snapshot.getSum());
+        assertEquals(100, snapshot.getMax());
+        assertEquals(50.5, snapshot.getMean(), 0.0001);
+        // 10 values are in the first bucket, so the median is in the second one
+        assertEquals(100, snapshot.getMedian());
+        assertEquals(100, snapshot.getPercentile95());
+        assertEquals(100, snapshot.getPercentile99());
+    }
+
+    @Test
+    public void testPercentilesUseUpperBounds() {
+        CatalogueRequestMetrics.Histogram histogram = new CatalogueRequestMetrics.Histogram(BOUNDS);
+        for (int i = 0; i < 99; i++) {
+            histogram.add(5);
+        }
+        histogram.add(5000);
+        CatalogueRequestMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(10, snapshot.getMedian());
+        assertEquals(10, snapshot.getPercentile95());
+        assertEquals(10, snapshot.getPercentile99());
+        assertEquals(5000, snapshot.getMax());
+
+        // values above the last bound are reported as the maximum
+        histogram.add(6000);
+        snapshot = histogram.snapshot();
+        assertEquals(10, snapshot.getMedian());
+        assertEquals(6000, snapshot.getPercentile99());
+        assertEquals(6000, snapshot.getMax());
+    }
+
+    @Test
+    public void testPercentilesAreLimitedByMaximum() {
+        CatalogueRequestMetrics.Histogram histogram = new CatalogueRequestMetrics.Histogram(BOUNDS);
+        histogram.add(3);
+        histogram.add(3);
+        CatalogueRequestMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.getMedian());
+        assertEquals(3, snapshot.getPercentile99());
+    }
+
+    @Test
+    public void testBoundsAreInclusive() {
+        CatalogueRequestMetrics.Histogram histogram = new CatalogueRequestMetrics.Histogram(BOUNDS);
+        histogram.add(10);
+        histogram.add(11);
+        CatalogueRequestMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(10, snapshot.getMedian());
+        assertEquals(11, snapshot.getPercentile99());
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        CatalogueRequestMetrics.Histogram histogram = new CatalogueRequestMetrics.Histogram(BOUNDS);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            long value = i * 100;
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    histogram.add(value);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        CatalogueRequestMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(40000, snapshot.getCount());
+        assertEquals(6000000, snapshot.getSum());
+        assertEquals(300, snapshot.getMax());
+        assertEquals(300, snapshot.getPercentile99());
+    }
+}
@@ -0,0 +1,311 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CatalogueRequestSchedulerTest {
+
+    private static final CatalogueRequestScheduler.Settings ONE_AT_A_TIME = new CatalogueRequestScheduler.Settings(1, 0, 0);
+
+    private final CatalogueRequestScheduler scheduler = CatalogueRequestScheduler.getInstance();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWithoutLimits() throws Exception {
+        assertEquals("record", scheduler.execute("testWithoutLimits", null, false, () -> "record"));
+        assertEquals("record", scheduler.execute("testWithoutLimits", new CatalogueRequestScheduler.Settings(0, 0, 0), false, () -> "record"));
+        assertEquals("record", scheduler.tryExecute("testWithoutLimits", null, () -> "record"));
+    }
+
+    @Test
+    public void testMaxConcurrentRequests() throws Exception {
+        String catalogue = "testMaxConcurrentRequests";
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+            release.await();
+            return "first";
+        }));
+        waitForRunningRequest(catalogue);
+
+        AtomicBoolean secondStarted = new AtomicBoolean();
+        Future<String> second = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+            secondStarted.set(true);
+            return "second";
+        }));
+        waitForWaitingRequests(catalogue, 1);
+        assertFalse(secondStarted.get());
+
+        release.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getWaitingRequests(catalogue));
+    }
+
+    @Test
+    public void testMaxQueueDepth() throws Exception {
+        String catalogue = "testMaxQueueDepth";
+        CatalogueRequestScheduler.Settings settings = new CatalogueRequestScheduler.Settings(1, 0, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> scheduler.execute(catalogue, settings, false, () -> {
+            release.await();
+            return "first";
+        }));
+        waitForRunningRequest(catalogue);
+        Future<String> second = executor.submit(() -> scheduler.execute(catalogue, settings, false, () -> "second"));
+        waitForWaitingRequests(catalogue, 1);
+
+        AtomicBoolean requested = new AtomicBoolean();
+        try {
+            scheduler.execute(catalogue, settings, true, () -> {
+                requested.set(true);
+                return "third";
+            });
+            fail("The request was not rejected");
+        } catch (CatalogueUnavailableException e) {
+            assertFalse(e.isTimeout());
+        }
+        assertFalse(requested.get());
+
+        release.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInteractiveRequestsFirst() throws Exception {
+        String catalogue = "testInteractiveRequestsFirst";
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+            release.await();
+            return "first";
+        }));
+        waitForRunningRequest(catalogue);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Future<?> automatic = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> order.add("automatic")));
+        waitForWaitingRequests(catalogue, 1);
+        Future<?> interactive = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, true, () -> order.add("interactive")));
+        waitForWaitingRequests(catalogue, 2);
+
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        automatic.get(5, TimeUnit.SECONDS);
+        interactive.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("interactive", "automatic"), order);
+    }
+
+    @Test
+    public void testRequestsPerSecond() throws Exception {
+        String catalogue = "testRequestsPerSecond";
+        CatalogueRequestScheduler.Settings settings = new CatalogueRequestScheduler.Settings(0, 10, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            scheduler.execute(catalogue, settings, false, () -> "record");
+        }
+        // the first request starts immediately, the others 100 ms after the previous one
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(290));
+    }
+
+    @Test
+    public void testTryExecute() throws Exception {
+        String catalogue = "testTryExecute";
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+            release.await();
+            return "first";
+        }));
+        waitForRunningRequest(catalogue);
+
+        AtomicBoolean requested = new AtomicBoolean();
+        try {
+            scheduler.tryExecute(catalogue, ONE_AT_A_TIME, () -> {
+                requested.set(true);
+                return "second";
+            });
+            fail("The request was sent without a free slot");
+        } catch (CatalogueUnavailableException e) {
+            assertFalse(e.isTimeout());
+        }
+        assertFalse(requested.get());
+
+        release.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", scheduler.tryExecute(catalogue, ONE_AT_A_TIME, () -> "second"));
+    }
+
+    @Test
+    public void testCircuitBreakerIsCheckedBeforeWaiting() throws Exception {
+        String catalogue = "testCircuitBreakerIsCheckedBeforeWaiting";
+        CatalogueRequestConfiguration config =
+                CatalogueCallGuardTest.createConfiguration("<circuitBreaker failureThreshold=\"1\" openDuration=\"60000\" />");
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance(catalogue);
+        try {
+            guard.call(config, () -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+                throw new IllegalStateException("catalogue not reachable");
+            }), null, null);
+            fail("The exception of the request was not thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> running = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+            release.await();
+            return "running";
+        }));
+        waitForRunningRequest(catalogue);
+        try {
+            // rejected immediately instead of waiting for the running request
+            guard.call(config, () -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> "record"), null, null);
+            fail("The circuit breaker did not reject the request");
+        } catch (CatalogueUnavailableException e) {
+            assertFalse(e.isTimeout());
+        }
+        assertEquals(0, scheduler.getWaitingRequests(catalogue));
+        release.countDown();
+        assertEquals("running", running.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeadlineIncludesWaiting() throws Exception {
+        String catalogue = "testDeadlineIncludesWaiting";
+        CatalogueRequestConfiguration config = CatalogueCallGuardTest.createConfiguration("<requestTimeout>100</requestTimeout>");
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> running = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+            release.await();
+            return "running";
+        }));
+        waitForRunningRequest(catalogue);
+
+        AtomicBoolean requested = new AtomicBoolean();
+        try {
+            CatalogueCallGuard.getInstance(catalogue).call(config, () -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+                requested.set(true);
+                return "record";
+            }), null, null);
+            fail("The deadline was not checked");
+        } catch (CatalogueUnavailableException e) {
+            assertTrue(e.isTimeout());
+        }
+        // the abandoned request leaves the queue
+        waitForWaitingRequests(catalogue, 0);
+        release.countDown();
+        assertEquals("running", running.get(5, TimeUnit.SECONDS));
+        assertFalse(requested.get());
+    }
+
+    @Test
+    public void testHedgeWithoutFreeSlotIsNotSent() throws Exception {
+        String catalogue = "testHedgeWithoutFreeSlotIsNotSent";
+        CatalogueRequestConfiguration config =
+                CatalogueCallGuardTest.createConfiguration("<hedging enabled=\"true\" percentile=\"50\" minSamples=\"3\" />");
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance(catalogue);
+        // the second request would be sent after 50 ms
+        for (int i = 0; i < 3; i++) {
+            guard.call(config, () -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+                Thread.sleep(50);
+                return "record";
+            }), null, null);
+        }
+
+        AtomicBoolean hedged = new AtomicBoolean();
+        String result = guard.call(config, () -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+            Thread.sleep(300);
+            return "primary";
+        }), () -> scheduler.tryExecute(catalogue, ONE_AT_A_TIME, () -> {
+            hedged.set(true);
+            return "hedge";
+        }), null);
+        assertEquals("primary", result);
+        assertFalse(hedged.get());
+    }
+
+    @Test
+    public void testRejectedRequestIsNoFailure() throws Exception {
+        String catalogue = "testRejectedRequestIsNoFailure";
+        CatalogueRequestConfiguration config =
+                CatalogueCallGuardTest.createConfiguration("<circuitBreaker failureThreshold=\"1\" openDuration=\"60000\" />");
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance(catalogue);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> running = executor.submit(() -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> {
+            release.await();
+            return "running";
+        }));
+        waitForRunningRequest(catalogue);
+        try {
+            guard.call(config, () -> scheduler.tryExecute(catalogue, ONE_AT_A_TIME, () -> "record"), null, null);
+            fail("The request was sent without a free slot");
+        } catch (CatalogueUnavailableException e) {
+            assertFalse(e.isTimeout());
+        }
+        release.countDown();
+        assertEquals("running", running.get(5, TimeUnit.SECONDS));
+
+        // the catalogue was not requested, so the circuit breaker is still closed
+        assertEquals("record", guard.call(config, () -> scheduler.execute(catalogue, ONE_AT_A_TIME, false, () -> "record"), null, null));
+    }
+
+    @Test
+    public void testLatencyExcludesWaiting() throws Exception {
+        String catalogue = "testLatencyExcludesWaiting";
+        CatalogueRequestConfiguration config =
+                CatalogueCallGuardTest.createConfiguration("<hedging enabled=\"true\" percentile=\"100\" minSamples=\"2\" />");
+        CatalogueCallGuard guard = CatalogueCallGuard.getInstance(catalogue);
+        // the second request waits 500 ms for the scheduler, but is answered at once
+        CatalogueRequestScheduler.Settings settings = new CatalogueRequestScheduler.Settings(0, 2, 0);
+        for (int i = 0; i < 2; i++) {
+            guard.call(config, () -> scheduler.execute(catalogue, settings, false, () -> "record"), null, null);
+        }
+
+        // a latency including the waiting time would delay the second request by 500 ms
+        String result = guard.call(config, () -> {
+            Thread.sleep(300);
+            return "primary";
+        }, () -> "hedge", null);
+        assertEquals("hedge", result);
+    }
+
+    private void waitForRunningRequest(String catalogue) throws Exception {
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            try {
+                scheduler.tryExecute(catalogue, ONE_AT_A_TIME, () -> "probe");
+            } catch (CatalogueUnavailableException e) {
+                // the slot is taken
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("The request did not start");
+    }
+
+    private void waitForWaitingRequests(String catalogue, int expected) throws Exception {
+        long end = System.currentTimeMillis() + 5000;
+        while (scheduler.getWaitingRequests(catalogue) != expected) {
+            if (System.currentTimeMillis() > end) {
+                fail("Expected " + expected + " waiting requests, found " + scheduler.getWaitingRequests(catalogue));
+            }
+            Thread.sleep(10);
+        }
+    }
+}
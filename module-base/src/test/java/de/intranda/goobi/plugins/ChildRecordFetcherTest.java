@@ -0,0 +1,201 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.goobi.production.enums.PluginType;
+import org.goobi.production.plugin.interfaces.IOpacPlugin;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+public class ChildRecordFetcherTest {
+
+    private static String resourcesFolder;
+
+    private Prefs prefs;
+
+    @BeforeClass
+    public static void setUpClass() {
+        resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        prefs = new Prefs();
+        prefs.loadPrefs(resourcesFolder + "ruleset.xml");
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        BatchPlugin plugin = new BatchPlugin(prefs, "PPN5");
+        ChildRecordFetcher fetcher = createFetcher("testChunks", plugin, 3);
+        List<String> failed = new ArrayList<>();
+        Map<String, Fileformat> records = fetcher.fetch(Arrays.asList("PPN1", "PPN2", "PPN3", "PPN4", "PPN5", "PPN6", "PPN7"), failed);
+
+        assertEquals(Arrays.asList(Arrays.asList("PPN1", "PPN2", "PPN3"), Arrays.asList("PPN4", "PPN5", "PPN6"), Collections.singletonList("PPN7")),
+                plugin.batches);
+        assertEquals(0, plugin.singleRequests);
+        assertEquals(Collections.singletonList("PPN5"), failed);
+        assertEquals(6, records.size());
+        for (Map.Entry<String, Fileformat> entry : records.entrySet()) {
+            assertEquals(entry.getKey(), getValue(entry.getValue().getDigitalDocument().getLogicalDocStruct(), "CatalogIDDigital"));
+        }
+    }
+
+    @Test
+    public void testSingleIdentifierIsNotBatched() throws Exception {
+        BatchPlugin plugin = new BatchPlugin(prefs);
+        ChildRecordFetcher fetcher = createFetcher("testSingleIdentifierIsNotBatched", plugin, 3);
+        Map<String, Fileformat> records = fetcher.fetch(Collections.singletonList("PPN1"), new ArrayList<>());
+
+        assertTrue(plugin.batches.isEmpty());
+        assertEquals(1, plugin.singleRequests);
+        assertEquals("PPN1", getValue(records.get("PPN1").getDigitalDocument().getLogicalDocStruct(), "CatalogIDDigital"));
+    }
+
+    @Test
+    public void testRecordsAreAssignedToSubElements() throws Exception {
+        BatchPlugin plugin = new BatchPlugin(prefs);
+        ChildRecordFetcher fetcher = createFetcher("testRecordsAreAssignedToSubElements", plugin, 50);
+        DocStruct first = createChapter("PPN1");
+        DocStruct second = createChapter("PPN2");
+        // a sub element referencing the same record again
+        DocStruct third = createChapter("PPN2");
+        DocStruct unknown = createChapter("PPN3");
+        plugin.missing.add("PPN3");
+
+        Map<String, List<DocStruct>> elementsByIdentifier = new LinkedHashMap<>();
+        elementsByIdentifier.put("PPN1", Collections.singletonList(first));
+        elementsByIdentifier.put("PPN2", Arrays.asList(second, third));
+        elementsByIdentifier.put("PPN3", Collections.singletonList(unknown));
+        List<String> failed = new ArrayList<>();
+        Map<String, Fileformat> records = fetcher.fetch(elementsByIdentifier.keySet(), failed);
+        assertEquals(Collections.singletonList(Arrays.asList("PPN1", "PPN2", "PPN3")), plugin.batches);
+        assertEquals(Collections.singletonList("PPN3"), failed);
+
+        Map<DocStruct, DocStruct> assigned = new HashMap<>();
+        ChildRecordFetcher.assignRecords(elementsByIdentifier, records, assigned::put);
+        assertEquals(3, assigned.size());
+        assertEquals("Title of PPN1", getValue(assigned.get(first), "TitleDocMain"));
+        assertEquals("Title of PPN2", getValue(assigned.get(second), "TitleDocMain"));
+        assertEquals("Title of PPN2", getValue(assigned.get(third), "TitleDocMain"));
+        // each sub element gets its own record
+        assertNotSame(assigned.get(second), assigned.get(third));
+    }
+
+    private ChildRecordFetcher createFetcher(String catalogue, BatchPlugin plugin, int batchSize) throws Exception {
+        CatalogueRequestConfiguration config = CatalogueCallGuardTest
+                .createConfiguration("<subElementParallelism>1</subElementParallelism><subElementBatchSize>" + batchSize + "</subElementBatchSize>");
+        return new ChildRecordFetcher(catalogue, null, prefs, "ruleset.xml", config, null, false) {
+            @Override
+            IOpacPlugin borrowPlugin() {
+                return plugin;
+            }
+
+            @Override
+            void releasePlugin(IOpacPlugin borrowed) {
+            }
+
+            @Override
+            Class<?> getPluginType() {
+                return BatchPlugin.class;
+            }
+        };
+    }
+
+    private DocStruct createChapter(String identifier) throws Exception {
+        DocStruct chapter = new DigitalDocument().createDocStruct(prefs.getDocStrctTypeByName("Chapter"));
+        Metadata id = new Metadata(prefs.getMetadataTypeByName("CatalogIDDigital"));
+        id.setValue(identifier);
+        chapter.addMetadata(id);
+        return chapter;
+    }
+
+    private String getValue(DocStruct ds, String metadataType) {
+        return ds.getAllMetadataByType(prefs.getMetadataTypeByName(metadataType)).get(0).getValue();
+    }
+
+    /**
+     * Opac plugin supporting batch requests, it records the identifiers of each request
+     */
+    public static class BatchPlugin implements IOpacPlugin, IOpacPluginBatchSearch {
+        private final Prefs prefs;
+        private final List<String> missing;
+        private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        private int singleRequests = 0;
+
+        private BatchPlugin(Prefs prefs, String... missing) {
+            this.prefs = prefs;
+            this.missing = new ArrayList<>(Arrays.asList(missing));
+        }
+
+        @Override
+        public Map<String, Fileformat> searchBatch(String searchField, List<String> identifiers, ConfigOpacCatalogue coc, Prefs prefs)
+                throws Exception {
+            batches.add(new ArrayList<>(identifiers));
+            Map<String, Fileformat> records = new HashMap<>();
+            for (String identifier : identifiers) {
+                if (!missing.contains(identifier)) {
+                    records.put(identifier, createRecord(identifier));
+                }
+            }
+            // records that were not requested are ignored
+            records.put("PPN999", createRecord("PPN999"));
+            return records;
+        }
+
+        @Override
+        public Fileformat search(String searchField, String value, ConfigOpacCatalogue coc, Prefs prefs) throws Exception {
+            singleRequests++;
+            return missing.contains(value) ? null : createRecord(value);
+        }
+
+        @Override
+        public String getTitle() {
+            return "batch_stub";
+        }
+
+        @Override
+        public PluginType getType() {
+            return PluginType.Opac;
+        }
+
+        private Fileformat createRecord(String identifier) throws Exception {
+            Fileformat ff = new MetsMods(prefs);
+            DigitalDocument dd = new DigitalDocument();
+            ff.setDigitalDocument(dd);
+            DocStruct logical = dd.createDocStruct(prefs.getDocStrctTypeByName("Monograph"));
+            Metadata id = new Metadata(prefs.getMetadataTypeByName("CatalogIDDigital"));
+            id.setValue(identifier);
+            logical.addMetadata(id);
+            Metadata title = new Metadata(prefs.getMetadataTypeByName("TitleDocMain"));
+            title.setValue("Title of " + identifier);
+            logical.addMetadata(title);
+            dd.setLogicalDocStruct(logical);
+            return ff;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+public class DmdSecPatchWriterTest {
+
+    private static String resourcesFolder;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Prefs prefs;
+
+    @BeforeClass
+    public static void setUpClass() {
+        resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        prefs = new Prefs();
+        prefs.loadPrefs(resourcesFolder + "ruleset.xml");
+    }
+
+    @Test
+    public void testSameResultAsCompleteWrite() throws Exception {
+        String original = readResource("meta.xml");
+        Path metsFile = createMetsFile(original);
+        assertSameResultAsCompleteWrite(metsFile);
+
+        // everything after the metadata sections is copied without changes
+        String patched = new String(Files.readAllBytes(metsFile), StandardCharsets.UTF_8);
+        assertEquals(original.substring(original.indexOf("<mets:amdSec")), patched.substring(patched.indexOf("<mets:amdSec")));
+    }
+
+    @Test
+    public void testOtherNamespacePrefix() throws Exception {
+        String original = readResource("meta.xml").replace("mets:", "m:").replace("xmlns:mets=", "xmlns:m=");
+        Path metsFile = createMetsFile(original);
+        assertSameResultAsCompleteWrite(metsFile);
+    }
+
+    @Test
+    public void testOnlyPhysicalElementChanged() throws Exception {
+        Path metsFile = createMetsFile(readResource("meta.xml"));
+        DigitalDocument dd = read(metsFile).getDigitalDocument();
+        DocStruct physical = dd.getPhysicalDocStruct();
+        physical.getAllMetadataByType(prefs.getMetadataTypeByName("shelfmarksource")).get(0).setValue("8 H HANN 456");
+
+        assertTrue(DmdSecPatchWriter.write(metsFile, prefs, dd.getLogicalDocStruct(), physical, false, true, 0));
+        DigitalDocument patched = read(metsFile).getDigitalDocument();
+        assertEquals("8 H HANN 456", getValue(patched.getPhysicalDocStruct(), "shelfmarksource"));
+        assertEquals("1734", getValue(patched.getLogicalDocStruct(), "PublicationYear"));
+    }
+
+    @Test
+    public void testBackups() throws Exception {
+        Path metsFile = createMetsFile(readResource("meta.xml"));
+        writeChangedYear(metsFile, "1735", 2);
+        byte[] secondVersion = Files.readAllBytes(metsFile);
+        writeChangedYear(metsFile, "1736", 2);
+        writeChangedYear(metsFile, "1737", 2);
+
+        assertEquals("1737", getValue(read(metsFile).getDigitalDocument().getLogicalDocStruct(), "PublicationYear"));
+        assertEquals("1736", getValue(read(metsFile.resolveSibling("meta.xml.1")).getDigitalDocument().getLogicalDocStruct(), "PublicationYear"));
+        assertEquals("1735", getValue(read(metsFile.resolveSibling("meta.xml.2")).getDigitalDocument().getLogicalDocStruct(), "PublicationYear"));
+        assertArrayEquals(secondVersion, Files.readAllBytes(metsFile.resolveSibling("meta.xml.2")));
+        assertFalse(Files.exists(metsFile.resolveSibling("meta.xml.3")));
+    }
+
+    @Test
+    public void testSharedSectionIsNotReplaced() throws Exception {
+        // the logical element references more than one section, so the structure would change as well
+        String original = readResource("meta.xml").replace("DMDID=\"DMDLOG_0000\"", "DMDID=\"DMDLOG_0000 DMDLOG_0001\"");
+        Path metsFile = createMetsFile(original);
+        byte[] before = Files.readAllBytes(metsFile);
+        DigitalDocument dd = read(Paths.get(resourcesFolder + "meta.xml")).getDigitalDocument();
+        changeYear(dd.getLogicalDocStruct(), "1735");
+
+        assertFalse(DmdSecPatchWriter.write(metsFile, prefs, dd.getLogicalDocStruct(), dd.getPhysicalDocStruct(), true, false, 0));
+        assertArrayEquals(before, Files.readAllBytes(metsFile));
+    }
+
+    /**
+     * Change the metadata of the logical and physical element, replace their sections and compare the result with a complete write of the same
+     * document
+     */
+    private void assertSameResultAsCompleteWrite(Path metsFile) throws Exception {
+        DigitalDocument dd = read(metsFile).getDigitalDocument();
+        DocStruct topstruct = dd.getLogicalDocStruct();
+        DocStruct physical = dd.getPhysicalDocStruct();
+        changeYear(topstruct, "1735");
+        Metadata subtitle = new Metadata(prefs.getMetadataTypeByName("TitleDocSub1"));
+        subtitle.setValue("Mit Kupfern & Karten");
+        topstruct.addMetadata(subtitle);
+        physical.getAllMetadataByType(prefs.getMetadataTypeByName("shelfmarksource")).get(0).setValue("8 H HANN 456");
+
+        Path referenceFile = folder.newFolder("reference").toPath().resolve("meta.xml");
+        MetsMods reference = new MetsMods(prefs);
+        reference.setDigitalDocument(dd);
+        reference.write(referenceFile.toString());
+
+        assertTrue(DmdSecPatchWriter.write(metsFile, prefs, topstruct, physical, true, true, 0));
+
+        DigitalDocument expected = read(referenceFile).getDigitalDocument();
+        DigitalDocument patched = read(metsFile).getDigitalDocument();
+        assertEquals(fingerprint(expected.getLogicalDocStruct()), fingerprint(patched.getLogicalDocStruct()));
+        assertEquals(fingerprint(expected.getPhysicalDocStruct()), fingerprint(patched.getPhysicalDocStruct()));
+        assertEquals("1735", getValue(patched.getLogicalDocStruct(), "PublicationYear"));
+        assertEquals("Mit Kupfern & Karten", getValue(patched.getLogicalDocStruct(), "TitleDocSub1"));
+    }
+
+    private void writeChangedYear(Path metsFile, String year, int numberOfBackups) throws Exception {
+        DigitalDocument dd = read(metsFile).getDigitalDocument();
+        changeYear(dd.getLogicalDocStruct(), year);
+        assertTrue(DmdSecPatchWriter.write(metsFile, prefs, dd.getLogicalDocStruct(), dd.getPhysicalDocStruct(), true, false, numberOfBackups));
+    }
+
+    private void changeYear(DocStruct ds, String year) {
+        ds.getAllMetadataByType(prefs.getMetadataTypeByName("PublicationYear")).get(0).setValue(year);
+    }
+
+    private Path createMetsFile(String content) throws Exception {
+        Path metsFile = folder.newFolder("process").toPath().resolve("meta.xml");
+        Files.write(metsFile, content.getBytes(StandardCharsets.UTF_8));
+        return metsFile;
+    }
+
+    private Fileformat read(Path file) throws Exception {
+        Fileformat ff = new MetsMods(prefs);
+        ff.read(file.toString());
+        return ff;
+    }
+
+    private static String readResource(String name) throws Exception {
+        return new String(Files.readAllBytes(Paths.get(resourcesFolder + name)), StandardCharsets.UTF_8);
+    }
+
+    private static String getValue(DocStruct ds, String name) {
+        for (Metadata md : ds.getAllMetadata()) {
+            if (name.equals(md.getType().getName())) {
+                return md.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String fingerprint(DocStruct ds) {
+        List<DocStruct> docstructs = new ArrayList<>();
+        docstructs.add(ds);
+        DocStructFingerprint.collectDescendants(ds, docstructs);
+        return DocStructFingerprint.of(docstructs);
+    }
+}
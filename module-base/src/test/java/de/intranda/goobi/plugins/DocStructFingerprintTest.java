@@ -0,0 +1,144 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ugh.dl.Corporate;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+public class DocStructFingerprintTest {
+
+    private static String resourcesFolder;
+
+    private Prefs prefs;
+
+    @BeforeClass
+    public static void setUpClass() {
+        resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        prefs = new Prefs();
+        prefs.loadPrefs(resourcesFolder + "ruleset.xml");
+    }
+
+    @Test
+    public void testToHex() {
+        assertEquals("", DocStructFingerprint.toHex(new byte[0]));
+        assertEquals("000fa0ff", DocStructFingerprint.toHex(new byte[] { 0x00, 0x0f, (byte) 0xa0, (byte) 0xff }));
+    }
+
+    @Test
+    public void testSameMetadataSameFingerprint() throws Exception {
+        assertEquals(fingerprint(readTopstruct()), fingerprint(readTopstruct()));
+    }
+
+    @Test
+    public void testNullDocstruct() throws Exception {
+        DocStruct topstruct = readTopstruct();
+        assertNotEquals(fingerprint(topstruct), DocStructFingerprint.of(Arrays.asList(topstruct, null)));
+    }
+
+    @Test
+    public void testPositionOfTypesIsIgnored() throws Exception {
+        DocStruct topstruct = readTopstruct();
+        String before = fingerprint(topstruct);
+        // the title is added again at the end of the metadata list
+        Metadata title = topstruct.getAllMetadataByType(prefs.getMetadataTypeByName("TitleDocMain")).get(0);
+        topstruct.removeMetadata(title, true);
+        topstruct.addMetadata(title);
+        assertEquals(before, fingerprint(topstruct));
+    }
+
+    @Test
+    public void testMetadataValue() throws Exception {
+        DocStruct topstruct = readTopstruct();
+        String before = fingerprint(topstruct);
+        topstruct.getAllMetadataByType(prefs.getMetadataTypeByName("PublicationYear")).get(0).setValue("1735");
+        assertNotEquals(before, fingerprint(topstruct));
+    }
+
+    @Test
+    public void testPersonFields() throws Exception {
+        assertPersonChangeDetected(p -> p.setRole("Editor"));
+        assertPersonChangeDetected(p -> p.setFirstname("Christoph August"));
+        assertPersonChangeDetected(p -> p.setLastname("Heymann"));
+        assertPersonChangeDetected(p -> p.setDisplayname("Heumann, J."));
+        assertPersonChangeDetected(p -> p.setAuthorityValue("118000000"));
+        assertPersonChangeDetected(p -> p.setAuthorityFile("viaf", "http://viaf.org/viaf/", "http://viaf.org/viaf/12345"));
+    }
+
+    @Test
+    public void testCorporateFields() throws Exception {
+        DocStruct topstruct = readTopstruct();
+        String before = fingerprint(topstruct);
+        Corporate publisher = topstruct.getAllCorporates().get(0);
+        publisher.setPartName("Hannover");
+        assertNotEquals(before, fingerprint(topstruct));
+    }
+
+    @Test
+    public void testCorporateInGroup() throws Exception {
+        DocStruct topstruct = readTopstruct();
+        String before = fingerprint(topstruct);
+        MetadataGroup group = topstruct.getAllMetadataGroups().get(0);
+        group.getCorporateList().get(0).setMainName("Stadtarchiv Hannover");
+        assertNotEquals(before, fingerprint(topstruct));
+    }
+
+    @Test
+    public void testPersonInGroup() throws Exception {
+        DocStruct topstruct = readTopstruct();
+        String before = fingerprint(topstruct);
+        MetadataGroup group = topstruct.getAllMetadataGroups().get(0);
+        group.getPersonList().get(0).setDisplayname("Schmidt, K.");
+        assertNotEquals(before, fingerprint(topstruct));
+    }
+
+    @Test
+    public void testCollectDescendants() throws Exception {
+        List<DocStruct> descendants = new ArrayList<>();
+        DocStructFingerprint.collectDescendants(readTopstruct(), descendants);
+        assertEquals(2, descendants.size());
+        assertEquals("Chapter", descendants.get(0).getType().getName());
+    }
+
+    private void assertPersonChangeDetected(Consumer<Person> change) throws Exception {
+        DocStruct topstruct = readTopstruct();
+        String before = fingerprint(topstruct);
+        change.accept(topstruct.getAllPersons().get(0));
+        assertNotEquals(before, fingerprint(topstruct));
+    }
+
+    private DocStruct readTopstruct() throws Exception {
+        Fileformat ff = new MetsMods(prefs);
+        ff.read(resourcesFolder + "meta.xml");
+        return ff.getDigitalDocument().getLogicalDocStruct();
+    }
+
+    private static String fingerprint(DocStruct ds) {
+        return DocStructFingerprint.of(Collections.singletonList(ds));
+    }
+}
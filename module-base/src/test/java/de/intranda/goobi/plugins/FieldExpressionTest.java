@@ -0,0 +1,98 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FieldExpressionTest {
+
+    private static final FieldExpression.MetadataSource SOURCE = (level, name) -> {
+        Map<String, String> values = new HashMap<>();
+        values.put(FieldExpression.Level.TOPSTRUCT + "CatalogIDDigital", "PPN111");
+        values.put(FieldExpression.Level.FIRSTCHILD + "CatalogIDDigital", "PPN222");
+        values.put(FieldExpression.Level.ALL + "CatalogIDDigital", "PPN222");
+        values.put(FieldExpression.Level.ALL + "Catalogue", "GBV");
+        return values.get(level + name);
+    };
+
+    @Test
+    public void testMetadataVariable() {
+        FieldExpression expression = FieldExpression.compile("$(meta.CatalogIDDigital)");
+        assertTrue(expression.isCompiled());
+        assertFalse(expression.isDocumentRequired());
+        assertEquals(Collections.singleton("CatalogIDDigital"), expression.getMetadataNames());
+        assertEquals("CatalogIDDigital", expression.getFirstMetadataName());
+        assertEquals("PPN222", expression.evaluate(SOURCE));
+    }
+
+    @Test
+    public void testLevels() {
+        assertEquals("PPN111", FieldExpression.compile("$(meta.topstruct.CatalogIDDigital)").evaluate(SOURCE));
+        assertEquals("PPN222", FieldExpression.compile("${meta.firstchild.CatalogIDDigital}").evaluate(SOURCE));
+        assertEquals("PPN111", FieldExpression.compile("${meta.TopStruct.CatalogIDDigital}").evaluate(SOURCE));
+    }
+
+    @Test
+    public void testLiteralsAndSeveralVariables() {
+        FieldExpression expression = FieldExpression.compile("$(meta.Catalogue): ${meta.topstruct.CatalogIDDigital}/$(meta.Unknown)");
+        assertTrue(expression.isCompiled());
+        assertEquals(new LinkedHashSet<>(Arrays.asList("Catalogue", "CatalogIDDigital", "Unknown")), expression.getMetadataNames());
+        assertEquals("Catalogue", expression.getFirstMetadataName());
+        // missing values are replaced by an empty string
+        assertEquals("GBV: PPN111/", expression.evaluate(SOURCE));
+    }
+
+    @Test
+    public void testLiteral() {
+        FieldExpression expression = FieldExpression.compile("GBV");
+        assertTrue(expression.isCompiled());
+        assertTrue(expression.getMetadataNames().isEmpty());
+        assertEquals("GBV", expression.getFirstMetadataName());
+        assertEquals("GBV", expression.evaluate(SOURCE));
+    }
+
+    @Test
+    public void testOtherNotationsAreNotCompiled() {
+        // brackets that do not match and variables without dollar sign are left to the VariableReplacer
+        for (String value : Arrays.asList("$(meta.CatalogIDDigital}", "${meta.CatalogIDDigital)", "{meta.CatalogIDDigital}",
+                "(meta.CatalogIDDigital)")) {
+            FieldExpression expression = FieldExpression.compile(value);
+            assertTrue(value, expression.getMetadataNames().isEmpty());
+            assertEquals(value, expression.evaluate(SOURCE));
+        }
+        assertFalse(FieldExpression.compile("$(meta.CatalogIDDigital}").isCompiled());
+        assertFalse(FieldExpression.compile("{meta.CatalogIDDigital}").isCompiled());
+    }
+
+    @Test
+    public void testOtherVariables() {
+        FieldExpression expression = FieldExpression.compile("$(meta.CatalogIDDigital)_$(process.Title)");
+        assertFalse(expression.isCompiled());
+        assertFalse(expression.isDocumentRequired());
+        // the metadata is replaced, the rest is left for the VariableReplacer
+        assertEquals("PPN222_$(process.Title)", expression.evaluate(SOURCE));
+
+        expression = FieldExpression.compile("$(metas.CatalogIDDigital)");
+        assertFalse(expression.isCompiled());
+        assertTrue(expression.isDocumentRequired());
+        assertTrue(expression.getMetadataNames().isEmpty());
+    }
+
+    @Test
+    public void testSelect() {
+        assertEquals("top", FieldExpression.select(FieldExpression.Level.TOPSTRUCT, "top", "child"));
+        assertEquals("child", FieldExpression.select(FieldExpression.Level.FIRSTCHILD, "top", "child"));
+        assertEquals("child", FieldExpression.select(FieldExpression.Level.ALL, "top", "child"));
+        assertEquals("top", FieldExpression.select(FieldExpression.Level.ALL, "top", null));
+        assertNull(FieldExpression.select(FieldExpression.Level.FIRSTCHILD, "top", null));
+    }
+}
@@ -0,0 +1,311 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ugh.dl.Corporate;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.NamePart;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+import ugh.exceptions.IncompletePersonObjectException;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.fileformats.mets.MetsMods;
+
+public class MetadataMergerTest {
+
+    private static String resourcesFolder;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Prefs prefs;
+
+    @BeforeClass
+    public static void setUpClass() {
+        resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        prefs = new Prefs();
+        prefs.loadPrefs(resourcesFolder + "ruleset.xml");
+    }
+
+    @Test
+    public void testConfiguredForUpdate() {
+        MetadataMerger skipping = new MetadataMerger(new HashSet<>(Arrays.asList("TitleDocMain", "_urn")), null);
+        assertFalse(skipping.isConfiguredForUpdate("TitleDocMain"));
+        assertTrue(skipping.isConfiguredForUpdate("Author"));
+
+        // include fields override the skip fields
+        MetadataMerger including = new MetadataMerger(new HashSet<>(Arrays.asList("Author")), new HashSet<>(Arrays.asList("Author")));
+        assertTrue(including.isConfiguredForUpdate("Author"));
+        assertFalse(including.isConfiguredForUpdate("TitleDocMain"));
+    }
+
+    @Test
+    public void testMetsRecordWithoutSkipFields() throws Exception {
+        assertSameAsBaseline(readMets("meta_catalogue.xml"), Collections.emptySet(), Collections.emptySet());
+    }
+
+    @Test
+    public void testMetsRecordWithSkipFields() throws Exception {
+        Set<String> skipFields = new HashSet<>(Arrays.asList("DocLanguage", "SubjectTopic", "Editor", "CorporateOther", "_urn"));
+        assertSameAsBaseline(readMets("meta_catalogue.xml"), skipFields, Collections.emptySet());
+    }
+
+    @Test
+    public void testMetsRecordWithIncludeFields() throws Exception {
+        assertSameAsBaseline(readMets("meta_catalogue.xml"), Collections.emptySet(),
+                new HashSet<>(Arrays.asList("PlaceOfPublication", "Author", "Publisher", "SubjectGroup")));
+    }
+
+    @Test
+    public void testPicaRecordWithSkipFields() throws Exception {
+        assertSameAsBaseline(readPica("PPN123456789"), new HashSet<>(Arrays.asList("DocLanguage", "_urn")), Collections.emptySet());
+    }
+
+    @Test
+    public void testPicaRecordWithIncludeFields() throws Exception {
+        assertSameAsBaseline(readPica("PPN123456789"), Collections.emptySet(), new HashSet<>(Arrays.asList("TitleDocSub1", "Author", "Editor")));
+    }
+
+    @Test
+    public void testMergedValues() throws Exception {
+        DigitalDocument dd = readMets("meta.xml").getDigitalDocument();
+        DigitalDocument record = readMets("meta_catalogue.xml").getDigitalDocument();
+        new MetadataMerger(new HashSet<>(Arrays.asList("CatalogIDDigital", "_urn")), null).merge(dd.getLogicalDocStruct(),
+                record.getLogicalDocStruct());
+
+        List<String> description = describe(dd.getLogicalDocStruct());
+        assertTrue(description.contains("m:TitleDocMain=Beschreibung der Stadt Göttingen nebst einer Nachricht von der Universität||||"));
+        assertTrue(description.contains("m:_urn=urn:nbn:de:gbv:7-test-0001||||"));
+        assertFalse(description.contains("m:shelfmarksource=8 H HANN 123||||"));
+        // the editor is not contained in the catalogue record and gets removed
+        assertEquals(0, description.stream().filter(e -> e.startsWith("p:Editor=")).count());
+        assertEquals(2, description.stream().filter(e -> e.startsWith("p:Author=")).count());
+    }
+
+    /**
+     * Merge the record into two independent copies of the METS file, one with the merge of the baseline and one with the current merger, and
+     * compare the result
+     */
+    private void assertSameAsBaseline(Fileformat record, Set<String> skipFields, Set<String> includeFields) throws Exception {
+        Fileformat expected = readMets("meta.xml");
+        Fileformat actual = readMets("meta.xml");
+        DigitalDocument expectedRecord = record.getDigitalDocument();
+        DigitalDocument actualRecord = expectedRecord.copyDigitalDocument();
+
+        baselineMerge(expected.getDigitalDocument().getLogicalDocStruct(), expectedRecord.getLogicalDocStruct(), skipFields, includeFields);
+        baselineMerge(expected.getDigitalDocument().getPhysicalDocStruct(), expectedRecord.getPhysicalDocStruct(), skipFields, includeFields);
+
+        MetadataMerger merger = new MetadataMerger(skipFields, includeFields);
+        merger.merge(actual.getDigitalDocument().getLogicalDocStruct(), actualRecord.getLogicalDocStruct());
+        merger.merge(actual.getDigitalDocument().getPhysicalDocStruct(), actualRecord.getPhysicalDocStruct());
+
+        assertEquals(describe(expected.getDigitalDocument().getLogicalDocStruct()), describe(actual.getDigitalDocument().getLogicalDocStruct()));
+        assertEquals(describe(expected.getDigitalDocument().getPhysicalDocStruct()), describe(actual.getDigitalDocument().getPhysicalDocStruct()));
+        assertEquals(DocStructFingerprint.of(Collections.singletonList(expected.getDigitalDocument().getLogicalDocStruct())),
+                DocStructFingerprint.of(Collections.singletonList(actual.getDigitalDocument().getLogicalDocStruct())));
+    }
+
+    private Fileformat readMets(String filename) throws Exception {
+        Fileformat ff = new MetsMods(prefs);
+        ff.read(resourcesFolder + filename);
+        return ff;
+    }
+
+    private Fileformat readPica(String identifier) throws Exception {
+        Path export = folder.getRoot().toPath().resolve("pica_export.xml");
+        if (!Files.exists(export)) {
+            Files.copy(Paths.get(resourcesFolder, "pica_export.xml"), export);
+        }
+        OfflineCatalogueIndex index = OfflineCatalogueIndex.getInstance(export, OfflineCatalogueIndex.FORMAT_PICAXML, "id");
+        index.awaitIndex();
+        Fileformat ff = index.lookup(identifier, null, prefs);
+        assertNotNull(ff);
+        return ff;
+    }
+
+    /**
+     * All entries of the docstruct in their order, including all values that can be changed by the merge
+     */
+    private static List<String> describe(DocStruct ds) {
+        List<String> entries = new ArrayList<>();
+        if (ds.getAllMetadata() != null) {
+            for (Metadata md : ds.getAllMetadata()) {
+                entries.add("m:" + md.getType().getName() + "=" + md.getValue() + "|" + nullToEmpty(md.getAuthorityID()) + "|"
+                        + nullToEmpty(md.getAuthorityURI()) + "|" + nullToEmpty(md.getAuthorityValue()) + "|");
+            }
+        }
+        if (ds.getAllPersons() != null) {
+            for (Person p : ds.getAllPersons()) {
+                entries.add(describe(p));
+            }
+        }
+        if (ds.getAllCorporates() != null) {
+            for (Corporate c : ds.getAllCorporates()) {
+                entries.add(describe(c));
+            }
+        }
+        if (ds.getAllMetadataGroups() != null) {
+            for (MetadataGroup group : ds.getAllMetadataGroups()) {
+                StringBuilder sb = new StringBuilder("g:").append(group.getType().getName()).append('[');
+                for (Metadata md : group.getMetadataList()) {
+                    sb.append(md.getType().getName()).append('=').append(md.getValue()).append(';');
+                }
+                for (Person p : group.getPersonList()) {
+                    sb.append(describe(p)).append(';');
+                }
+                for (Corporate c : group.getCorporateList()) {
+                    sb.append(describe(c)).append(';');
+                }
+                entries.add(sb.append(']').toString());
+            }
+        }
+        return entries;
+    }
+
+    private static String describe(Person p) {
+        return "p:" + p.getType().getName() + "=" + nullToEmpty(p.getRole()) + "|" + nullToEmpty(p.getFirstname()) + "|"
+                + nullToEmpty(p.getLastname()) + "|" + nullToEmpty(p.getDisplayname()) + "|" + nullToEmpty(p.getAuthorityValue());
+    }
+
+    private static String describe(Corporate c) {
+        StringBuilder sb = new StringBuilder("c:").append(c.getType().getName()).append('=').append(nullToEmpty(c.getMainName())).append('|');
+        if (c.getSubNames() != null) {
+            for (NamePart np : c.getSubNames()) {
+                sb.append(np.getValue()).append(',');
+            }
+        }
+        return sb.append('|').append(nullToEmpty(c.getPartName())).toString();
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static boolean configuredForUpdate(String typeName, Set<String> skipFields, Set<String> includeFields) {
+        if (!includeFields.isEmpty()) {
+            return includeFields.contains(typeName);
+        } else {
+            return !skipFields.contains(typeName);
+        }
+    }
+
+    /**
+     * The merge as it was implemented before the {@link MetadataMerger}, used as reference
+     */
+    private static void baselineMerge(DocStruct docstructOld, DocStruct docstructNew, Set<String> skipFields, Set<String> includeFields)
+            throws MetadataTypeNotAllowedException {
+        if (docstructOld.getAllMetadata() != null) {
+            List<Metadata> metadataToRemove = new ArrayList<>();
+            for (Metadata md : docstructOld.getAllMetadata()) {
+                if (configuredForUpdate(md.getType().getName(), skipFields, includeFields)) {
+                    metadataToRemove.add(md);
+                }
+            }
+            for (Metadata md : metadataToRemove) {
+                docstructOld.removeMetadata(md, true);
+            }
+        }
+        if (docstructNew.getAllMetadata() != null) {
+            for (Metadata md : docstructNew.getAllMetadata()) {
+                if (configuredForUpdate(md.getType().getName(), skipFields, includeFields)) {
+                    Metadata newmetadata = new Metadata(md.getType());
+                    newmetadata.setValue(md.getValue());
+                    docstructOld.addMetadata(newmetadata);
+                }
+            }
+        }
+        if (docstructOld.getAllPersons() != null) {
+            List<Person> personsToRemove = new ArrayList<>();
+            for (Person pd : docstructOld.getAllPersons()) {
+                if (configuredForUpdate(pd.getType().getName(), skipFields, includeFields)) {
+                    personsToRemove.add(pd);
+                }
+            }
+            for (Person pd : personsToRemove) {
+                docstructOld.removePerson(pd, true);
+            }
+        }
+        if (docstructNew.getAllPersons() != null) {
+            for (Person pd : docstructNew.getAllPersons()) {
+                if (configuredForUpdate(pd.getType().getName(), skipFields, includeFields)) {
+                    docstructOld.addPerson(pd);
+                }
+            }
+        }
+
+        List<Corporate> allCorporates = new ArrayList<>();
+        if (docstructOld.getAllCorporates() != null) {
+            allCorporates = new ArrayList<>(docstructOld.getAllCorporates());
+        }
+        for (Corporate corporate : allCorporates) {
+            if (configuredForUpdate(corporate.getType().getName(), skipFields, includeFields)) {
+                List<? extends Corporate> remove = docstructOld.getAllCorporatesByType(corporate.getType());
+                if (remove != null) {
+                    for (Corporate pdRm : new ArrayList<>(remove)) {
+                        docstructOld.removeCorporate(pdRm);
+                    }
+                }
+            }
+        }
+        if (docstructNew.getAllCorporates() != null) {
+            for (Corporate corporate : docstructNew.getAllCorporates()) {
+                if (configuredForUpdate(corporate.getType().getName(), skipFields, includeFields)) {
+                    try {
+                        docstructOld.addCorporate(corporate);
+                    } catch (MetadataTypeNotAllowedException | IncompletePersonObjectException e) {
+                        // ignore metadata not allowed errors
+                    }
+                }
+            }
+        }
+
+        if (docstructOld.getAllMetadataGroups() != null) {
+            List<MetadataGroup> groupsToRemove = new ArrayList<>();
+            for (MetadataGroup group : docstructOld.getAllMetadataGroups()) {
+                if (configuredForUpdate(group.getType().getName(), skipFields, includeFields)) {
+                    groupsToRemove.add(group);
+                }
+            }
+            for (MetadataGroup group : groupsToRemove) {
+                docstructOld.removeMetadataGroup(group, true);
+            }
+        }
+        if (docstructNew.getAllMetadataGroups() != null) {
+            for (MetadataGroup newGroup : docstructNew.getAllMetadataGroups()) {
+                if (configuredForUpdate(newGroup.getType().getName(), skipFields, includeFields)) {
+                    docstructOld.addMetadataGroup(newGroup);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+public class MetsIdentifierReaderTest {
+
+    private static final Set<String> METADATA_NAMES =
+            new LinkedHashSet<>(Arrays.asList("CatalogIDDigital", "TitleDocMain", "PublicationYear", "Author", "DocLanguage"));
+
+    private static String resourcesFolder;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Prefs prefs;
+
+    @BeforeClass
+    public static void setUpClass() {
+        resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        prefs = new Prefs();
+        prefs.loadPrefs(resourcesFolder + "ruleset.xml");
+    }
+
+    @Test
+    public void testMonograph() throws Exception {
+        Path metsFile = Paths.get(resourcesFolder + "meta.xml");
+        FieldExpression.MetadataSource source = MetsIdentifierReader.read(metsFile, METADATA_NAMES);
+        assertNotNull(source);
+        assertEquals("PPN123456789", source.getValue(FieldExpression.Level.ALL, "CatalogIDDigital"));
+        assertEquals("PPN123456789", source.getValue(FieldExpression.Level.TOPSTRUCT, "CatalogIDDigital"));
+        // the chapters are no children of an anchor
+        assertNull(source.getValue(FieldExpression.Level.FIRSTCHILD, "CatalogIDDigital"));
+        // persons are not used by the variable replacer
+        assertNull(source.getValue(FieldExpression.Level.ALL, "Author"));
+        assertSameAsDocument(source, metsFile);
+    }
+
+    @Test
+    public void testAnchor() throws Exception {
+        Path metsFile = writeAnchorRecord();
+        FieldExpression.MetadataSource source = MetsIdentifierReader.read(metsFile, METADATA_NAMES);
+        assertNotNull(source);
+        assertEquals("PPN222", source.getValue(FieldExpression.Level.ALL, "CatalogIDDigital"));
+        assertEquals("PPN111", source.getValue(FieldExpression.Level.TOPSTRUCT, "CatalogIDDigital"));
+        assertEquals("PPN222", source.getValue(FieldExpression.Level.FIRSTCHILD, "CatalogIDDigital"));
+        // only the anchor has a language
+        assertEquals("ger", source.getValue(FieldExpression.Level.ALL, "DocLanguage"));
+        assertSameAsDocument(source, metsFile);
+    }
+
+    @Test
+    public void testMissingAnchorFile() throws Exception {
+        Path metsFile = writeAnchorRecord();
+        Files.delete(metsFile.resolveSibling("meta_anchor.xml"));
+        assertNull(MetsIdentifierReader.read(metsFile, METADATA_NAMES));
+    }
+
+    @Test
+    public void testMissingFile() {
+        assertNull(MetsIdentifierReader.read(folder.getRoot().toPath().resolve("meta.xml"), METADATA_NAMES));
+    }
+
+    @Test
+    public void testNoMetadataNames() {
+        // no metadata is needed, so the file is not read at all
+        FieldExpression.MetadataSource source = MetsIdentifierReader.read(folder.getRoot().toPath().resolve("meta.xml"), Collections.emptySet());
+        assertNotNull(source);
+        assertNull(source.getValue(FieldExpression.Level.ALL, "CatalogIDDigital"));
+    }
+
+    /**
+     * The values must be the same as the values of the completely read file
+     */
+    private void assertSameAsDocument(FieldExpression.MetadataSource source, Path metsFile) throws Exception {
+        Fileformat ff = new MetsMods(prefs);
+        ff.read(metsFile.toString());
+        FieldExpression.MetadataSource expected = FieldExpression.of(ff.getDigitalDocument());
+        for (String name : METADATA_NAMES) {
+            for (FieldExpression.Level level : FieldExpression.Level.values()) {
+                assertEquals(level + " " + name, expected.getValue(level, name), source.getValue(level, name));
+            }
+        }
+    }
+
+    private Path writeAnchorRecord() throws Exception {
+        DigitalDocument dd = new DigitalDocument();
+        DocStruct periodical = dd.createDocStruct(prefs.getDocStrctTypeByName("Periodical"));
+        addMetadata(periodical, "TitleDocMain", "Göttingische Zeitungen von gelehrten Sachen");
+        addMetadata(periodical, "CatalogIDDigital", "PPN111");
+        addMetadata(periodical, "DocLanguage", "ger");
+        DocStruct volume = dd.createDocStruct(prefs.getDocStrctTypeByName("PeriodicalVolume"));
+        addMetadata(volume, "TitleDocMain", "1739");
+        addMetadata(volume, "CatalogIDDigital", "PPN222");
+        addMetadata(volume, "PublicationYear", "1739");
+        periodical.addChild(volume);
+        dd.setLogicalDocStruct(periodical);
+        dd.setPhysicalDocStruct(dd.createDocStruct(prefs.getDocStrctTypeByName("BoundBook")));
+
+        MetsMods mm = new MetsMods(prefs);
+        mm.setDigitalDocument(dd);
+        Path metsFile = folder.getRoot().toPath().resolve("meta.xml");
+        mm.write(metsFile.toString());
+        return metsFile;
+    }
+
+    private void addMetadata(DocStruct ds, String type, String value) throws Exception {
+        Metadata md = new Metadata(prefs.getMetadataTypeByName(type));
+        md.setValue(value);
+        ds.addMetadata(md);
+    }
+}
@@ -0,0 +1,174 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+
+public class OfflineCatalogueIndexTest {
+
+    private static final String JSON_EXPORT = "{\"parent\": {\"id\": \"PPN999\"}, \"id\": \"PPN111\", \"title\": \"First\"}\n"
+            + "{\"title\": \"Second, with comma\", \"id\": 222}\n"
+            + "{\"title\": \"No identifier\", \"parts\": [{\"id\": \"PPN333\"}]}\n"
+            + "\n"
+            + "{\"ids\": \"PPN444\", \"id\":\"PPN\\u0035\\\"55\"}\n";
+
+    private static final String PICA_PERIODICAL = "<collection xmlns=\"info:srw/schema/5/picaXML-v1.0\">\n"
+            + createPicaRecord("Obvz", "PPN200", "Band 1", "PPN100")
+            + createPicaRecord("Abvz", "PPN100", "Göttinger Zeitschrift", null)
+            + createPicaRecord("Obvz", "PPN300", "Band 1 einer anderen Zeitschrift", "PPN900")
+            + "</collection>\n";
+
+    private static String resourcesFolder;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+    }
+
+    @Test
+    public void testJsonLines() throws Exception {
+        Path export = writeExport("export.jsonl", JSON_EXPORT);
+        OfflineCatalogueIndex index = OfflineCatalogueIndex.getInstance(export, OfflineCatalogueIndex.FORMAT_JSONL, "id");
+        index.awaitIndex();
+
+        assertEquals("{\"parent\": {\"id\": \"PPN999\"}, \"id\": \"PPN111\", \"title\": \"First\"}", find(index, "PPN111"));
+        assertEquals("{\"title\": \"Second, with comma\", \"id\": 222}", find(index, "222"));
+        assertEquals("{\"ids\": \"PPN444\", \"id\":\"PPN\\u0035\\\"55\"}", find(index, "PPN5\"55"));
+        // fields of nested objects and other fields are not used
+        assertNull(index.find("PPN999"));
+        assertNull(index.find("PPN333"));
+        assertNull(index.find("PPN444"));
+        assertTrue(Files.exists(export.resolveSibling("export.jsonl.idx")));
+    }
+
+    @Test
+    public void testPicaXml() throws Exception {
+        Path export = folder.getRoot().toPath().resolve("pica_export.xml");
+        Files.copy(Paths.get(resourcesFolder, "pica_export.xml"), export);
+        OfflineCatalogueIndex index = OfflineCatalogueIndex.getInstance(export, OfflineCatalogueIndex.FORMAT_PICAXML, "id");
+        index.awaitIndex();
+
+        for (String identifier : new String[] { "PPN123456789", "PPN123456790", "PPN123456791" }) {
+            String record = find(index, identifier);
+            assertTrue(record, record.startsWith("<record>"));
+            assertTrue(record, record.endsWith("</record>"));
+            assertTrue(record, record.contains(">" + identifier + "<"));
+        }
+        assertNull(index.find("PPN000000000"));
+    }
+
+    @Test
+    public void testPicaAnchor() throws Exception {
+        Prefs prefs = new Prefs();
+        prefs.loadPrefs(resourcesFolder + "ruleset.xml");
+        Path export = writeExport("periodical.xml", PICA_PERIODICAL);
+        OfflineCatalogueIndex index = OfflineCatalogueIndex.getInstance(export, OfflineCatalogueIndex.FORMAT_PICAXML, "id");
+        index.awaitIndex();
+
+        Fileformat ff = index.lookup("PPN200", null, prefs);
+        assertNotNull(ff);
+        DocStruct anchor = ff.getDigitalDocument().getLogicalDocStruct();
+        assertEquals("Periodical", anchor.getType().getName());
+        assertEquals("PPN100", getValue(prefs, anchor, "CatalogIDDigital"));
+        assertEquals("Göttinger Zeitschrift", getValue(prefs, anchor, "TitleDocMain"));
+        DocStruct volume = anchor.getAllChildren().get(0);
+        assertEquals("PeriodicalVolume", volume.getType().getName());
+        assertEquals("PPN200", getValue(prefs, volume, "CatalogIDDigital"));
+        String anchorRecord = new String(index.findAnchorRecord(index.find("PPN200")), StandardCharsets.UTF_8);
+        assertTrue(anchorRecord, anchorRecord.contains(">Göttinger Zeitschrift<"));
+
+        // the anchor is not contained in the export, the catalogue must be requested
+        assertNull(index.lookup("PPN300", null, prefs));
+        assertNull(index.findAnchorRecord(index.find("PPN300")));
+        assertNull(index.findAnchorRecord(index.find("PPN100")));
+    }
+
+    @Test
+    public void testIndexIsCreatedInBackground() throws Exception {
+        Path export = writeExport("background.jsonl", JSON_EXPORT);
+        OfflineCatalogueIndex index = OfflineCatalogueIndex.getInstance(export, OfflineCatalogueIndex.FORMAT_JSONL, "id");
+        // the first lookup does not wait for the index
+        assertNull(index.find("PPN111"));
+
+        long end = System.currentTimeMillis() + 5000;
+        byte[] record = index.find("PPN111");
+        while (record == null && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            record = index.find("PPN111");
+        }
+        assertNotNull(record);
+    }
+
+    @Test
+    public void testChangedExport() throws Exception {
+        Path export = writeExport("changed.jsonl", JSON_EXPORT);
+        OfflineCatalogueIndex index = OfflineCatalogueIndex.getInstance(export, OfflineCatalogueIndex.FORMAT_JSONL, "id");
+        index.awaitIndex();
+        assertNull(index.find("PPN666"));
+
+        Files.write(export, "{\"id\": \"PPN666\"}\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(export, FileTime.fromMillis(Files.getLastModifiedTime(export).toMillis() + 10000));
+        index.awaitIndex();
+        assertEquals("{\"id\": \"PPN666\"}", find(index, "PPN666"));
+        assertNotNull(index.find("PPN111"));
+    }
+
+    @Test
+    public void testFindJsonValue() {
+        assertEquals("PPN111", OfflineCatalogueIndex.findJsonValue("{\"id\" : \"PPN111\"}", "id"));
+        assertEquals("12.5", OfflineCatalogueIndex.findJsonValue("{\"a\": [1, {\"id\": 1}], \"id\": 12.5}", "id"));
+        assertEquals("a}b", OfflineCatalogueIndex.findJsonValue("{\"text\": \"\\\"id\\\": \\\"x\\\"\", \"id\": \"a}b\"}", "id"));
+        assertNull(OfflineCatalogueIndex.findJsonValue("{\"id\": null}", "id"));
+        assertNull(OfflineCatalogueIndex.findJsonValue("{\"id\": {\"value\": \"PPN111\"}}", "id"));
+        assertNull(OfflineCatalogueIndex.findJsonValue("{\"other\": \"id\"}", "id"));
+        assertNull(OfflineCatalogueIndex.findJsonValue("", "id"));
+    }
+
+    private Path writeExport(String filename, String content) throws Exception {
+        Path export = folder.getRoot().toPath().resolve(filename);
+        Files.write(export, content.getBytes(StandardCharsets.UTF_8));
+        return export;
+    }
+
+    private static String createPicaRecord(String type, String identifier, String title, String parent) {
+        return "<record>\n"
+                + "<datafield tag=\"002@\"><subfield code=\"0\">" + type + "</subfield></datafield>\n"
+                + "<datafield tag=\"003@\"><subfield code=\"0\">" + identifier + "</subfield></datafield>\n"
+                + "<datafield tag=\"021A\"><subfield code=\"a\">" + title + "</subfield></datafield>\n"
+                + (parent == null ? "" : "<datafield tag=\"036D\"><subfield code=\"9\">" + parent + "</subfield></datafield>\n")
+                + "</record>\n";
+    }
+
+    private static String getValue(Prefs prefs, DocStruct ds, String metadataType) {
+        return ds.getAllMetadataByType(prefs.getMetadataTypeByName(metadataType)).get(0).getValue();
+    }
+
+    private static String find(OfflineCatalogueIndex index, String identifier) throws Exception {
+        byte[] record = index.find(identifier);
+        assertNotNull(identifier, record);
+        return new String(record, StandardCharsets.UTF_8);
+    }
+}
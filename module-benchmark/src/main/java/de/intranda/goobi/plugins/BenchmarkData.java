@@ -0,0 +1,119 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.FileSet;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+/**
+ * Synthetic ruleset and records for the benchmarks. The ruleset contains the metadata types <code>Field0</code> to <code>FieldN</code>, so that
+ * records of any size up to {@link #MAX_FIELDS} can be created.
+ */
+final class BenchmarkData {
+
+    static final int MAX_FIELDS = 1000;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Write the synthetic ruleset into the given directory and load it
+     *
+     * @param directory the directory to use
+     * @return the loaded ruleset
+     */
+    static Prefs createPrefs(Path directory) throws Exception {
+        Path file = directory.resolve("ruleset.xml");
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Preferences>\n");
+            writeMetadataType(out, "CatalogIDDigital", null);
+            writeMetadataType(out, "TitleDocMain", null);
+            writeMetadataType(out, "pathimagefiles", null);
+            writeMetadataType(out, "Author", "person");
+            for (int i = 0; i < MAX_FIELDS; i++) {
+                writeMetadataType(out, "Field" + i, null);
+            }
+            out.write("  <DocStrctType topStruct=\"true\">\n    <Name>Monograph</Name>\n    <language name=\"en\">Monograph</language>\n");
+            out.write("    <metadata num=\"*\">CatalogIDDigital</metadata>\n    <metadata num=\"*\">TitleDocMain</metadata>\n");
+            out.write("    <metadata num=\"*\">Author</metadata>\n");
+            for (int i = 0; i < MAX_FIELDS; i++) {
+                out.write("    <metadata num=\"*\">Field" + i + "</metadata>\n");
+            }
+            out.write("  </DocStrctType>\n");
+            out.write("  <DocStrctType>\n    <Name>BoundBook</Name>\n    <language name=\"en\">Bound book</language>\n");
+            out.write("    <metadata num=\"*\">pathimagefiles</metadata>\n  </DocStrctType>\n");
+            out.write("</Preferences>\n");
+        }
+        Prefs prefs = new Prefs();
+        prefs.loadPrefs(file.toString());
+        return prefs;
+    }
+
+    private static void writeMetadataType(Writer out, String name, String type) throws IOException {
+        out.write(type == null ? "  <MetadataType>\n" : "  <MetadataType type=\"" + type + "\">\n");
+        out.write("    <Name>" + name + "</Name>\n    <language name=\"en\">" + name + "</language>\n  </MetadataType>\n");
+    }
+
+    /**
+     * Create a record with the given number of metadata fields
+     *
+     * @param prefs the synthetic ruleset
+     * @param identifier the value of CatalogIDDigital
+     * @param fields number of additional fields
+     * @param version part of each value, records with different versions differ in all values
+     * @return the record
+     */
+    static Fileformat createRecord(Prefs prefs, String identifier, int fields, int version) throws Exception {
+        DigitalDocument dd = new DigitalDocument();
+        dd.setFileSet(new FileSet());
+        DocStruct logical = dd.createDocStruct(prefs.getDocStrctTypeByName("Monograph"));
+        addMetadata(prefs, logical, "CatalogIDDigital", identifier);
+        addMetadata(prefs, logical, "TitleDocMain", "Title " + identifier + " version " + version);
+        Person author = new Person(prefs.getMetadataTypeByName("Author"));
+        author.setFirstname("Firstname " + version);
+        author.setLastname("Lastname " + version);
+        logical.addPerson(author);
+        for (int i = 0; i < fields; i++) {
+            addMetadata(prefs, logical, "Field" + (i % MAX_FIELDS), "Value " + i + " version " + version);
+        }
+        dd.setLogicalDocStruct(logical);
+
+        DocStruct physical = dd.createDocStruct(prefs.getDocStrctTypeByName("BoundBook"));
+        addMetadata(prefs, physical, "pathimagefiles", "file:///opt/digiverso/goobi/metadata/1/images/" + identifier + "_media");
+        dd.setPhysicalDocStruct(physical);
+
+        MetsMods mm = new MetsMods(prefs);
+        mm.setDigitalDocument(dd);
+        return mm;
+    }
+
+    private static void addMetadata(Prefs prefs, DocStruct ds, String type, String value) throws Exception {
+        Metadata md = new Metadata(prefs.getMetadataTypeByName(type));
+        md.setValue(value);
+        ds.addMetadata(md);
+    }
+
+    /**
+     * Delete a temporary directory of a benchmark
+     */
+    static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
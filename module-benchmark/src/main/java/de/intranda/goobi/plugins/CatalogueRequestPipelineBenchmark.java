@@ -0,0 +1,166 @@
+package de.intranda.goobi.plugins;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.goobi.beans.Process;
+import org.goobi.beans.Ruleset;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.PluginReturnValue;
+import org.mockito.MockedStatic;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.Helper;
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+/**
+ * A complete catalogue request run of the step plugin in merge mode, using {@link CatalogueRequestPlugin#run(PipelineLimits)}. The process, the
+ * step and the catalogue are mocked, the record is requested from a stub catalogue with simulated latency and the METS file is read from and
+ * written to a temporary directory. The Goobi configuration and the process journal are replaced by static mocks. Each thread uses its own process
+ * and catalogue, so the benchmark can be run with several threads to measure the throughput of parallel runs.
+ */
+@BenchmarkMode({ Mode.AverageTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class CatalogueRequestPipelineBenchmark {
+
+    private static final AtomicInteger PROCESS_COUNTER = new AtomicInteger();
+
+    @Param({ "0", "50" })
+    public long latencyMillis;
+
+    @Param({ "50", "500" })
+    public int fields;
+
+    // true if the catalogue record changes before each run, otherwise the METS file is not written
+    @Param({ "true", "false" })
+    public boolean recordChanged;
+
+    // full: write the complete METS file, partial: replace the changed metadata sections only
+    @Param({ "full", "partial" })
+    public String writeMode;
+
+    private Path directory;
+    private StubOpacPlugin plugin;
+    private CatalogueRequestPlugin stepPlugin;
+    private MockedStatic<ConfigurationHelper> configurationHelper;
+    private MockedStatic<Helper> helper;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("pipeline-benchmark");
+        Path metsFile = directory.resolve("meta.xml");
+        Path importDirectory = Files.createDirectories(directory.resolve("import"));
+        Prefs prefs = BenchmarkData.createPrefs(directory);
+        int number = PROCESS_COUNTER.incrementAndGet();
+        String identifier = "PPN" + number;
+        String catalogue = "benchmark-" + number;
+        BenchmarkData.createRecord(prefs, identifier, fields, -1).write(metsFile.toString());
+
+        // static mocks are only active in the thread that created them, JMH calls the setup of a thread state in the benchmark thread
+        ConfigurationHelper configuration = mock(ConfigurationHelper.class);
+        when(configuration.getConfigurationFolder()).thenReturn(directory.toString());
+        configurationHelper = mockStatic(ConfigurationHelper.class);
+        configurationHelper.when(ConfigurationHelper::getInstance).thenReturn(configuration);
+        helper = mockStatic(Helper.class);
+
+        plugin = new StubOpacPlugin(catalogue, latencyMillis, fields);
+        ConfigOpacCatalogue coc = mock(ConfigOpacCatalogue.class);
+        when(coc.getTitle()).thenReturn(catalogue);
+        when(coc.getOpacPlugin()).thenReturn(plugin);
+        CatalogueRegistry.getInstance().registerCatalogue("", coc);
+
+        Ruleset ruleset = mock(Ruleset.class);
+        when(ruleset.getDatei()).thenReturn("ruleset.xml");
+        when(ruleset.getPreferences()).thenReturn(prefs);
+        Process process = mock(Process.class);
+        when(process.getId()).thenReturn(number);
+        when(process.getTitel()).thenReturn("process_" + number);
+        when(process.getRegelsatz()).thenReturn(ruleset);
+        when(process.getMetadataFilePath()).thenReturn(metsFile.toString());
+        when(process.getProcessDataDirectory()).thenReturn(directory.toString());
+        when(process.getImportDirectory()).thenReturn(importDirectory.toString());
+        when(process.readMetadataFile()).thenAnswer(invocation -> {
+            Fileformat ff = new MetsMods(prefs);
+            ff.read(metsFile.toString());
+            return ff;
+        });
+        doAnswer(invocation -> {
+            invocation.<Fileformat> getArgument(0).write(metsFile.toString());
+            return true;
+        }).when(process).writeMetadataFile(any());
+        Step step = mock(Step.class);
+        when(step.getProzess()).thenReturn(process);
+        when(step.getProcessId()).thenReturn(number);
+        when(step.getTitel()).thenReturn("Catalogue request");
+        when(step.isTypAutomatisch()).thenReturn(true);
+
+        stepPlugin = new CatalogueRequestPlugin();
+        stepPlugin.setStep(step);
+        stepPlugin.setProcess(process);
+        stepPlugin.setPrefs(prefs);
+        stepPlugin.setConfig(createConfiguration(catalogue, "partial".equals(writeMode)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        helper.close();
+        configurationHelper.close();
+        BenchmarkData.delete(directory);
+    }
+
+    @Benchmark
+    public PluginReturnValue run() {
+        if (recordChanged) {
+            plugin.nextVersion();
+        }
+        PluginReturnValue result = stepPlugin.run(PipelineLimits.UNLIMITED);
+        if (result != PluginReturnValue.FINISH) {
+            throw new IllegalStateException("Catalogue request failed with " + result);
+        }
+        return result;
+    }
+
+    private static CatalogueRequestConfiguration createConfiguration(String catalogue, boolean partialWrite) throws Exception {
+        XMLConfiguration xmlConfig = new XMLConfiguration();
+        xmlConfig.load(new StringReader("<config_plugin><config>" //
+                + "<catalogue>" + catalogue + "</catalogue>" //
+                + "<catalogueField fieldName=\"12\" fieldValue=\"$(meta.CatalogIDDigital)\" />" //
+                + "<mergeRecords>true</mergeRecords>" //
+                + "<skipField>CatalogIDDigital</skipField>" //
+                + "<partialWrite>" + partialWrite + "</partialWrite>" //
+                + "</config></config_plugin>"));
+        xmlConfig.setExpressionEngine(new XPathExpressionEngine());
+        return CatalogueRequestConfiguration.create(xmlConfig.configurationAt("config"));
+    }
+}
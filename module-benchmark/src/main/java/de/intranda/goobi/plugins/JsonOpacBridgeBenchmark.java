@@ -0,0 +1,65 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.production.cli.helper.StringPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+
+/**
+ * Search using the reflective bridge to the intranda_opac_json plugin compared to a direct call of the same plugin. The stub returns records
+ * without additional fields, so the difference is the cost of the bridge.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonOpacBridgeBenchmark {
+
+    private Path directory;
+    private Prefs prefs;
+    private StubOpacPlugin plugin;
+    private List<StringPair> valueList;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("bridge-benchmark");
+        prefs = BenchmarkData.createPrefs(directory);
+        plugin = new StubOpacPlugin("intranda_opac_json", 0, 0);
+        valueList = Collections.singletonList(new StringPair("12", "PPN1"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkData.delete(directory);
+    }
+
+    @Benchmark
+    public Fileformat bridge() throws Exception {
+        return JsonOpacBridge.search(plugin, valueList, null, prefs);
+    }
+
+    @Benchmark
+    public Fileformat direct() throws Exception {
+        return plugin.search("12", "PPN1", null, prefs);
+    }
+}
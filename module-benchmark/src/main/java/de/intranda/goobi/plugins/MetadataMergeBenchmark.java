@@ -0,0 +1,75 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ugh.dl.DocStruct;
+import ugh.dl.Prefs;
+
+/**
+ * Merge of a catalogue record into an existing docstruct, as done for the main element, the anchor and each sub element
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MetadataMergeBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int fields;
+
+    private Path directory;
+    private MetadataMerger merger;
+    private DocStruct docstructOld;
+    private DocStruct docstructNew;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("merge-benchmark");
+        Prefs prefs = BenchmarkData.createPrefs(directory);
+        merger = new MetadataMerger(Collections.singleton("CatalogIDDigital"), Collections.emptySet());
+        docstructOld = BenchmarkData.createRecord(prefs, "PPN1", fields, 0).getDigitalDocument().getLogicalDocStruct();
+        docstructNew = BenchmarkData.createRecord(prefs, "PPN1", fields, 1).getDigitalDocument().getLogicalDocStruct();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkData.delete(directory);
+    }
+
+    /**
+     * Merge only
+     */
+    @Benchmark
+    public int merge() throws Exception {
+        return merger.merge(docstructOld, docstructNew);
+    }
+
+    /**
+     * Merge including the change detection used to decide whether the METS file needs to be written
+     */
+    @Benchmark
+    public boolean mergeWithChangeDetection() throws Exception {
+        String before = DocStructFingerprint.of(Collections.singletonList(docstructOld));
+        merger.merge(docstructOld, docstructNew);
+        return !before.equals(DocStructFingerprint.of(Collections.singletonList(docstructOld)));
+    }
+}
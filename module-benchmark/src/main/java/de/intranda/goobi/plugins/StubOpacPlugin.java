@@ -0,0 +1,139 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.production.enums.PluginType;
+import org.goobi.production.plugin.interfaces.IOpacPlugin;
+
+import de.unigoettingen.sub.search.opac.ConfigOpacCatalogue;
+import de.unigoettingen.sub.search.opac.ConfigOpacDoctype;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+
+/**
+ * Opac plugin returning synthetic records after a configurable latency. It provides the same members as the intranda_opac_json plugin, so that it
+ * can be used with the {@link JsonOpacBridge} as well.
+ */
+public class StubOpacPlugin implements IOpacPlugin {
+
+    private final String title;
+    private final long latencyMillis;
+    private final int fields;
+    private final SearchConfig searchConfig = new SearchConfig();
+    private int version;
+
+    /**
+     * @param title the title of the plugin, use <code>intranda_opac_json</code> to simulate the json plugin
+     * @param latencyMillis simulated duration of each request
+     * @param fields number of metadata fields in the returned records
+     */
+    public StubOpacPlugin(String title, long latencyMillis, int fields) {
+        this.title = title;
+        this.latencyMillis = latencyMillis;
+        this.fields = fields;
+    }
+
+    /**
+     * Change all values of the following records
+     */
+    public void nextVersion() {
+        version++;
+    }
+
+    @Override
+    public Fileformat search(String inSuchfeld, String inSuchbegriff, ConfigOpacCatalogue coc, Prefs inPrefs) throws Exception {
+        if (latencyMillis > 0) {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        }
+        String identifier = inSuchbegriff;
+        if (identifier == null || identifier.isEmpty()) {
+            // search of the json plugin, the value was set in the search field before
+            identifier = searchConfig.getFieldList().get(0).text;
+        }
+        return BenchmarkData.createRecord(inPrefs, identifier, fields, version);
+    }
+
+    public SearchConfig getConfigForOpac() {
+        return searchConfig;
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public PluginType getType() {
+        return PluginType.Opac;
+    }
+
+    public int getHitcount() {
+        return 1;
+    }
+
+    public String getAtstsl() {
+        return "";
+    }
+
+    public void setAtstsl(String createAtstsl) {
+    }
+
+    public String createAtstsl(String value, String value2) {
+        return "";
+    }
+
+    public ConfigOpacDoctype getOpacDocType() {
+        return null;
+    }
+
+    public String getGattung() {
+        return "Aa";
+    }
+
+    /**
+     * Search configuration in the structure of the json plugin
+     */
+    public static class SearchConfig {
+        private final List<SearchField> fieldList = new ArrayList<>();
+
+        public SearchConfig() {
+            fieldList.add(new SearchField("12"));
+            fieldList.add(new SearchField("7"));
+        }
+
+        public List<SearchField> getFieldList() {
+            return fieldList;
+        }
+    }
+
+    /**
+     * Search field in the structure of the json plugin
+     */
+    public static class SearchField {
+        private final String id;
+        private String text;
+        private String selectedField;
+
+        public SearchField(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setText(String text) {
+            this.text = text;
+        }
+
+        public void setSelectedField(String selectedField) {
+            this.selectedField = selectedField;
+        }
+
+        public String getSelectedField() {
+            return selectedField;
+        }
+    }
+}